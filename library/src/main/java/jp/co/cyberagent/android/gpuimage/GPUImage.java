@@ -22,11 +22,8 @@ import android.content.pm.ConfigurationInfo;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
-import android.graphics.Matrix;
 import android.graphics.PixelFormat;
 import android.hardware.Camera;
-import android.media.ExifInterface;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.opengl.GLSurfaceView;
@@ -40,12 +37,11 @@ import android.view.WindowManager;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 
 import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.util.BitmapPool;
 import jp.co.cyberagent.android.gpuimage.util.Rotation;
 
 /**
@@ -59,6 +55,12 @@ public class GPUImage {
     static final int SURFACE_TYPE_SURFACE_VIEW = 0;
     static final int SURFACE_TYPE_TEXTURE_VIEW = 1;
 
+    /**
+     * The longer side of the thumbnails of
+     * {@link #getBitmapForMultipleFilters(Bitmap, List, ResponseListener)} in pixels.
+     */
+    public static final int DEFAULT_THUMBNAIL_SIZE = 256;
+
     private final Context context;
     private final GPUImageRenderer renderer;
     private int surfaceType = SURFACE_TYPE_SURFACE_VIEW;
@@ -66,8 +68,46 @@ public class GPUImage {
     private GLTextureView glTextureView;
     private GPUImageFilter filter;
     private Bitmap currentBitmap;
+    private Rotation currentBitmapRotation = Rotation.NORMAL;
+    // The rotation set by the app, the image's own rotation is added to it
+    private Rotation rotation = Rotation.NORMAL;
+    private GPUImageLoader imageLoader;
+    private GPUImageLoader.Request imageRequest;
     private ScaleType scaleType = ScaleType.CENTER_CROP;
     private int scaleWidth, scaleHeight;
+    private boolean mipmapEnabled;
+
+    private final GPUImageLoader.OutputSize imageOutputSize = new GPUImageLoader.OutputSize() {
+        @Override
+        public int[] getOutputSize() {
+            synchronized (renderer.surfaceChangedWaiter) {
+                if (renderer.getFrameWidth() == 0) {
+                    try {
+                        renderer.surfaceChangedWaiter.wait(3000);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            return new int[]{getOutputWidth(), getOutputHeight()};
+        }
+    };
+
+    private final GPUImageLoader.Listener imageLoadedListener = new GPUImageLoader.Listener() {
+        @Override
+        public void onImageLoaded(final GPUImageLoader.Result result) {
+            imageRequest = null;
+            renderer.deleteImage();
+            currentBitmap = null;
+            if (result != null) {
+                scaleWidth = result.getScaleWidth();
+                scaleHeight = result.getScaleHeight();
+                setImage(result.getBitmap(), result.getRotation());
+            } else {
+                requestRender();
+            }
+        }
+    };
 
     /**
      * Instantiates a new GPUImage object.
@@ -216,13 +256,64 @@ public class GPUImage {
         requestRender();
     }
 
+    /**
+     * Sets the filter like {@link #setFilter(GPUImageFilter)}, but compiles it on a background
+     * thread while the current filter keeps drawing and then fades from one to the other. Needs
+     * a {@link GLSurfaceView} or {@link GLTextureView}.
+     *
+     * @param filter     the new filter
+     * @param fadeMillis how long the fade takes, 0 to switch without one
+     */
+    public void setFilterAsync(final GPUImageFilter filter, final long fadeMillis) {
+        this.filter = filter;
+        renderer.setFilterAsync(this.filter, fadeMillis, new Runnable() {
+            @Override
+            public void run() {
+                requestRender();
+            }
+        });
+        requestRender();
+    }
+
+    /**
+     * Compiles the programs of the filters on a background thread, so setting them later does
+     * not stall the preview while they compile. Starts with the next frame drawn, so a
+     * {@link GLSurfaceView} or {@link GLTextureView} must be set. Each filter instance takes one
+     * of the programs when it is initialized, so pass the instances that will be set.
+     *
+     * @param filters  the filters to compile, including the passes and members they draw through
+     * @param listener notified on the main thread as programs are done, may be null
+     */
+    public void precompileFilters(final List<GPUImageFilter> filters,
+                                  final GPUImageShaderPrecompiler.Listener listener) {
+        final List<GPUImageFilter> copy = new ArrayList<>(filters);
+        runOnGLThread(new Runnable() {
+            @Override
+            public void run() {
+                new GPUImageShaderPrecompiler(copy, listener).start();
+            }
+        });
+        requestRender();
+    }
+
     /**
      * Sets the image on which the filter should be applied.
      *
      * @param bitmap the new image
      */
     public void setImage(final Bitmap bitmap) {
+        cancelImageRequest();
+        setImage(bitmap, Rotation.NORMAL);
+    }
+
+    /**
+     * Sets the image along with the rotation it needs to be shown upright, e.g. from its EXIF
+     * orientation. The rotation is applied by the renderer rather than by copying the bitmap.
+     */
+    private void setImage(final Bitmap bitmap, final Rotation rotation) {
         currentBitmap = bitmap;
+        currentBitmapRotation = rotation;
+        updateRotation();
         renderer.setImageBitmap(bitmap, false);
         requestRender();
     }
@@ -245,6 +336,7 @@ public class GPUImage {
      * @param scaleType The new ScaleType
      */
     public void setScaleType(ScaleType scaleType) {
+        cancelImageRequest();
         this.scaleType = scaleType;
         renderer.setScaleType(scaleType);
         renderer.deleteImage();
@@ -252,6 +344,52 @@ public class GPUImage {
         requestRender();
     }
 
+    /**
+     * Sets whether images are downscaled to the output on the GPU through mipmaps instead of on
+     * the CPU. Images set from a Uri or File are then only sampled down while decoding, which
+     * saves the scaled copy but keeps them up to twice the output size. This has to be run
+     * before setting the image.
+     *
+     * @param enabled true to scale images on the GPU
+     */
+    public void setMipmapEnabled(final boolean enabled) {
+        mipmapEnabled = enabled;
+        renderer.setMipmapEnabled(enabled);
+    }
+
+    public boolean isMipmapEnabled() {
+        return mipmapEnabled;
+    }
+
+    /**
+     * Renders the filter at a lower resolution while frames take longer than the budget, see
+     * {@link GPUImageRenderer#setFrameBudget(float)}.
+     *
+     * @param frameBudgetMillis the longest a frame should take, 0 to always render at full
+     *                          resolution
+     */
+    public void setFrameBudget(final float frameBudgetMillis) {
+        renderer.setFrameBudget(frameBudgetMillis);
+    }
+
+    /**
+     * Gets the resolution the filter is rendered at relative to the output, below 1 while the
+     * frame budget is exceeded.
+     */
+    public float getResolutionScale() {
+        return renderer.getResolutionScale();
+    }
+
+    /**
+     * Gets how many GL state changes the last frame drawn asked for and how many of them were
+     * actually made, the rest being skipped as the state already had the requested value.
+     *
+     * @return the requested and the issued count
+     */
+    public int[] getGlCallCounts() {
+        return new int[]{renderer.getRequestedGlCallCount(), renderer.getIssuedGlCallCount()};
+    }
+
     /**
      * This gets the size of the image. This makes it easier to adjust
      * the size of your imagePreview to the the size of the scaled image.
@@ -268,7 +406,8 @@ public class GPUImage {
      * @param rotation new rotation
      */
     public void setRotation(Rotation rotation) {
-        renderer.setRotation(rotation);
+        this.rotation = rotation;
+        updateRotation();
     }
 
     /**
@@ -277,13 +416,31 @@ public class GPUImage {
      * @param rotation new rotation
      */
     public void setRotation(Rotation rotation, boolean flipHorizontal, boolean flipVertical) {
-        renderer.setRotation(rotation, flipHorizontal, flipVertical);
+        this.rotation = rotation;
+        renderer.setRotation(getDisplayRotation(), flipHorizontal, flipVertical);
+    }
+
+    /**
+     * The rotation set by the app on top of the rotation the image needs to be upright.
+     */
+    private Rotation getDisplayRotation() {
+        int imageRotation = currentBitmap != null ? currentBitmapRotation.asInt() : 0;
+        return Rotation.fromInt((rotation.asInt() + imageRotation) % 360);
+    }
+
+    private void updateRotation() {
+        Rotation displayRotation = getDisplayRotation();
+        if (displayRotation != renderer.getRotation()) {
+            renderer.setRotation(displayRotation,
+                    renderer.isFlippedHorizontally(), renderer.isFlippedVertically());
+        }
     }
 
     /**
      * Deletes the current image.
      */
     public void deleteImage() {
+        cancelImageRequest();
         renderer.deleteImage();
         currentBitmap = null;
         requestRender();
@@ -291,20 +448,72 @@ public class GPUImage {
 
     /**
      * Sets the image on which the filter should be applied from a Uri.
+     * <p>
+     * The image is decoded in the background at about the output size and shown upright
+     * according to its orientation. Setting another image before it is loaded cancels it.
      *
      * @param uri the uri of the new image
      */
     public void setImage(final Uri uri) {
-        new LoadImageUriTask(this, uri).execute();
+        cancelImageRequest();
+        imageRequest = getImageLoader().load(uri, imageOutputSize, scaleType, mipmapEnabled,
+                imageLoadedListener);
     }
 
     /**
      * Sets the image on which the filter should be applied from a File.
+     * <p>
+     * The image is decoded in the background at about the output size and shown upright
+     * according to its orientation. Setting another image before it is loaded cancels it.
      *
      * @param file the file of the new image
      */
     public void setImage(final File file) {
-        new LoadImageFileTask(this, file).execute();
+        cancelImageRequest();
+        imageRequest = getImageLoader().load(file, imageOutputSize, scaleType, mipmapEnabled,
+                imageLoadedListener);
+    }
+
+    /**
+     * Decodes an image into the cache of the image loader, so setting it later is immediate.
+     * Useful for the neighbours of the current image in a gallery.
+     *
+     * @param uri the uri of the image
+     */
+    public void prefetchImage(final Uri uri) {
+        getImageLoader().prefetch(uri, imageOutputSize, scaleType, mipmapEnabled);
+    }
+
+    /**
+     * Decodes an image into the cache of the image loader, so setting it later is immediate.
+     * Useful for the neighbours of the current image in a gallery.
+     *
+     * @param file the file of the image
+     */
+    public void prefetchImage(final File file) {
+        getImageLoader().prefetch(file, imageOutputSize, scaleType, mipmapEnabled);
+    }
+
+    /**
+     * Sets the loader used by {@link #setImage(Uri)} and {@link #setImage(File)}. Defaults to
+     * {@link GPUImageLoader#getDefault(Context)}.
+     */
+    public void setImageLoader(final GPUImageLoader imageLoader) {
+        this.imageLoader = imageLoader;
+    }
+
+    public GPUImageLoader getImageLoader() {
+        if (imageLoader == null) {
+            imageLoader = GPUImageLoader.getDefault(context);
+        }
+        return imageLoader;
+    }
+
+    private void cancelImageRequest() {
+        if (imageRequest != null) {
+            imageRequest.cancel();
+            imageRequest = null;
+        }
     }
 
     private String getPath(final Uri uri) {
@@ -349,7 +558,7 @@ public class GPUImage {
      *
      * @param bitmap  the bitmap on which the current filter should be applied
      * @param recycle recycle the bitmap or not.
-     * @return the bitmap with filter applied
+     * @return the bitmap with filter applied, taken from {@link BitmapPool#getDefault()}
      */
     public Bitmap getBitmapWithFilterApplied(final Bitmap bitmap, boolean recycle) {
         if (glSurfaceView != null || glTextureView != null) {
@@ -374,11 +583,15 @@ public class GPUImage {
             }
         }
 
+        // Loaded images are kept in their encoded orientation, render them upright
+        Rotation rotation = bitmap == currentBitmap ? currentBitmapRotation : Rotation.NORMAL;
+        boolean rotated = rotation == Rotation.ROTATION_90 || rotation == Rotation.ROTATION_270;
         GPUImageRenderer renderer = new GPUImageRenderer(filter);
-        renderer.setRotation(Rotation.NORMAL,
+        renderer.setRotation(rotation,
                 this.renderer.isFlippedHorizontally(), this.renderer.isFlippedVertically());
         renderer.setScaleType(scaleType);
-        PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
+        PixelBuffer buffer = new PixelBuffer(rotated ? bitmap.getHeight() : bitmap.getWidth(),
+                rotated ? bitmap.getWidth() : bitmap.getHeight());
         buffer.setRenderer(renderer);
         renderer.setImageBitmap(bitmap, recycle);
         Bitmap result = buffer.getBitmap();
@@ -397,7 +610,8 @@ public class GPUImage {
 
     /**
      * Gets the images for multiple filters on a image. This can be used to
-     * quickly get thumbnail images for filters. <br>
+     * quickly get thumbnail images for filters, whose longer side is at most
+     * {@link #DEFAULT_THUMBNAIL_SIZE}. <br>
      * Whenever a new Bitmap is ready, the listener will be called with the
      * bitmap. The order of the calls to the listener will be the same as the
      * filter order.
@@ -408,21 +622,49 @@ public class GPUImage {
      */
     public static void getBitmapForMultipleFilters(final Bitmap bitmap,
                                                    final List<GPUImageFilter> filters, final ResponseListener<Bitmap> listener) {
+        getBitmapForMultipleFilters(bitmap, DEFAULT_THUMBNAIL_SIZE, filters, listener);
+    }
+
+    /**
+     * Gets thumbnails of an image for multiple filters. The image is scaled down once, all
+     * filters are rendered into tiles of a shared atlas and the atlas is read back once. <br>
+     * Whenever a new Bitmap is ready, the listener will be called with the
+     * bitmap. The order of the calls to the listener will be the same as the
+     * filter order. The filters are destroyed afterwards.
+     *
+     * @param bitmap        the bitmap on which the filters will be applied
+     * @param thumbnailSize the longer side of the thumbnails in pixels
+     * @param filters       the filters which will be applied on the bitmap
+     * @param listener      the listener on which the results will be notified
+     */
+    public static void getBitmapForMultipleFilters(final Bitmap bitmap, final int thumbnailSize,
+                                                   final List<GPUImageFilter> filters, final ResponseListener<Bitmap> listener) {
         if (filters.isEmpty()) {
             return;
         }
-        GPUImageRenderer renderer = new GPUImageRenderer(filters.get(0));
-        renderer.setImageBitmap(bitmap, false);
-        PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
+        float scale = Math.min(1f,
+                (float) thumbnailSize / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        Bitmap source = scale < 1f ? Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true) : bitmap;
+
+        GPUImageThumbnailRenderer renderer = new GPUImageThumbnailRenderer(source, filters);
+        PixelBuffer buffer = new PixelBuffer(renderer.getAtlasWidth(), renderer.getAtlasHeight());
         buffer.setRenderer(renderer);
-
-        for (GPUImageFilter filter : filters) {
-            renderer.setFilter(filter);
-            listener.response(buffer.getBitmap());
-            filter.destroy();
+        for (int page = 0, pages = renderer.getPageCount(); page < pages; page++) {
+            renderer.setPage(page);
+            // Every frame of the renderer is complete, so each page is drawn once
+            Bitmap atlas = buffer.getBitmap(1);
+            for (int tile = 0, tiles = renderer.getTileCount(); tile < tiles; tile++) {
+                listener.response(renderer.getTile(atlas, tile));
+            }
+            BitmapPool.getDefault().put(atlas);
         }
-        renderer.deleteImage();
+        renderer.destroy();
         buffer.destroy();
+        if (source != bitmap) {
+            BitmapPool.getDefault().put(source);
+        }
     }
 
     /**
@@ -552,230 +794,6 @@ public class GPUImage {
         void onPictureSaved(Uri uri);
     }
 
-    private class LoadImageUriTask extends LoadImageTask {
-
-        private final Uri uri;
-
-        public LoadImageUriTask(GPUImage gpuImage, Uri uri) {
-            super(gpuImage);
-            this.uri = uri;
-        }
-
-        @Override
-        protected Bitmap decode(BitmapFactory.Options options) {
-            try {
-                InputStream inputStream;
-                if (uri.getScheme().startsWith("http") || uri.getScheme().startsWith("https")) {
-                    inputStream = new URL(uri.toString()).openStream();
-                } else if (uri.getPath().startsWith("/android_asset/")) {
-                    inputStream = context.getAssets().open(uri.getPath().substring(("/android_asset/").length()));
-                } else {
-                    inputStream = context.getContentResolver().openInputStream(uri);
-                }
-                return BitmapFactory.decodeStream(inputStream, null, options);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            return null;
-        }
-
-        @Override
-        protected int getImageOrientation() throws IOException {
-            Cursor cursor = context.getContentResolver().query(uri,
-                    new String[]{MediaStore.Images.ImageColumns.ORIENTATION}, null, null, null);
-
-            if (cursor == null || cursor.getCount() != 1) {
-                return 0;
-            }
-
-            cursor.moveToFirst();
-            int orientation = cursor.getInt(0);
-            cursor.close();
-            return orientation;
-        }
-    }
-
-    private class LoadImageFileTask extends LoadImageTask {
-
-        private final File imageFile;
-
-        public LoadImageFileTask(GPUImage gpuImage, File file) {
-            super(gpuImage);
-            imageFile = file;
-        }
-
-        @Override
-        protected Bitmap decode(BitmapFactory.Options options) {
-            return BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
-        }
-
-        @Override
-        protected int getImageOrientation() throws IOException {
-            ExifInterface exif = new ExifInterface(imageFile.getAbsolutePath());
-            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
-            switch (orientation) {
-                case ExifInterface.ORIENTATION_NORMAL:
-                    return 0;
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                    return 90;
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                    return 180;
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                    return 270;
-                default:
-                    return 0;
-            }
-        }
-    }
-
-    private abstract class LoadImageTask extends AsyncTask<Void, Void, Bitmap> {
-
-        private final GPUImage gpuImage;
-        private int outputWidth;
-        private int outputHeight;
-
-        public LoadImageTask(final GPUImage gpuImage) {
-            this.gpuImage = gpuImage;
-        }
-
-        @Override
-        protected Bitmap doInBackground(Void... params) {
-            if (renderer != null && renderer.getFrameWidth() == 0) {
-                try {
-                    synchronized (renderer.surfaceChangedWaiter) {
-                        renderer.surfaceChangedWaiter.wait(3000);
-                    }
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            outputWidth = getOutputWidth();
-            outputHeight = getOutputHeight();
-            return loadResizedImage();
-        }
-
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            super.onPostExecute(bitmap);
-            gpuImage.deleteImage();
-            gpuImage.setImage(bitmap);
-        }
-
-        protected abstract Bitmap decode(BitmapFactory.Options options);
-
-        private Bitmap loadResizedImage() {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            decode(options);
-            int scale = 1;
-            while (checkSize(options.outWidth / scale > outputWidth, options.outHeight / scale > outputHeight)) {
-                scale++;
-            }
-
-            scale--;
-            if (scale < 1) {
-                scale = 1;
-            }
-            options = new BitmapFactory.Options();
-            options.inSampleSize = scale;
-            options.inPreferredConfig = Bitmap.Config.RGB_565;
-            options.inPurgeable = true;
-            options.inTempStorage = new byte[32 * 1024];
-            Bitmap bitmap = decode(options);
-            if (bitmap == null) {
-                return null;
-            }
-            bitmap = rotateImage(bitmap);
-            bitmap = scaleBitmap(bitmap);
-            return bitmap;
-        }
-
-        private Bitmap scaleBitmap(Bitmap bitmap) {
-            // resize to desired dimensions
-            int width = bitmap.getWidth();
-            int height = bitmap.getHeight();
-            int[] newSize = getScaleSize(width, height);
-            Bitmap workBitmap = Bitmap.createScaledBitmap(bitmap, newSize[0], newSize[1], true);
-            if (workBitmap != bitmap) {
-                bitmap.recycle();
-                bitmap = workBitmap;
-                System.gc();
-            }
-
-            if (scaleType == ScaleType.CENTER_CROP) {
-                // Crop it
-                int diffWidth = newSize[0] - outputWidth;
-                int diffHeight = newSize[1] - outputHeight;
-                workBitmap = Bitmap.createBitmap(bitmap, diffWidth / 2, diffHeight / 2,
-                        newSize[0] - diffWidth, newSize[1] - diffHeight);
-                if (workBitmap != bitmap) {
-                    bitmap.recycle();
-                    bitmap = workBitmap;
-                }
-            }
-
-            return bitmap;
-        }
-
-        /**
-         * Retrieve the scaling size for the image dependent on the ScaleType.<br>
-         * <br>
-         * If CROP: sides are same size or bigger than output's sides<br>
-         * Else   : sides are same size or smaller than output's sides
-         */
-        private int[] getScaleSize(int width, int height) {
-            float newWidth;
-            float newHeight;
-
-            float withRatio = (float) width / outputWidth;
-            float heightRatio = (float) height / outputHeight;
-
-            boolean adjustWidth = scaleType == ScaleType.CENTER_CROP
-                    ? withRatio > heightRatio : withRatio < heightRatio;
-
-            if (adjustWidth) {
-                newHeight = outputHeight;
-                newWidth = (newHeight / height) * width;
-            } else {
-                newWidth = outputWidth;
-                newHeight = (newWidth / width) * height;
-            }
-            scaleWidth = Math.round(newWidth);
-            scaleHeight = Math.round(newHeight);
-            return new int[]{Math.round(newWidth), Math.round(newHeight)};
-        }
-
-        private boolean checkSize(boolean widthBigger, boolean heightBigger) {
-            if (scaleType == ScaleType.CENTER_CROP) {
-                return widthBigger && heightBigger;
-            } else {
-                return widthBigger || heightBigger;
-            }
-        }
-
-        private Bitmap rotateImage(final Bitmap bitmap) {
-            if (bitmap == null) {
-                return null;
-            }
-            Bitmap rotatedBitmap = bitmap;
-            try {
-                int orientation = getImageOrientation();
-                if (orientation != 0) {
-                    Matrix matrix = new Matrix();
-                    matrix.postRotate(orientation);
-                    rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
-                            bitmap.getHeight(), matrix, true);
-                    bitmap.recycle();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            return rotatedBitmap;
-        }
-
-        protected abstract int getImageOrientation() throws IOException;
-    }
-
     public interface ResponseListener<T> {
         void response(T item);
     }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+/**
+ * Measures how long drawing a frame takes, GPU included, without waiting for the GPU every
+ * frame. Where the context has GL_EXT_disjoint_timer_query, the GPU time of a frame is read a
+ * few frames later from a timer query. Elsewhere every {@link #SAMPLE_INTERVAL}th frame waits
+ * for the GPU with glFinish. A frame takes the longer of the time spent issuing its commands and
+ * the time the GPU spent on them.
+ */
+class GPUImageFrameTimer {
+    static final int SAMPLE_INTERVAL = 8;
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int QUERY_COUNT = 4;
+
+    // Null until the context is checked, empty without timer queries
+    private int[] queries;
+    private final boolean[] pending = new boolean[QUERY_COUNT];
+    // The time spent issuing the frame of a query, -1 once the query is of no use
+    private final float[] issueMillis = new float[QUERY_COUNT];
+    private final int[] value = new int[1];
+    private int nextQuery;
+    private boolean querying;
+    private int frames;
+    private long startNanos;
+    private float lastMillis;
+
+    GPUImageFrameTimer() {
+        reset();
+    }
+
+    /**
+     * Starts timing a frame. Must be called on the GL thread right before drawing it.
+     */
+    void begin() {
+        if (queries == null) {
+            if (OpenGlUtils.isGLES30Supported()
+                    && OpenGlUtils.isExtensionSupported("GL_EXT_disjoint_timer_query")) {
+                queries = new int[QUERY_COUNT];
+                GLES30.glGenQueries(QUERY_COUNT, queries, 0);
+                // Clears the disjoint flag before the first query
+                GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, value, 0);
+            } else {
+                queries = new int[0];
+            }
+        }
+        startNanos = System.nanoTime();
+        // A query still waiting for the GPU cannot be reused, that frame is not timed
+        querying = queries.length > 0 && !pending[nextQuery];
+        if (querying) {
+            GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[nextQuery]);
+        }
+    }
+
+    /**
+     * Ends the frame started with {@link #begin()}.
+     *
+     * @return the time the latest measured frame took in milliseconds, which may be an earlier
+     * frame, or 0 while none is measured
+     */
+    float end() {
+        float millis = (System.nanoTime() - startNanos) / 1000000f;
+        if (queries.length == 0) {
+            if (++frames % SAMPLE_INTERVAL == 0) {
+                GLES20.glFinish();
+                lastMillis = (System.nanoTime() - startNanos) / 1000000f;
+            }
+            return lastMillis;
+        }
+        if (querying) {
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            pending[nextQuery] = true;
+            issueMillis[nextQuery] = millis;
+            nextQuery = (nextQuery + 1) % QUERY_COUNT;
+        }
+        collectQueries();
+        return lastMillis;
+    }
+
+    private void collectQueries() {
+        // Results spanning a disjoint event, e.g. a frequency change, are meaningless
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, value, 0);
+        boolean disjoint = value[0] != 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            int query = (nextQuery + i) % QUERY_COUNT;
+            if (!pending[query]) {
+                continue;
+            }
+            GLES30.glGetQueryObjectuiv(queries[query], GLES30.GL_QUERY_RESULT_AVAILABLE, value, 0);
+            if (value[0] == 0) {
+                // Later frames are not done either
+                return;
+            }
+            pending[query] = false;
+            if (!disjoint && issueMillis[query] >= 0) {
+                GLES30.glGetQueryObjectuiv(queries[query], GLES30.GL_QUERY_RESULT, value, 0);
+                float gpuMillis = (value[0] & 0xffffffffL) / 1000000f;
+                lastMillis = Math.max(issueMillis[query], gpuMillis);
+            }
+        }
+    }
+
+    /**
+     * Forgets the frames measured so far, e.g. after what is drawn changed. Without timer
+     * queries the next frame is measured right away.
+     */
+    void reset() {
+        lastMillis = 0;
+        frames = SAMPLE_INTERVAL - 1;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            issueMillis[i] = -1;
+        }
+    }
+
+    /**
+     * Forgets the queries, which went away with the previous context.
+     */
+    void onContextCreated() {
+        queries = null;
+        nextQuery = 0;
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            pending[i] = false;
+        }
+        reset();
+    }
+}
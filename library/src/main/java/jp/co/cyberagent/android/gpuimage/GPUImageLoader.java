@@ -0,0 +1,878 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.LruCache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import jp.co.cyberagent.android.gpuimage.GPUImage.ScaleType;
+import jp.co.cyberagent.android.gpuimage.util.BitmapPool;
+import jp.co.cyberagent.android.gpuimage.util.Rotation;
+
+/**
+ * Decodes images from Uris and Files at about the size they are displayed at, on a small pool of
+ * background threads.
+ * <p>
+ * Loads run before prefetches and newer requests before older ones, so scrolling quickly through
+ * a gallery decodes what is on screen first. A request that is superseded can be cancelled and is
+ * then never delivered. Decoded images are kept in an LRU cache with a byte budget, keyed by the
+ * source, the output size and the scale type. Requests for an image that is already being decoded
+ * share that decode.
+ * <p>
+ * The sample size is the largest power of two that keeps the image at least as large as the
+ * output, so the decoder does most of the downscaling. For CENTER_CROP only the visible region is
+ * decoded. Images keep their encoded orientation; the rotation needed to show them upright is
+ * returned with the bitmap.
+ */
+public class GPUImageLoader {
+
+    /**
+     * The most prefetches waiting at a time. Older ones are dropped first.
+     */
+    public static final int MAX_PENDING_PREFETCHES = 8;
+
+    private static GPUImageLoader defaultLoader;
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor executor;
+    private final LruCache<String, Result> cache;
+    private final Map<String, LoadTask> pendingTasks = new HashMap<>();
+    private final LinkedList<LoadTask> pendingPrefetches = new LinkedList<>();
+    private long nextSequence;
+
+    private int decodeCount;
+    private long decodeTimeNanos;
+    private int hitCount;
+    private int missCount;
+
+    /**
+     * The loader used by {@link GPUImage}, with two threads and an eighth of the heap as cache.
+     */
+    public static synchronized GPUImageLoader getDefault(final Context context) {
+        if (defaultLoader == null) {
+            defaultLoader = new GPUImageLoader(context,
+                    2, (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8));
+        }
+        return defaultLoader;
+    }
+
+    /**
+     * @param context    the context to resolve Uris with
+     * @param threads    the number of images decoded in parallel
+     * @param cacheBytes the most memory the cached images may hold
+     */
+    public GPUImageLoader(final Context context, final int threads, final int cacheBytes) {
+        this.context = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        cache = new LruCache<String, Result>(cacheBytes) {
+            @Override
+            protected int sizeOf(final String key, final Result value) {
+                return value.getBitmap().getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Called on the main thread with a loaded image.
+     */
+    public interface Listener {
+        /**
+         * @param result the image, or null if it could not be decoded
+         */
+        void onImageLoaded(Result result);
+    }
+
+    /**
+     * Tells the loader the size an image will be displayed at.
+     */
+    public interface OutputSize {
+        /**
+         * Called on a loader thread, so it may wait until the output is laid out.
+         *
+         * @return {width, height}
+         */
+        int[] getOutputSize();
+    }
+
+    /**
+     * A decoded image. Cached results are shared between requests, so the bitmap must not be
+     * recycled or modified.
+     */
+    public static final class Result {
+        private final Bitmap bitmap;
+        private final Rotation rotation;
+        private final int scaleWidth;
+        private final int scaleHeight;
+
+        Result(final Bitmap bitmap, final Rotation rotation, final int scaleWidth,
+               final int scaleHeight) {
+            this.bitmap = bitmap;
+            this.rotation = rotation;
+            this.scaleWidth = scaleWidth;
+            this.scaleHeight = scaleHeight;
+        }
+
+        /**
+         * The image in its encoded orientation.
+         */
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+
+        /**
+         * The rotation that shows the image upright.
+         */
+        public Rotation getRotation() {
+            return rotation;
+        }
+
+        /**
+         * The width of the whole image scaled to the output, upright.
+         */
+        public int getScaleWidth() {
+            return scaleWidth;
+        }
+
+        /**
+         * The height of the whole image scaled to the output, upright.
+         */
+        public int getScaleHeight() {
+            return scaleHeight;
+        }
+    }
+
+    /**
+     * A pending load that can be cancelled.
+     */
+    public final class Request {
+        private final Listener listener;
+        private final OutputSize outputSize;
+        // The task that delivers to this request, guarded by the loader
+        private LoadTask task;
+        private volatile boolean cancelled;
+
+        private Request(final OutputSize outputSize, final Listener listener) {
+            this.outputSize = outputSize;
+            this.listener = listener;
+        }
+
+        /**
+         * Makes sure the listener is not called. The decode itself is dropped too unless other
+         * requests wait for the same image.
+         */
+        public void cancel() {
+            cancelled = true;
+            GPUImageLoader.this.cancel(this);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    public Request load(final Uri uri, final OutputSize outputSize, final ScaleType scaleType,
+                        final Listener listener) {
+        return load(uri, outputSize, scaleType, false, listener);
+    }
+
+    /**
+     * @param scaleOnGpu whether to leave the final scaling to the renderer, see
+     *                   {@link GPUImage#setMipmapEnabled(boolean)}. The image is then only
+     *                   sampled down during decoding and may be up to twice the output size.
+     */
+    public Request load(final Uri uri, final OutputSize outputSize, final ScaleType scaleType,
+                        final boolean scaleOnGpu, final Listener listener) {
+        return load(new UriSource(uri), outputSize, scaleType, scaleOnGpu, listener);
+    }
+
+    public Request load(final File file, final OutputSize outputSize, final ScaleType scaleType,
+                        final Listener listener) {
+        return load(file, outputSize, scaleType, false, listener);
+    }
+
+    /**
+     * @param scaleOnGpu whether to leave the final scaling to the renderer, see
+     *                   {@link GPUImage#setMipmapEnabled(boolean)}. The image is then only
+     *                   sampled down during decoding and may be up to twice the output size.
+     */
+    public Request load(final File file, final OutputSize outputSize, final ScaleType scaleType,
+                        final boolean scaleOnGpu, final Listener listener) {
+        return load(new FileSource(file), outputSize, scaleType, scaleOnGpu, listener);
+    }
+
+    /**
+     * Decodes the image into the cache ahead of time, behind all loads.
+     */
+    public void prefetch(final Uri uri, final int width, final int height,
+                         final ScaleType scaleType) {
+        prefetch(uri, width, height, scaleType, false);
+    }
+
+    /**
+     * Decodes the image into the cache ahead of time, behind all loads.
+     */
+    public void prefetch(final Uri uri, final int width, final int height,
+                         final ScaleType scaleType, final boolean scaleOnGpu) {
+        prefetch(new UriSource(uri), width, height, scaleType, scaleOnGpu);
+    }
+
+    /**
+     * Decodes the image into the cache ahead of time, behind all loads.
+     */
+    public void prefetch(final File file, final int width, final int height,
+                         final ScaleType scaleType) {
+        prefetch(file, width, height, scaleType, false);
+    }
+
+    /**
+     * Decodes the image into the cache ahead of time, behind all loads.
+     */
+    public void prefetch(final File file, final int width, final int height,
+                         final ScaleType scaleType, final boolean scaleOnGpu) {
+        prefetch(new FileSource(file), width, height, scaleType, scaleOnGpu);
+    }
+
+    /**
+     * Decodes the image into the cache ahead of time, behind all loads. The output size is
+     * resolved on a loader thread like for {@link #load(Uri, OutputSize, ScaleType, boolean,
+     * Listener)}, so a prefetch issued before the output is laid out decodes at the right size.
+     */
+    public void prefetch(final Uri uri, final OutputSize outputSize, final ScaleType scaleType,
+                         final boolean scaleOnGpu) {
+        prefetch(new UriSource(uri), outputSize, scaleType, scaleOnGpu);
+    }
+
+    /**
+     * Decodes the image into the cache ahead of time, behind all loads. The output size is
+     * resolved on a loader thread like for {@link #load(File, OutputSize, ScaleType, boolean,
+     * Listener)}, so a prefetch issued before the output is laid out decodes at the right size.
+     */
+    public void prefetch(final File file, final OutputSize outputSize, final ScaleType scaleType,
+                         final boolean scaleOnGpu) {
+        prefetch(new FileSource(file), outputSize, scaleType, scaleOnGpu);
+    }
+
+    private Request load(final Source source, final OutputSize outputSize,
+                         final ScaleType scaleType, final boolean scaleOnGpu,
+                         final Listener listener) {
+        Request request = new Request(outputSize, listener);
+        // The key is only known once the output size is, which may need to wait
+        LoadTask task = new LoadTask(null, source, scaleType, scaleOnGpu, false);
+        synchronized (this) {
+            task.addRequest(request);
+            task.sequence = ++nextSequence;
+        }
+        executor.execute(task);
+        return request;
+    }
+
+    private void prefetch(final Source source, final int width, final int height,
+                          final ScaleType scaleType, final boolean scaleOnGpu) {
+        String key = getKey(source, width, height, scaleType, scaleOnGpu);
+        if (cache.get(key) != null) {
+            return;
+        }
+        LoadTask task;
+        synchronized (this) {
+            if (pendingTasks.containsKey(key)) {
+                return;
+            }
+            task = new LoadTask(key, source, scaleType, scaleOnGpu, true);
+            task.width = width;
+            task.height = height;
+            task.sequence = ++nextSequence;
+            pendingTasks.put(key, task);
+            queuePrefetch(task);
+        }
+        executor.execute(task);
+    }
+
+    private void prefetch(final Source source, final OutputSize outputSize,
+                          final ScaleType scaleType, final boolean scaleOnGpu) {
+        // The key is only known once the output size is, which may need to wait
+        LoadTask task = new LoadTask(null, source, scaleType, scaleOnGpu, true);
+        task.outputSize = outputSize;
+        synchronized (this) {
+            task.sequence = ++nextSequence;
+            queuePrefetch(task);
+        }
+        executor.execute(task);
+    }
+
+    // Guarded by the loader
+    private void queuePrefetch(final LoadTask task) {
+        pendingPrefetches.add(task);
+        while (pendingPrefetches.size() > MAX_PENDING_PREFETCHES) {
+            LoadTask oldest = pendingPrefetches.removeFirst();
+            if (executor.remove(oldest) && oldest.key != null) {
+                pendingTasks.remove(oldest.key);
+            }
+        }
+    }
+
+    private synchronized void cancel(final Request request) {
+        LoadTask task = request.task;
+        task.requests.remove(request);
+        if (task.requests.isEmpty() && !task.prefetch && executor.remove(task)
+                && task.key != null && pendingTasks.get(task.key) == task) {
+            pendingTasks.remove(task.key);
+        }
+    }
+
+    /**
+     * Drops all cached images.
+     */
+    public void clearCache() {
+        cache.evictAll();
+    }
+
+    /**
+     * How many images were decoded, cache hits and shared decodes excluded.
+     */
+    public synchronized int getDecodeCount() {
+        return decodeCount;
+    }
+
+    public synchronized float getAverageDecodeTimeMillis() {
+        return decodeCount == 0 ? 0 : decodeTimeNanos / 1e6f / decodeCount;
+    }
+
+    /**
+     * The share of loads served from the cache, from 0.0 to 1.0.
+     */
+    public synchronized float getCacheHitRate() {
+        int total = hitCount + missCount;
+        return total == 0 ? 0 : (float) hitCount / total;
+    }
+
+    private class LoadTask implements Runnable, Comparable<LoadTask> {
+        private final Source source;
+        private final ScaleType scaleType;
+        private final boolean scaleOnGpu;
+        private final boolean prefetch;
+        // Guarded by the loader
+        private final List<Request> requests = new ArrayList<>();
+        private String key;
+        // Set for prefetches whose key is resolved on the loader thread
+        private OutputSize outputSize;
+        private int width;
+        private int height;
+        private long sequence;
+
+        LoadTask(final String key, final Source source, final ScaleType scaleType,
+                 final boolean scaleOnGpu, final boolean prefetch) {
+            this.key = key;
+            this.source = source;
+            this.scaleType = scaleType;
+            this.scaleOnGpu = scaleOnGpu;
+            this.prefetch = prefetch;
+        }
+
+        void addRequest(final Request request) {
+            requests.add(request);
+            request.task = this;
+        }
+
+        @Override
+        public int compareTo(final LoadTask other) {
+            // Loads before prefetches, newest first
+            if (prefetch != other.prefetch) {
+                return prefetch ? 1 : -1;
+            }
+            return Long.compare(other.sequence, sequence);
+        }
+
+        @Override
+        public void run() {
+            if (key == null && !prefetch) {
+                runLoad();
+            } else if (key == null) {
+                runDeferredPrefetch();
+            } else {
+                runPrefetch();
+            }
+        }
+
+        private void runLoad() {
+            Request request;
+            synchronized (GPUImageLoader.this) {
+                if (requests.isEmpty()) {
+                    return;
+                }
+                request = requests.get(0);
+            }
+            int[] size = request.outputSize.getOutputSize();
+            key = getKey(source, size[0], size[1], scaleType, scaleOnGpu);
+            Result result = cache.get(key);
+            if (result != null) {
+                synchronized (GPUImageLoader.this) {
+                    hitCount++;
+                }
+                deliver(request, result);
+                return;
+            }
+            LoadTask pending;
+            synchronized (GPUImageLoader.this) {
+                missCount++;
+                pending = pendingTasks.get(key);
+                if (pending != null) {
+                    // Share the decode that is already running or queued
+                    requests.remove(request);
+                    pending.addRequest(request);
+                    if (pending.prefetch && executor.remove(pending)) {
+                        // Move the queued prefetch ahead of the other prefetches
+                        pendingPrefetches.remove(pending);
+                        LoadTask promoted = new LoadTask(key, source, scaleType, scaleOnGpu,
+                                false);
+                        promoted.width = size[0];
+                        promoted.height = size[1];
+                        promoted.sequence = ++nextSequence;
+                        for (Request waiting : pending.requests) {
+                            promoted.addRequest(waiting);
+                        }
+                        pendingTasks.put(key, promoted);
+                        executor.execute(promoted);
+                    }
+                    return;
+                }
+                width = size[0];
+                height = size[1];
+                pendingTasks.put(key, this);
+            }
+            decodeAndDeliver();
+        }
+
+        private void runDeferredPrefetch() {
+            synchronized (GPUImageLoader.this) {
+                pendingPrefetches.remove(this);
+            }
+            int[] size = outputSize.getOutputSize();
+            String resolvedKey = getKey(source, size[0], size[1], scaleType, scaleOnGpu);
+            if (cache.get(resolvedKey) != null) {
+                return;
+            }
+            synchronized (GPUImageLoader.this) {
+                if (pendingTasks.containsKey(resolvedKey)) {
+                    return;
+                }
+                key = resolvedKey;
+                width = size[0];
+                height = size[1];
+                pendingTasks.put(key, this);
+            }
+            decodeAndDeliver();
+        }
+
+        private void runPrefetch() {
+            synchronized (GPUImageLoader.this) {
+                pendingPrefetches.remove(this);
+                if (pendingTasks.get(key) != this) {
+                    return;
+                }
+            }
+            if (cache.get(key) != null) {
+                synchronized (GPUImageLoader.this) {
+                    pendingTasks.remove(key);
+                }
+                return;
+            }
+            decodeAndDeliver();
+        }
+
+        private void decodeAndDeliver() {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Result result = null;
+            try {
+                result = decode(source, width, height, scaleType, scaleOnGpu);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            long time = SystemClock.elapsedRealtimeNanos() - start;
+            if (result != null) {
+                cache.put(key, result);
+            }
+            List<Request> waiting;
+            synchronized (GPUImageLoader.this) {
+                decodeCount++;
+                decodeTimeNanos += time;
+                if (pendingTasks.get(key) == this) {
+                    pendingTasks.remove(key);
+                }
+                waiting = new ArrayList<>(requests);
+            }
+            for (Request request : waiting) {
+                deliver(request, result);
+            }
+        }
+    }
+
+    private void deliver(final Request request, final Result result) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.isCancelled()) {
+                    request.listener.onImageLoaded(result);
+                }
+            }
+        });
+    }
+
+    private static String getKey(final Source source, final int width, final int height,
+                                 final ScaleType scaleType, final boolean scaleOnGpu) {
+        return source.getKey() + "@" + width + "x" + height + ":" + scaleType
+                + (scaleOnGpu ? ":gpu" : "");
+    }
+
+    private Result decode(final Source source, final int outputWidth, final int outputHeight,
+                          final ScaleType scaleType, final boolean scaleOnGpu) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(context, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+
+        // Sizes are in the orientation of the encoded image from here on
+        Rotation rotation = getRotation(source);
+        boolean rotated = rotation == Rotation.ROTATION_90 || rotation == Rotation.ROTATION_270;
+        int targetWidth = rotated ? outputHeight : outputWidth;
+        int targetHeight = rotated ? outputWidth : outputHeight;
+        int[] newSize = getScaleSize(width, height, targetWidth, targetHeight, scaleType);
+        int scaleWidth = rotated ? newSize[1] : newSize[0];
+        int scaleHeight = rotated ? newSize[0] : newSize[1];
+
+        Bitmap bitmap;
+        if (scaleType == ScaleType.CENTER_INSIDE) {
+            bitmap = decodeSampled(source, width, height,
+                    getSampleSize(width, height, newSize[0], newSize[1]));
+            if (!scaleOnGpu) {
+                bitmap = scaleRegion(bitmap, null, newSize[0], newSize[1]);
+            }
+        } else {
+            // Only the center of the image ends up visible
+            int cropWidth = Math.min(width, Math.round((float) targetWidth * width / newSize[0]));
+            int cropHeight = Math.min(height, Math.round((float) targetHeight * height / newSize[1]));
+            Rect region = new Rect((width - cropWidth) / 2, (height - cropHeight) / 2,
+                    (width + cropWidth) / 2, (height + cropHeight) / 2);
+            bitmap = decodeRegion(source, region,
+                    getSampleSize(region.width(), region.height(), targetWidth, targetHeight));
+            if (bitmap != null) {
+                if (!scaleOnGpu) {
+                    bitmap = scaleRegion(bitmap, null, targetWidth, targetHeight);
+                }
+            } else {
+                // Not every format supports region decoding, decode it all and crop while scaling
+                bitmap = decodeSampled(source, width, height,
+                        getSampleSize(width, height, newSize[0], newSize[1]));
+                // When scaling on the GPU the renderer crops the image itself
+                if (bitmap != null && !scaleOnGpu) {
+                    float sampledScaleX = (float) bitmap.getWidth() / width;
+                    float sampledScaleY = (float) bitmap.getHeight() / height;
+                    Rect sampledRegion = new Rect(
+                            Math.round(region.left * sampledScaleX),
+                            Math.round(region.top * sampledScaleY),
+                            Math.round(region.right * sampledScaleX),
+                            Math.round(region.bottom * sampledScaleY));
+                    bitmap = scaleRegion(bitmap, sampledRegion, targetWidth, targetHeight);
+                }
+            }
+        }
+        return bitmap != null ? new Result(bitmap, rotation, scaleWidth, scaleHeight) : null;
+    }
+
+    private Bitmap decodeSampled(final Source source, final int width, final int height,
+                                 final int sampleSize) {
+        BitmapFactory.Options options = createDecodeOptions(sampleSize);
+        BitmapPool.getDefault().setInBitmap(options, width, height);
+        Bitmap bitmap = source.decode(context, options);
+        if (bitmap == null && options.inBitmap != null) {
+            // The pooled bitmap did not fit after all, decode into a new one
+            BitmapPool.getDefault().put(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = source.decode(context, options);
+        }
+        return bitmap;
+    }
+
+    private Bitmap decodeRegion(final Source source, final Rect region, final int sampleSize) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = source.newRegionDecoder(context);
+        } catch (IOException e) {
+            return null;
+        }
+        if (decoder == null) {
+            return null;
+        }
+        try {
+            BitmapFactory.Options options = createDecodeOptions(sampleSize);
+            BitmapPool.getDefault().setInBitmap(options, region.width(), region.height());
+            try {
+                return decoder.decodeRegion(region, options);
+            } catch (IllegalArgumentException e) {
+                if (options.inBitmap == null) {
+                    return null;
+                }
+                BitmapPool.getDefault().put(options.inBitmap);
+                options.inBitmap = null;
+                return decoder.decodeRegion(region, options);
+            }
+        } finally {
+            decoder.recycle();
+        }
+    }
+
+    private static BitmapFactory.Options createDecodeOptions(final int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        options.inTempStorage = new byte[32 * 1024];
+        return options;
+    }
+
+    /**
+     * Scales the region of the bitmap (all of it if null) to the given size in a single copy
+     * and gives the source back to the pool. Returns the bitmap itself if it already fits.
+     */
+    private static Bitmap scaleRegion(final Bitmap bitmap, final Rect region, final int width,
+                                      final int height) {
+        if (bitmap == null) {
+            return null;
+        }
+        Rect source = region != null ? region
+                : new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        if (source.left == 0 && source.top == 0 && source.width() == width
+                && source.height() == height && bitmap.getWidth() == width
+                && bitmap.getHeight() == height) {
+            return bitmap;
+        }
+        Matrix matrix = new Matrix();
+        matrix.setScale((float) width / source.width(), (float) height / source.height());
+        Bitmap result = Bitmap.createBitmap(bitmap, source.left, source.top,
+                source.width(), source.height(), matrix, true);
+        if (result != bitmap) {
+            BitmapPool.getDefault().put(bitmap);
+        }
+        return result;
+    }
+
+    /**
+     * Retrieve the scaling size for the image dependent on the ScaleType.<br>
+     * <br>
+     * If CROP: sides are same size or bigger than output's sides<br>
+     * Else   : sides are same size or smaller than output's sides
+     */
+    private static int[] getScaleSize(int width, int height, int outputWidth, int outputHeight,
+                                      ScaleType scaleType) {
+        float newWidth;
+        float newHeight;
+
+        float withRatio = (float) width / outputWidth;
+        float heightRatio = (float) height / outputHeight;
+
+        boolean adjustWidth = scaleType == ScaleType.CENTER_CROP
+                ? withRatio > heightRatio : withRatio < heightRatio;
+
+        if (adjustWidth) {
+            newHeight = outputHeight;
+            newWidth = (newHeight / height) * width;
+        } else {
+            newWidth = outputWidth;
+            newHeight = (newWidth / width) * height;
+        }
+        return new int[]{Math.max(1, Math.round(newWidth)), Math.max(1, Math.round(newHeight))};
+    }
+
+    /**
+     * The largest power of two the source can be subsampled by while staying at least as
+     * large as the target.
+     */
+    private static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int ratio = Math.min(width / Math.max(1, targetWidth), height / Math.max(1, targetHeight));
+        return Integer.highestOneBit(Math.max(1, ratio));
+    }
+
+    private Rotation getRotation(final Source source) {
+        try {
+            int orientation = (source.getImageOrientation(context) % 360 + 360) % 360;
+            if (orientation % 90 == 0) {
+                return Rotation.fromInt(orientation);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return Rotation.NORMAL;
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private abstract static class Source {
+        abstract String getKey();
+
+        abstract Bitmap decode(Context context, BitmapFactory.Options options);
+
+        /**
+         * Opens the image for region decoding. Throws if the format does not support it.
+         */
+        abstract BitmapRegionDecoder newRegionDecoder(Context context) throws IOException;
+
+        abstract int getImageOrientation(Context context) throws IOException;
+    }
+
+    private static class UriSource extends Source {
+        private final Uri uri;
+
+        UriSource(final Uri uri) {
+            this.uri = uri;
+        }
+
+        @Override
+        String getKey() {
+            return uri.toString();
+        }
+
+        private InputStream openInputStream(final Context context) throws IOException {
+            if (uri.getScheme().startsWith("http") || uri.getScheme().startsWith("https")) {
+                return new URL(uri.toString()).openStream();
+            } else if (uri.getPath().startsWith("/android_asset/")) {
+                return context.getAssets().open(uri.getPath().substring(("/android_asset/").length()));
+            } else {
+                return context.getContentResolver().openInputStream(uri);
+            }
+        }
+
+        @Override
+        Bitmap decode(final Context context, final BitmapFactory.Options options) {
+            InputStream inputStream = null;
+            try {
+                inputStream = openInputStream(context);
+                return BitmapFactory.decodeStream(inputStream, null, options);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                closeQuietly(inputStream);
+            }
+            return null;
+        }
+
+        @Override
+        BitmapRegionDecoder newRegionDecoder(final Context context) throws IOException {
+            InputStream inputStream = openInputStream(context);
+            try {
+                return BitmapRegionDecoder.newInstance(inputStream, false);
+            } finally {
+                closeQuietly(inputStream);
+            }
+        }
+
+        @Override
+        int getImageOrientation(final Context context) throws IOException {
+            Cursor cursor = context.getContentResolver().query(uri,
+                    new String[]{MediaStore.Images.ImageColumns.ORIENTATION}, null, null, null);
+
+            if (cursor == null || cursor.getCount() != 1) {
+                return 0;
+            }
+
+            cursor.moveToFirst();
+            int orientation = cursor.getInt(0);
+            cursor.close();
+            return orientation;
+        }
+    }
+
+    private static class FileSource extends Source {
+        private final File imageFile;
+
+        FileSource(final File file) {
+            imageFile = file;
+        }
+
+        @Override
+        String getKey() {
+            return imageFile.getAbsolutePath() + "#" + imageFile.lastModified();
+        }
+
+        @Override
+        Bitmap decode(final Context context, final BitmapFactory.Options options) {
+            return BitmapFactory.decodeFile(imageFile.getAbsolutePath(), options);
+        }
+
+        @Override
+        BitmapRegionDecoder newRegionDecoder(final Context context) throws IOException {
+            return BitmapRegionDecoder.newInstance(imageFile.getAbsolutePath(), false);
+        }
+
+        @Override
+        int getImageOrientation(final Context context) throws IOException {
+            ExifInterface exif = new ExifInterface(imageFile.getAbsolutePath());
+            int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 1);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_NORMAL:
+                    return 0;
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+
+/**
+ * Downscales a texture that cannot have real mipmaps (non power of two sizes on OpenGL ES 2.0
+ * without GL_OES_texture_npot) by building the mip levels it needs as separate textures.
+ * <p>
+ * Each level halves the one above with a 2x2 box filter: one bilinear fetch at the corner shared
+ * by four texels of the level above. Levels are only built down to the one that is still at
+ * least as large as the size the image is drawn at, so the final bilinear fetch never skips
+ * texels.
+ */
+class GPUImageMipmapBuilder {
+
+    private final GPUImageFilter copyFilter = new GPUImageFilter();
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+
+    private int[] frameBuffers = new int[0];
+    private int[] frameBufferTextures = new int[0];
+    private int[] levelWidths = new int[0];
+    private int[] levelHeights = new int[0];
+
+    GPUImageMipmapBuilder() {
+        glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glCubeBuffer.put(CUBE).position(0);
+
+        glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+    }
+
+    /**
+     * Builds the levels of the texture needed to draw it at the target size. Leaves the last
+     * level's framebuffer bound and the viewport at its size.
+     *
+     * @return the level to draw from, the texture itself if it is less than twice the target
+     */
+    @SuppressLint("WrongCall")
+    int build(final int texture, final int width, final int height,
+              final int targetWidth, final int targetHeight) {
+        int levels = 0;
+        int levelWidth = width;
+        int levelHeight = height;
+        while ((levelWidth + 1) / 2 >= targetWidth && (levelHeight + 1) / 2 >= targetHeight
+                && levelWidth > 1 && levelHeight > 1) {
+            levelWidth = (levelWidth + 1) / 2;
+            levelHeight = (levelHeight + 1) / 2;
+            levels++;
+        }
+        if (levels == 0) {
+            return texture;
+        }
+        createLevels(width, height, levels);
+
+        copyFilter.ifNeedInit();
+        int previousTexture = texture;
+        for (int i = 0; i < levels; i++) {
+            GlStateCache.bindFramebuffer(frameBuffers[i]);
+            GLES20.glViewport(0, 0, levelWidths[i], levelHeights[i]);
+            copyFilter.onDraw(frameBuffers[i], previousTexture, glCubeBuffer, glTextureBuffer);
+            previousTexture = frameBufferTextures[i];
+        }
+        return previousTexture;
+    }
+
+    private void createLevels(final int width, final int height, final int levels) {
+        if (levels == frameBuffers.length && levels > 0
+                && levelWidths[0] == (width + 1) / 2 && levelHeights[0] == (height + 1) / 2) {
+            return;
+        }
+        releaseLevels();
+        frameBuffers = new int[levels];
+        frameBufferTextures = new int[levels];
+        levelWidths = new int[levels];
+        levelHeights = new int[levels];
+        int levelWidth = width;
+        int levelHeight = height;
+        for (int i = 0; i < levels; i++) {
+            levelWidth = (levelWidth + 1) / 2;
+            levelHeight = (levelHeight + 1) / 2;
+            levelWidths[i] = levelWidth;
+            levelHeights[i] = levelHeight;
+            OpenGlUtils.createFrameBuffer(levelWidth, levelHeight,
+                    frameBuffers, frameBufferTextures, i);
+        }
+    }
+
+    private void releaseLevels() {
+        if (frameBuffers.length > 0) {
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+        }
+        frameBuffers = new int[0];
+        frameBufferTextures = new int[0];
+        levelWidths = new int[0];
+        levelHeights = new int[0];
+    }
+
+    /**
+     * Releases the levels. Must be called on the GL thread.
+     */
+    void destroy() {
+        releaseLevels();
+        copyFilter.destroy();
+    }
+}
@@ -22,14 +22,18 @@ import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.PreviewCallback;
 import android.hardware.Camera.Size;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.os.SystemClock;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.Queue;
 
@@ -37,10 +41,12 @@ import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
 import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
 import jp.co.cyberagent.android.gpuimage.util.Rotation;
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
 
 public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.Renderer, OffscreenRenderer, PreviewCallback {
@@ -54,10 +60,38 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
     };
 
     private GPUImageFilter filter;
+    // Incremented by every filter change, so an asynchronous one that was overtaken is dropped
+    private int filterGeneration;
+    // The context of the last onSurfaceCreated, programs may have been precompiled for it
+    private EGLContext eglContext;
+
+    // The previous filter while it fades out, drawn into fadeFrameBuffer
+    private GPUImageFilter fadingFilter;
+    private int[] fadeFrameBuffer;
+    private int[] fadeFrameBufferTexture;
+    private long fadeStartMillis;
+    private long fadeDurationMillis;
+    private Runnable fadeRenderRequest;
+
+    // The size filters render at, smaller than the output while the governor scales down
+    private final GPUImageResolutionGovernor governor = new GPUImageResolutionGovernor();
+    private final GPUImageFrameTimer frameTimer = new GPUImageFrameTimer();
+    private int renderWidth;
+    private int renderHeight;
+    private int[] scaleFrameBuffer;
+    private int[] scaleFrameBufferTexture;
+    private volatile float resolutionScale = 1;
+    private volatile float averageFrameMillis;
+
+    // Copies framebuffers to the output for the fade and the resolution scaling
+    private GPUImageFilter copyFilter;
+    private FloatBuffer copyCubeBuffer;
+    private FloatBuffer copyTextureBuffer;
 
     public final Object surfaceChangedWaiter = new Object();
 
     private int glTextureId = NO_IMAGE;
+    private int glDrawTextureId = NO_IMAGE;
     private int glFrameBuffer = DEFAULT_FRAMEBUFFER_ID;
     private SurfaceTexture surfaceTexture = null;
     private final FloatBuffer glCubeBuffer;
@@ -68,6 +102,10 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
     private int outputHeight;
     private int imageWidth;
     private int imageHeight;
+    // Config of the bitmap in glTextureId, null for camera frames
+    private Bitmap.Config imageConfig;
+    private int scaledImageWidth;
+    private int scaledImageHeight;
     private int addedPadding;
 
     private final Queue<Runnable> runOnDraw;
@@ -77,6 +115,15 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
     private boolean flipVertical;
     private GPUImage.ScaleType scaleType = GPUImage.ScaleType.CENTER_CROP;
 
+    private boolean mipmapEnabled;
+    private boolean reduceImage;
+    private boolean reducedImageDirty;
+    private GPUImageMipmapBuilder mipmapBuilder;
+
+    // Read from other threads, written by the GL thread at the start of every frame
+    private volatile int requestedGlCalls;
+    private volatile int issuedGlCalls;
+
     private float backgroundRed = 0;
     private float backgroundGreen = 0;
     private float backgroundBlue = 0;
@@ -99,18 +146,35 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
 
     @Override
     public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
-        GLES20.glClearColor(backgroundRed, backgroundGreen, backgroundBlue, 1);
+        GlStateCache.onContextCreated();
+        releasePrecompiledPrograms();
+        frameTimer.onContextCreated();
+        GlStateCache.clearColor(backgroundRed, backgroundGreen, backgroundBlue, 1);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        // Framebuffers of a fade or scaling in progress went away with the previous context
+        fadingFilter = null;
+        fadeFrameBuffer = null;
+        scaleFrameBuffer = null;
+        copyFilter = null;
         filter.ifNeedInit();
     }
 
+    /**
+     * Drops what was precompiled for the previous context, which went away with it.
+     */
+    private void releasePrecompiledPrograms() {
+        if (eglContext != null) {
+            GPUImageShaderPrecompiler.release(eglContext);
+        }
+        eglContext = EGL14.eglGetCurrentContext();
+    }
+
     @Override
     public void onSurfaceChanged(final GL10 gl, final int width, final int height) {
         outputWidth = width;
         outputHeight = height;
         GLES20.glViewport(0, 0, width, height);
-        GLES20.glUseProgram(filter.getProgram());
-        filter.onOutputSizeChanged(width, height);
+        updateRenderSize();
         adjustImageScaling();
         synchronized (surfaceChangedWaiter) {
             surfaceChangedWaiter.notifyAll();
@@ -119,10 +183,11 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
 
     @Override
     public void onDrawFrame(final GL10 gl) {
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        beginFrame();
+        GlStateCache.bindFramebuffer(0);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
         runAll(runOnDraw);
-        filter.onDraw(glFrameBuffer, glTextureId, glCubeBuffer, glTextureBuffer);
+        drawTimed();
         runAll(runOnDrawEnd);
         if (surfaceTexture != null) {
             surfaceTexture.updateTexImage();
@@ -131,8 +196,16 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
 
     @Override
     public void onSurfaceCreated() {
-        GLES20.glClearColor(backgroundRed, backgroundGreen, backgroundBlue, 1);
+        GlStateCache.onContextCreated();
+        releasePrecompiledPrograms();
+        frameTimer.onContextCreated();
+        GlStateCache.clearColor(backgroundRed, backgroundGreen, backgroundBlue, 1);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        // Framebuffers of a fade or scaling in progress went away with the previous context
+        fadingFilter = null;
+        fadeFrameBuffer = null;
+        scaleFrameBuffer = null;
+        copyFilter = null;
         filter.ifNeedInit();
     }
 
@@ -141,22 +214,222 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
         outputWidth = width;
         outputHeight = height;
         GLES20.glViewport(0, 0, width, height);
-        GLES20.glUseProgram(filter.getProgram());
-        filter.onOutputSizeChanged(width, height);
+        updateRenderSize();
         adjustImageScaling();
     }
 
     @Override
     public void onDrawFrame() {
+        beginFrame();
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
         runAll(runOnDraw);
-        filter.onDraw(glFrameBuffer, glTextureId, glCubeBuffer, glTextureBuffer);
+        drawTimed();
         runAll(runOnDrawEnd);
         if (surfaceTexture != null) {
             surfaceTexture.updateTexImage();
         }
     }
 
+    /**
+     * Draws the frame, and while a frame budget is set feeds the governor how long drawing
+     * takes. Queued work like uploading images is done before and not counted.
+     */
+    private void drawTimed() {
+        if (governor.getBudget() <= 0) {
+            drawScaled();
+            return;
+        }
+        frameTimer.begin();
+        drawScaled();
+        float millis = frameTimer.end();
+        if (millis > 0 && governor.onFrame(millis)) {
+            updateRenderSize();
+        }
+        averageFrameMillis = governor.getAverageMillis();
+    }
+
+    /**
+     * Sizes the filter and the framebuffer it is drawn into for the governor's scale.
+     */
+    private void updateRenderSize() {
+        finishFade();
+        frameTimer.reset();
+        float scale = governor.getScale();
+        resolutionScale = scale;
+        renderWidth = Math.max(1, Math.round(outputWidth * scale));
+        renderHeight = Math.max(1, Math.round(outputHeight * scale));
+        if (scaleFrameBuffer != null) {
+            GlStateCache.deleteTextures(1, scaleFrameBufferTexture, 0);
+            GlStateCache.deleteFramebuffers(1, scaleFrameBuffer, 0);
+            scaleFrameBuffer = null;
+            scaleFrameBufferTexture = null;
+        }
+        if (scale < 1 && outputWidth > 0 && outputHeight > 0) {
+            scaleFrameBuffer = new int[1];
+            scaleFrameBufferTexture = new int[1];
+            OpenGlUtils.createFrameBuffer(renderWidth, renderHeight, scaleFrameBuffer,
+                    scaleFrameBufferTexture, 0);
+            initCopyFilter();
+        }
+        GlStateCache.useProgram(filter.getProgram());
+        filter.onOutputSizeChanged(renderWidth, renderHeight);
+    }
+
+    private void drawScaled() {
+        if (scaleFrameBuffer == null) {
+            drawFilter(glFrameBuffer);
+            return;
+        }
+        int frameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        GlStateCache.bindFramebuffer(scaleFrameBuffer[0]);
+        GLES20.glViewport(0, 0, renderWidth, renderHeight);
+        GlStateCache.clearColor(backgroundRed, backgroundGreen, backgroundBlue, 1);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        drawFilter(scaleFrameBuffer[0]);
+        // Bilinear upscaling to the output
+        GlStateCache.bindFramebuffer(frameBuffer);
+        GLES20.glViewport(0, 0, outputWidth, outputHeight);
+        copyFilter.onDraw(frameBuffer, scaleFrameBufferTexture[0], copyCubeBuffer,
+                copyTextureBuffer);
+    }
+
+    private void initCopyFilter() {
+        if (copyCubeBuffer == null) {
+            copyCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            copyCubeBuffer.put(CUBE).position(0);
+            copyTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            copyTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+        }
+        if (copyFilter == null) {
+            copyFilter = new GPUImageFilter();
+        }
+        copyFilter.ifNeedInit();
+    }
+
+    /**
+     * Draws the filter, and the one fading out, into the framebuffer, which must be bound.
+     * Groups bind the framebuffer they are given for their last pass.
+     */
+    private void drawFilter(final int frameBuffer) {
+        int textureId = getDrawTextureId();
+        if (fadingFilter == null) {
+            filter.onDraw(frameBuffer, textureId, glCubeBuffer, glTextureBuffer);
+            return;
+        }
+        float progress = (SystemClock.uptimeMillis() - fadeStartMillis) / (float) fadeDurationMillis;
+        if (progress >= 1) {
+            finishFade();
+            filter.onDraw(frameBuffer, textureId, glCubeBuffer, glTextureBuffer);
+            return;
+        }
+        GlStateCache.bindFramebuffer(fadeFrameBuffer[0]);
+        GlStateCache.clearColor(backgroundRed, backgroundGreen, backgroundBlue, 1);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        fadingFilter.onDraw(fadeFrameBuffer[0], textureId, glCubeBuffer, glTextureBuffer);
+        GlStateCache.bindFramebuffer(frameBuffer);
+        filter.onDraw(frameBuffer, textureId, glCubeBuffer, glTextureBuffer);
+
+        // The old frame over the new one, more transparent as the fade goes on
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendColor(0, 0, 0, 1 - progress);
+        GLES20.glBlendFunc(GLES20.GL_CONSTANT_ALPHA, GLES20.GL_ONE_MINUS_CONSTANT_ALPHA);
+        copyFilter.onDraw(frameBuffer, fadeFrameBufferTexture[0], copyCubeBuffer,
+                copyTextureBuffer);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        fadeRenderRequest.run();
+    }
+
+    private void startFade(final GPUImageFilter oldFilter, final long durationMillis,
+                           final Runnable renderRequest) {
+        finishFade();
+        initCopyFilter();
+        fadeFrameBuffer = new int[1];
+        fadeFrameBufferTexture = new int[1];
+        OpenGlUtils.createFrameBuffer(renderWidth, renderHeight, fadeFrameBuffer,
+                fadeFrameBufferTexture, 0);
+        fadingFilter = oldFilter;
+        fadeStartMillis = SystemClock.uptimeMillis();
+        fadeDurationMillis = durationMillis;
+        fadeRenderRequest = renderRequest;
+    }
+
+    private void finishFade() {
+        if (fadingFilter == null) {
+            return;
+        }
+        fadingFilter.destroy();
+        fadingFilter = null;
+        GlStateCache.deleteTextures(1, fadeFrameBufferTexture, 0);
+        GlStateCache.deleteFramebuffers(1, fadeFrameBuffer, 0);
+        fadeFrameBuffer = null;
+        fadeFrameBufferTexture = null;
+        fadeRenderRequest = null;
+    }
+
+    /**
+     * Lowers the resolution filters are rendered at while frames take longer than the budget,
+     * and raises it again once they fit, e.g. to keep a camera preview with heavy filters
+     * fluid on slow devices. The result is scaled up to the output.
+     *
+     * @param frameBudgetMillis the longest a frame should take, e.g. 33 for 30 frames per
+     *                          second, or 0 to always render at full resolution
+     */
+    public void setFrameBudget(final float frameBudgetMillis) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                float scale = governor.getScale();
+                governor.setBudget(frameBudgetMillis);
+                frameTimer.reset();
+                averageFrameMillis = governor.getAverageMillis();
+                if (governor.getScale() != scale) {
+                    updateRenderSize();
+                }
+            }
+        });
+    }
+
+    /**
+     * The resolution filters are rendered at relative to the output, below 1 while the frame
+     * budget is exceeded.
+     */
+    public float getResolutionScale() {
+        return resolutionScale;
+    }
+
+    /**
+     * The smoothed time frames take to draw, GPU included, at the current resolution scale while
+     * a frame budget is set, 0 otherwise or until it is measured.
+     */
+    public float getAverageFrameMillis() {
+        return averageFrameMillis;
+    }
+
+    private void beginFrame() {
+        GlStateCache.beginFrame();
+        requestedGlCalls = GlStateCache.getRequestedCallCount();
+        issuedGlCalls = GlStateCache.getIssuedCallCount();
+    }
+
+    /**
+     * How many GL state changes the last frame asked for, including the ones that were skipped
+     * because the state already had the value.
+     */
+    public int getRequestedGlCallCount() {
+        return requestedGlCalls;
+    }
+
+    /**
+     * How many GL state changes the last frame actually made.
+     */
+    public int getIssuedGlCallCount() {
+        return issuedGlCalls;
+    }
+
     @Override
     public void setFrameBuffer(int frameBuffer) {
         glFrameBuffer = frameBuffer;
@@ -175,6 +448,38 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
         backgroundBlue = blue;
     }
 
+    /**
+     * Draws images with mipmaps, so images much larger than the output are downscaled on the GPU
+     * without skipping pixels. Where the image texture cannot have mipmaps, the needed levels are
+     * built with a box filter whenever the image or its scaling changes. Applies to images set
+     * afterwards.
+     */
+    public void setMipmapEnabled(final boolean enabled) {
+        mipmapEnabled = enabled;
+    }
+
+    public boolean isMipmapEnabled() {
+        return mipmapEnabled;
+    }
+
+    private int getDrawTextureId() {
+        if (!reduceImage || glTextureId == NO_IMAGE) {
+            return glTextureId;
+        }
+        if (reducedImageDirty) {
+            reducedImageDirty = false;
+            int frameBuffer = OpenGlUtils.getBoundFrameBuffer();
+            if (mipmapBuilder == null) {
+                mipmapBuilder = new GPUImageMipmapBuilder();
+            }
+            glDrawTextureId = mipmapBuilder.build(glTextureId, imageWidth, imageHeight,
+                    scaledImageWidth, scaledImageHeight);
+            GlStateCache.bindFramebuffer(frameBuffer);
+            GLES20.glViewport(0, 0, renderWidth, renderHeight);
+        }
+        return glDrawTextureId;
+    }
+
     private void runAll(Queue<Runnable> queue) {
         synchronized (queue) {
             while (!queue.isEmpty()) {
@@ -199,6 +504,8 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
                 public void run() {
                     GPUImageNativeLibrary.YUVtoRBGA(data, width, height, glRgbBuffer.array());
                     glTextureId = OpenGlUtils.loadTexture(glRgbBuffer, width, height, glTextureId);
+                    imageConfig = null;
+                    reduceImage = false;
 
                     if (imageWidth != width) {
                         imageWidth = width;
@@ -233,14 +540,80 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
 
             @Override
             public void run() {
+                filterGeneration++;
+                finishFade();
                 final GPUImageFilter oldFilter = GPUImageRenderer.this.filter;
                 GPUImageRenderer.this.filter = filter;
                 if (oldFilter != null) {
                     oldFilter.destroy();
                 }
                 GPUImageRenderer.this.filter.ifNeedInit();
-                GLES20.glUseProgram(GPUImageRenderer.this.filter.getProgram());
-                GPUImageRenderer.this.filter.onOutputSizeChanged(outputWidth, outputHeight);
+                GlStateCache.useProgram(GPUImageRenderer.this.filter.getProgram());
+                GPUImageRenderer.this.filter.onOutputSizeChanged(renderWidth, renderHeight);
+            }
+        });
+    }
+
+    /**
+     * Switches to the filter without stalling the preview: its programs are compiled on a
+     * background thread while the current filter keeps drawing, then the filters are swapped
+     * between two frames, optionally fading from the old one to the new one. A later call to
+     * this or {@link #setFilter(GPUImageFilter)} cancels a switch that has not happened yet.
+     *
+     * @param filter         the new filter
+     * @param fadeMillis     how long the old filter fades out, 0 to switch at once
+     * @param renderRequest  requests a frame, e.g. {@link GPUImage#requestRender()}; run on the
+     *                       main thread once the filter is ready and on the GL thread during the
+     *                       fade
+     */
+    public void setFilterAsync(final GPUImageFilter filter, final long fadeMillis,
+                               final Runnable renderRequest) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                final int generation = ++filterGeneration;
+                final GPUImageShaderPrecompiler[] precompiler = new GPUImageShaderPrecompiler[1];
+                precompiler[0] = new GPUImageShaderPrecompiler(Collections.singletonList(filter),
+                        new GPUImageShaderPrecompiler.Listener() {
+                            @Override
+                            public void onProgress(final int compiled, final int total) {
+                                if (compiled == total) {
+                                    swapFilter(filter, generation, fadeMillis, renderRequest,
+                                            precompiler[0]);
+                                    renderRequest.run();
+                                }
+                            }
+                        });
+                precompiler[0].start();
+            }
+        });
+    }
+
+    private void swapFilter(final GPUImageFilter filter, final int generation,
+                            final long fadeMillis, final Runnable renderRequest,
+                            final GPUImageShaderPrecompiler precompiler) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != filterGeneration) {
+                    precompiler.discardUnused();
+                    return;
+                }
+                // Takes the precompiled programs, only framebuffers are created here
+                filter.ifNeedInit();
+                precompiler.discardUnused();
+                GlStateCache.useProgram(filter.getProgram());
+                filter.onOutputSizeChanged(renderWidth, renderHeight);
+                GPUImageFilter oldFilter = GPUImageRenderer.this.filter;
+                GPUImageRenderer.this.filter = filter;
+                if (oldFilter == null || oldFilter == filter) {
+                    return;
+                }
+                if (fadeMillis > 0 && outputWidth > 0 && outputHeight > 0) {
+                    startFade(oldFilter, fadeMillis, renderRequest);
+                } else {
+                    oldFilter.destroy();
+                }
             }
         });
     }
@@ -250,10 +623,14 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
 
             @Override
             public void run() {
-                GLES20.glDeleteTextures(1, new int[]{
+                GlStateCache.deleteTextures(1, new int[]{
                         glTextureId
                 }, 0);
                 glTextureId = NO_IMAGE;
+                if (mipmapBuilder != null) {
+                    mipmapBuilder.destroy();
+                    mipmapBuilder = null;
+                }
             }
         });
     }
@@ -268,10 +645,15 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
         }
 
         runOnDraw(() -> {
-            glTextureId = OpenGlUtils.loadTexture(bitmap, glTextureId, recycle);
-
+            // A texture of another size or format cannot be updated in place
+            boolean reallocate = glTextureId != NO_IMAGE && (bitmap.getConfig() != imageConfig
+                    || bitmap.getWidth() != imageWidth || bitmap.getHeight() != imageHeight);
             imageWidth = bitmap.getWidth();
             imageHeight = bitmap.getHeight();
+            imageConfig = bitmap.getConfig();
+            glTextureId = OpenGlUtils.loadTexture(bitmap, glTextureId, recycle, mipmapEnabled,
+                    reallocate);
+            reduceImage = mipmapEnabled && !OpenGlUtils.isMipmapSupported(imageWidth, imageHeight);
             adjustImageScaling();
         });
     }
@@ -302,6 +684,13 @@ public class GPUImageRenderer implements GLSurfaceView.Renderer, GLTextureView.R
         int imageWidthNew = Math.round(imageWidth * ratioMax);
         int imageHeightNew = Math.round(imageHeight * ratioMax);
 
+        // The size the whole image is drawn at, cropped or fitted into the output
+        float drawnRatio = scaleType == GPUImage.ScaleType.CENTER_CROP
+                ? ratioMax : Math.min(ratio1, ratio2);
+        scaledImageWidth = Math.round(imageWidth * drawnRatio);
+        scaledImageHeight = Math.round(imageHeight * drawnRatio);
+        reducedImageDirty = true;
+
         float ratioWidth = imageWidthNew / outputWidth;
         float ratioHeight = imageHeightNew / outputHeight;
 
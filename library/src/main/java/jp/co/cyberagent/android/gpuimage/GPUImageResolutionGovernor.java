@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+/**
+ * Picks the resolution filters are rendered at from how long frames take, for previews whose
+ * filters are too heavy for the device at full resolution.
+ * <p>
+ * Frame time is how long drawing the filter takes, GPU included, see {@link GPUImageFrameTimer},
+ * so it does not depend on the display or camera frame rate and idle time between frames on
+ * demand is not counted. Between measurements every frame counts with the latest one. The scale steps down when the smoothed frame time stays
+ * over the budget, and probes one step up after a while within it. A probe that has to step down
+ * again soon doubles the wait before the next one, so a chain that only just misses the budget
+ * does not switch back and forth.
+ */
+class GPUImageResolutionGovernor {
+    static final float[] SCALES = {1.0f, 0.75f, 0.5f, 0.375f, 0.25f};
+
+    private static final float SMOOTHING = 0.1f;
+    private static final float OVER_BUDGET = 1.1f;
+    private static final int STEP_DOWN_FRAMES = 15;
+    private static final int STEP_UP_FRAMES = 120;
+    private static final int MAX_STEP_UP_FRAMES = 3600;
+
+    private float budgetMillis;
+    private int level;
+    private float averageMillis;
+    private int overBudgetFrames;
+    private int withinBudgetFrames;
+    private int stepUpFrames = STEP_UP_FRAMES;
+    private int framesSinceStepUp = Integer.MAX_VALUE;
+
+    /**
+     * @param budgetMillis the longest a frame should take, 0 to always render at full resolution
+     */
+    void setBudget(final float budgetMillis) {
+        this.budgetMillis = budgetMillis;
+        if (budgetMillis <= 0) {
+            level = 0;
+        }
+        stepUpFrames = STEP_UP_FRAMES;
+        settle();
+    }
+
+    float getBudget() {
+        return budgetMillis;
+    }
+
+    float getScale() {
+        return SCALES[level];
+    }
+
+    /**
+     * The smoothed frame time at the current scale, 0 until it is measured.
+     */
+    float getAverageMillis() {
+        return averageMillis;
+    }
+
+    /**
+     * Called after every frame with the latest measured time a frame took to draw.
+     *
+     * @return whether the scale changed
+     */
+    boolean onFrame(final float millis) {
+        if (budgetMillis <= 0) {
+            return false;
+        }
+        averageMillis = averageMillis == 0
+                ? millis : averageMillis + SMOOTHING * (millis - averageMillis);
+        if (framesSinceStepUp < Integer.MAX_VALUE) {
+            framesSinceStepUp++;
+        }
+
+        if (averageMillis > budgetMillis * OVER_BUDGET) {
+            withinBudgetFrames = 0;
+            if (++overBudgetFrames >= STEP_DOWN_FRAMES && level < SCALES.length - 1) {
+                if (framesSinceStepUp < stepUpFrames) {
+                    // The last probe did not fit, wait longer before the next one
+                    stepUpFrames = Math.min(stepUpFrames * 2, MAX_STEP_UP_FRAMES);
+                }
+                level++;
+                settle();
+                return true;
+            }
+        } else {
+            overBudgetFrames = 0;
+            if (framesSinceStepUp == stepUpFrames) {
+                // The probe held, so the next one can come sooner again
+                stepUpFrames = STEP_UP_FRAMES;
+            }
+            if (averageMillis <= budgetMillis && ++withinBudgetFrames >= stepUpFrames
+                    && level > 0) {
+                level--;
+                settle();
+                framesSinceStepUp = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void settle() {
+        averageMillis = 0;
+        overBudgetFrames = 0;
+        withinBudgetFrames = 0;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+/**
+ * Compiles and links the programs of filters on a background thread, with an EGL context that
+ * shares objects with the renderer's. When the filters are initialized on the renderer they take
+ * the linked programs instead of compiling, so switching to a filter for the first time does not
+ * stall a frame. Each precompiled program is used by one filter instance.
+ * <p>
+ * Filters report their programs through {@link GPUImageFilter#collectPrograms(List)}, which
+ * includes the passes of multi-pass filters and the members of groups. Passes a filter only
+ * builds later, e.g. after its radius changed, are still compiled on first use. Some drivers
+ * also finish compiling on the first draw, which no precompilation can move.
+ * <p>
+ * All precompilers share one thread, which keeps its context while it compiles for the same
+ * renderer context and drops it once that context goes away.
+ */
+public class GPUImageShaderPrecompiler {
+    private static final String TAG = "GPUImageShaderPrecompiler";
+
+    // One thread compiles for every renderer, keeping its context while the renderer's lives
+    private static Handler worker;
+    // Only used on the compiler thread
+    private static EGLDisplay display;
+    private static EGLContext workerShareContext = EGL14.EGL_NO_CONTEXT;
+    private static EGLContext context = EGL14.EGL_NO_CONTEXT;
+    private static EGLSurface surface = EGL14.EGL_NO_SURFACE;
+
+    /**
+     * Called on the main thread while programs are compiled.
+     */
+    public interface Listener {
+        /**
+         * @param compiled how many programs are done, including ones that failed
+         * @param total    how many programs are compiled, {@code compiled == total} once done
+         */
+        void onProgress(int compiled, int total);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final EGLContext shareContext;
+    private final List<String[]> programs;
+    // The programs linked, by index in programs, 0 where compiling failed
+    private final int[] linkedPrograms;
+    private final Listener listener;
+
+    /**
+     * Must be called on the renderer's GL thread, whose context the programs are shared with.
+     *
+     * @param filters  the filters to compile the programs of, including their passes
+     * @param listener notified of the progress, may be null
+     */
+    GPUImageShaderPrecompiler(final List<GPUImageFilter> filters, final Listener listener) {
+        shareContext = EGL14.eglGetCurrentContext();
+        programs = new ArrayList<>();
+        for (GPUImageFilter filter : filters) {
+            filter.collectPrograms(programs);
+        }
+        linkedPrograms = new int[programs.size()];
+        this.listener = listener;
+    }
+
+    /**
+     * Checks whether the filter and the filters and passes it draws through would be initialized
+     * on the current context without compiling. Must be called on the GL thread.
+     */
+    public static boolean isPrecompiled(final GPUImageFilter filter) {
+        List<String[]> programs = new ArrayList<>();
+        filter.collectPrograms(programs);
+        EGLContext context = EGL14.eglGetCurrentContext();
+        for (String[] program : programs) {
+            if (!OpenGlUtils.isProgramPrecompiled(context, program[0], program[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts compiling on the compiler thread, after what other precompilers queued.
+     */
+    void start() {
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                compile();
+            }
+        });
+    }
+
+    /**
+     * Deletes the programs no filter took. Must be called on the renderer's GL thread once the
+     * filters that were compiled for are initialized.
+     */
+    void discardUnused() {
+        for (int i = 0; i < linkedPrograms.length; i++) {
+            String[] sources = programs.get(i);
+            if (linkedPrograms[i] != 0 && OpenGlUtils.removePrecompiledProgram(shareContext,
+                    sources[0], sources[1], linkedPrograms[i])) {
+                GlStateCache.deleteProgram(linkedPrograms[i]);
+            }
+        }
+    }
+
+    /**
+     * Forgets what was compiled for a context that went away, and drops the compiler's context
+     * sharing objects with it, which would otherwise keep them alive.
+     */
+    static void release(final EGLContext shareContext) {
+        OpenGlUtils.discardPrecompiledPrograms(shareContext);
+        getWorker().post(new Runnable() {
+            @Override
+            public void run() {
+                // Also drops what a compile still running for it added meanwhile
+                OpenGlUtils.discardPrecompiledPrograms(shareContext);
+                if (shareContext.equals(workerShareContext)) {
+                    releaseContext();
+                }
+            }
+        });
+    }
+
+    private static synchronized Handler getWorker() {
+        if (worker == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            worker = new Handler(thread.getLooper());
+        }
+        return worker;
+    }
+
+    private void compile() {
+        final int total = programs.size();
+        int compiled = 0;
+        try {
+            if (!makeCurrent(shareContext)) {
+                return;
+            }
+            for (int i = 0; i < total; i++) {
+                String[] sources = programs.get(i);
+                int program = OpenGlUtils.loadProgram(sources[0], sources[1]);
+                // The program must be complete before the renderer's context uses it
+                GLES20.glFinish();
+                if (program != 0) {
+                    linkedPrograms[i] = program;
+                    OpenGlUtils.addPrecompiledProgram(shareContext, sources[0], sources[1], program);
+                }
+                compiled++;
+                notifyProgress(compiled, total);
+            }
+        } finally {
+            if (compiled < total) {
+                // The rest compiles on first use
+                notifyProgress(total, total);
+            }
+        }
+    }
+
+    /**
+     * Makes a context sharing objects with the given one current on the compiler thread. The
+     * context stays current afterwards, so compiling for the same renderer again reuses it.
+     */
+    private static boolean makeCurrent(final EGLContext shareContext) {
+        if (!context.equals(EGL14.EGL_NO_CONTEXT) && shareContext.equals(workerShareContext)) {
+            return true;
+        }
+        releaseContext();
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        int[] version = new int[2];
+        // The display is the renderer's, so it is never terminated here
+        if (shareContext.equals(EGL14.EGL_NO_CONTEXT)
+                || !EGL14.eglInitialize(display, version, 0, version, 1)) {
+            Log.w(TAG, "No context to share programs with");
+            return false;
+        }
+        int[] value = new int[1];
+        EGL14.eglQueryContext(display, shareContext, EGL14.EGL_CONFIG_ID, value, 0);
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] configCount = new int[1];
+        int[] configAttributes = {EGL14.EGL_CONFIG_ID, value[0], EGL14.EGL_NONE};
+        if (!EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1,
+                configCount, 0) || configCount[0] == 0) {
+            Log.w(TAG, "Cannot find the renderer's config");
+            return false;
+        }
+        EGL14.eglQueryContext(display, shareContext, EGL14.EGL_CONTEXT_CLIENT_VERSION,
+                value, 0);
+        int[] contextAttributes = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, Math.max(2, value[0]), EGL14.EGL_NONE
+        };
+        EGLContext created = EGL14.eglCreateContext(display, configs[0], shareContext,
+                contextAttributes, 0);
+        if (created == null || created.equals(EGL14.EGL_NO_CONTEXT)) {
+            Log.w(TAG, "Cannot create a shared context");
+            return false;
+        }
+        context = created;
+        surface = EGL14.eglCreatePbufferSurface(display, configs[0],
+                new int[]{EGL14.EGL_WIDTH, 1, EGL14.EGL_HEIGHT, 1, EGL14.EGL_NONE}, 0);
+        if (surface == null) {
+            surface = EGL14.EGL_NO_SURFACE;
+        }
+        // Window configs may not support pbuffers, surfaceless contexts need no surface
+        if (!EGL14.eglMakeCurrent(display, surface, surface, context)) {
+            Log.w(TAG, "Cannot make the shared context current");
+            releaseContext();
+            return false;
+        }
+        workerShareContext = shareContext;
+        return true;
+    }
+
+    private static void releaseContext() {
+        if (!context.equals(EGL14.EGL_NO_CONTEXT)) {
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
+                    EGL14.EGL_NO_CONTEXT);
+            if (!surface.equals(EGL14.EGL_NO_SURFACE)) {
+                EGL14.eglDestroySurface(display, surface);
+            }
+            // The programs live on with the renderer's context
+            EGL14.eglDestroyContext(display, context);
+            EGL14.eglReleaseThread();
+        }
+        context = EGL14.EGL_NO_CONTEXT;
+        surface = EGL14.EGL_NO_SURFACE;
+        workerShareContext = EGL14.EGL_NO_CONTEXT;
+    }
+
+    private void notifyProgress(final int compiled, final int total) {
+        if (listener == null) {
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onProgress(compiled, total);
+            }
+        });
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
+
+/**
+ * Renders one image through many filters into the tiles of a shared atlas, so all results are
+ * read back at once instead of once per filter. Used by
+ * {@link GPUImage#getBitmapForMultipleFilters(Bitmap, int, List, GPUImage.ResponseListener)}.
+ * <p>
+ * Each filter draws into a tile sized framebuffer first, so multi-pass filters keep the viewport
+ * at the origin they expect, and the result is then copied into its tile of the atlas. Filters
+ * that do not fit into one atlas are spread over several pages of the same size.
+ */
+class GPUImageThumbnailRenderer implements GLSurfaceView.Renderer {
+
+    /**
+     * The largest atlas side, within the texture, viewport and pbuffer limits of any device.
+     */
+    static final int MAX_ATLAS_SIZE = 2048;
+
+    private final Bitmap source;
+    private final List<GPUImageFilter> filters;
+    private final int tileWidth;
+    private final int tileHeight;
+    private final int columns;
+    private final int rows;
+    private final GPUImageFilter copyFilter = new GPUImageFilter();
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+    private final FloatBuffer glFrameBufferTextureBuffer;
+    private final int[] frameBuffers = new int[1];
+    private final int[] frameBufferTextures = new int[1];
+
+    private int sourceTexture = OpenGlUtils.NO_TEXTURE;
+    private int page;
+    private boolean destroyed;
+
+    /**
+     * @param source  the image at tile size
+     * @param filters the filters, one tile each
+     */
+    GPUImageThumbnailRenderer(final Bitmap source, final List<GPUImageFilter> filters) {
+        this.source = source;
+        this.filters = filters;
+        tileWidth = source.getWidth();
+        tileHeight = source.getHeight();
+        columns = Math.max(1, Math.min(filters.size(), MAX_ATLAS_SIZE / tileWidth));
+        rows = Math.max(1, Math.min((filters.size() + columns - 1) / columns,
+                MAX_ATLAS_SIZE / tileHeight));
+
+        glCubeBuffer = createBuffer(CUBE);
+        glTextureBuffer = createBuffer(TEXTURE_NO_ROTATION);
+        glFrameBufferTextureBuffer = createBuffer(TEXTURE_FRAMEBUFFER);
+    }
+
+    private static FloatBuffer createBuffer(final float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    int getAtlasWidth() {
+        return columns * tileWidth;
+    }
+
+    int getAtlasHeight() {
+        return rows * tileHeight;
+    }
+
+    int getPageCount() {
+        return (filters.size() + columns * rows - 1) / (columns * rows);
+    }
+
+    /**
+     * Selects the filters the next frame renders.
+     */
+    void setPage(final int page) {
+        this.page = page;
+    }
+
+    /**
+     * The number of tiles on the current page.
+     */
+    int getTileCount() {
+        return Math.min(columns * rows, filters.size() - page * columns * rows);
+    }
+
+    /**
+     * Cuts the result of a tile of the current page out of the atlas read back by
+     * {@link PixelBuffer}, whose first row is the top of the atlas.
+     */
+    Bitmap getTile(final Bitmap atlas, final int tile) {
+        return Bitmap.createBitmap(atlas, (tile % columns) * tileWidth, (tile / columns) * tileHeight,
+                tileWidth, tileHeight);
+    }
+
+    @Override
+    public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
+        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        sourceTexture = OpenGlUtils.loadTexture(source, OpenGlUtils.NO_TEXTURE, false);
+        OpenGlUtils.createFrameBuffer(tileWidth, tileHeight, frameBuffers, frameBufferTextures, 0);
+        copyFilter.ifNeedInit();
+        copyFilter.onOutputSizeChanged(tileWidth, tileHeight);
+        for (GPUImageFilter filter : filters) {
+            filter.ifNeedInit();
+            filter.onOutputSizeChanged(tileWidth, tileHeight);
+        }
+    }
+
+    @Override
+    public void onSurfaceChanged(final GL10 gl, final int width, final int height) {
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDrawFrame(final GL10 gl) {
+        if (destroyed) {
+            return;
+        }
+        GlStateCache.beginFrame();
+        GlStateCache.bindFramebuffer(0);
+        GlStateCache.clearColor(0, 0, 0, 1);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        int first = page * columns * rows;
+        for (int tile = 0, count = getTileCount(); tile < count; tile++) {
+            GlStateCache.bindFramebuffer(frameBuffers[0]);
+            GLES20.glViewport(0, 0, tileWidth, tileHeight);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            filters.get(first + tile).onDraw(frameBuffers[0], sourceTexture,
+                    glCubeBuffer, glTextureBuffer);
+
+            // Tiles run left to right and top to bottom, GL rows start at the bottom
+            GlStateCache.bindFramebuffer(0);
+            GLES20.glViewport((tile % columns) * tileWidth,
+                    getAtlasHeight() - (tile / columns + 1) * tileHeight, tileWidth, tileHeight);
+            copyFilter.onDraw(0, frameBufferTextures[0], glCubeBuffer, glFrameBufferTextureBuffer);
+        }
+        GLES20.glViewport(0, 0, getAtlasWidth(), getAtlasHeight());
+    }
+
+    /**
+     * Releases the GL resources and destroys the filters. Must be called on the GL thread.
+     */
+    void destroy() {
+        destroyed = true;
+        GlStateCache.deleteTextures(1, new int[]{sourceTexture}, 0);
+        GlStateCache.deleteTextures(1, frameBufferTextures, 0);
+        GlStateCache.deleteFramebuffers(1, frameBuffers, 0);
+        copyFilter.destroy();
+        for (GPUImageFilter filter : filters) {
+            filter.destroy();
+        }
+    }
+}
@@ -42,6 +42,7 @@ import java.io.FileOutputStream;
 import java.util.concurrent.Semaphore;
 
 import jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.util.BitmapPool;
 import jp.co.cyberagent.android.gpuimage.util.Rotation;
 
 import static jp.co.cyberagent.android.gpuimage.GPUImage.SURFACE_TYPE_SURFACE_VIEW;
@@ -213,6 +214,16 @@ public class GPUImageView extends FrameLayout {
         gpuImage.setScaleType(scaleType);
     }
 
+    /**
+     * Sets whether images are downscaled on the GPU through mipmaps instead of on the CPU.
+     *
+     * @param enabled true to scale images on the GPU
+     * @see GPUImage#setMipmapEnabled(boolean)
+     */
+    public void setMipmapEnabled(boolean enabled) {
+        gpuImage.setMipmapEnabled(enabled);
+    }
+
     /**
      * Sets the rotation of the displayed image.
      *
@@ -234,6 +245,18 @@ public class GPUImageView extends FrameLayout {
         requestRender();
     }
 
+    /**
+     * Set the filter without stalling the preview while it compiles, fading from the current
+     * filter to the new one.
+     *
+     * @param filter     Filter that should be applied on the image.
+     * @param fadeMillis how long the fade takes, 0 to switch without one
+     */
+    public void setFilterAsync(GPUImageFilter filter, long fadeMillis) {
+        this.filter = filter;
+        gpuImage.setFilterAsync(filter, fadeMillis);
+    }
+
     /**
      * Get the current applied filter.
      *
@@ -270,6 +293,24 @@ public class GPUImageView extends FrameLayout {
         gpuImage.setImage(file);
     }
 
+    /**
+     * Decodes an image ahead of time, so setting it later is immediate.
+     *
+     * @param uri the uri of the image
+     */
+    public void prefetchImage(final Uri uri) {
+        gpuImage.prefetchImage(uri);
+    }
+
+    /**
+     * Decodes an image ahead of time, so setting it later is immediate.
+     *
+     * @param file the file of the image
+     */
+    public void prefetchImage(final File file) {
+        gpuImage.prefetchImage(file);
+    }
+
     public void requestRender() {
         if (surfaceView instanceof GLSurfaceView) {
             ((GLSurfaceView) surfaceView).requestRender();
@@ -394,6 +435,7 @@ public class GPUImageView extends FrameLayout {
 
     /**
      * Capture the current image with the size as it is displayed and retrieve it as Bitmap.
+     * The bitmap is taken from {@link BitmapPool#getDefault()}, give it back there when done.
      *
      * @return current output as Bitmap
      * @throws InterruptedException
@@ -405,7 +447,7 @@ public class GPUImageView extends FrameLayout {
         final int height = surfaceView.getMeasuredHeight();
 
         // Take picture on OpenGL thread
-        final Bitmap resultBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Bitmap resultBitmap = BitmapPool.getDefault().get(width, height, Bitmap.Config.ARGB_8888);
         gpuImage.runOnGLThread(new Runnable() {
             @Override
             public void run() {
@@ -9,6 +9,9 @@ import android.opengl.EGLSurface;
 import android.opengl.GLES20;
 import android.util.Log;
 
+import jp.co.cyberagent.android.gpuimage.util.BitmapPool;
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+
 public class OffscreenPixelBuffer {
 	private static final boolean LIST_CONFIGS = true;
 	private static final boolean LIST_OPEN_GL_CONTEXT_VALUES = true;
@@ -26,6 +29,9 @@ public class OffscreenPixelBuffer {
 	private int[] frameBuffers;
 	private int[] textures;
 
+	// More than the error flags of any implementation, see glGetError
+	private static final int MAX_PENDING_ERRORS = 16;
+
 	private String mThreadOwner;
 
 	public OffscreenPixelBuffer(final int width, final int height) {
@@ -60,11 +66,22 @@ public class OffscreenPixelBuffer {
 			return null;
 		}
 
+		// Drop errors left over from earlier calls, so only errors of this frame are seen. A lost
+		// context can keep reporting an error, so the number of flags drained is bounded.
+		for (int i = 0; i < MAX_PENDING_ERRORS; i++) {
+			if (GLES20.glGetError() == GLES20.GL_NO_ERROR) {
+				break;
+			}
+		}
+
 		// Call the renderer draw routine (it seems that some filters do not
 		// work if this is only called once)
 		renderer.onDrawFrame();
 		renderer.onDrawFrame();
 
+		if (!isFrameValid()) {
+			return null;
+		}
 		return convertToBitmap();
 	}
 
@@ -83,12 +100,30 @@ public class OffscreenPixelBuffer {
 		this.renderer.onSurfaceChanged(width, height);
 	}
 
+	/**
+	 * Checks that the frame was rendered into a complete framebuffer without GL errors, which is
+	 * far cheaper than reading the pixels back to compare them against a blank bitmap. Leaves
+	 * the framebuffer the frame was rendered into bound for reading it back.
+	 */
+	private boolean isFrameValid() {
+		int error = GLES20.glGetError();
+		if (error != GLES20.GL_NO_ERROR) {
+			Log.e(TAG, "getBitmap: rendering failed, error: " + error);
+			return false;
+		}
+		GlStateCache.bindFramebuffer(getFrameBufferObject());
+		int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+		if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+			Log.e(TAG, "getBitmap: framebuffer is not complete, status: " + status);
+			return false;
+		}
+		return true;
+	}
+
 	private Bitmap convertToBitmap() {
-		Bitmap emptyBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-		Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		Bitmap result = BitmapPool.getDefault().get(width, height, Bitmap.Config.ARGB_8888);
 		GPUImageNativeLibrary.adjustBitmap(result);
-
-		return result.sameAs(emptyBitmap) ? null : result;
+		return result;
 	}
 
 	private boolean createFrameBufferObject() {
@@ -103,7 +138,7 @@ public class OffscreenPixelBuffer {
 			Log.d(TAG, "texture = " + getTexture());
 			Log.d(TAG, "framebuffer = " + getFrameBufferObject());
 
-			GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, getFrameBufferObject());
+			GlStateCache.bindFramebuffer(getFrameBufferObject());
 			GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, getTexture(), 0);
 			Log.d(TAG, "framebuffer object initialization error status: " + GLES20.glGetError());
 
@@ -125,7 +160,7 @@ public class OffscreenPixelBuffer {
 
 		textures = new int[1];
 		GLES20.glGenTextures(1, textures, 0);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, getTexture());
+		GlStateCache.bindTexture(getTexture());
 		GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
 		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
 		GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
@@ -134,7 +169,7 @@ public class OffscreenPixelBuffer {
 
 		int errorStatus = GLES20.glGetError();
 		Log.d(TAG, "framebuffer texture initialization error status: " + errorStatus);
-		GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+		GlStateCache.bindTexture(0);
 
 		if (errorStatus != GLES20.GL_NO_ERROR) {
 			destroyFrameBufferTexture();
@@ -167,11 +202,11 @@ public class OffscreenPixelBuffer {
 	private void destroyFrameBufferObject() {
 		destroyFrameBufferTexture();
 
-		GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+		GlStateCache.bindFramebuffer(0);
 
 		if (frameBuffers != null) {
 			Log.d(TAG, "delete framebuffer object");
-			GLES20.glDeleteFramebuffers(1, frameBuffers, 0);
+			GlStateCache.deleteFramebuffers(1, frameBuffers, 0);
 			frameBuffers = null;
 		}
 	}
@@ -179,7 +214,7 @@ public class OffscreenPixelBuffer {
 	private void destroyFrameBufferTexture() {
 		if (textures != null) {
 			Log.d(TAG, "delete framebuffer texture");
-			GLES20.glDeleteTextures(1, textures, 0);
+			GlStateCache.deleteTextures(1, textures, 0);
 			textures = null;
 		}
 	}
@@ -267,6 +302,7 @@ public class OffscreenPixelBuffer {
 
 					if (eglContext != null && eglSurface != null) {
 						EGL14.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext);
+						GlStateCache.onContextCreated();
 
 						// Record thread owner of OpenGL context
 						mThreadOwner = Thread.currentThread().getName();
@@ -12,6 +12,9 @@ import android.graphics.Bitmap;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
 
+import jp.co.cyberagent.android.gpuimage.util.BitmapPool;
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.egl.EGLContext;
@@ -78,6 +81,7 @@ public class PixelBuffer {
 
         eglSurface = egl10.eglCreatePbufferSurface(eglDisplay, eglConfig, attribList);
         egl10.eglMakeCurrent(eglDisplay, eglSurface, eglSurface, eglContext);
+        GlStateCache.onContextCreated();
 
         gl10 = (GL10) eglContext.getGL();
 
@@ -100,6 +104,19 @@ public class PixelBuffer {
     }
 
     public Bitmap getBitmap() {
+        // Call the renderer draw routine (it seems that some filters do not
+        // work if this is only called once)
+        return getBitmap(2);
+    }
+
+    /**
+     * Draws the given number of frames and reads the last one back.
+     *
+     * @param frames the number of frames to draw, 1 for renderers that draw a complete frame
+     *               in every call
+     * @return the rendered image, or null without a renderer or on the wrong thread
+     */
+    public Bitmap getBitmap(final int frames) {
         // Do we have a renderer?
         if (renderer == null) {
             Log.e(TAG, "getBitmap: Renderer was not set.");
@@ -112,10 +129,9 @@ public class PixelBuffer {
             return null;
         }
 
-        // Call the renderer draw routine (it seems that some filters do not
-        // work if this is only called once)
-        renderer.onDrawFrame(gl10);
-        renderer.onDrawFrame(gl10);
+        for (int i = 0; i < frames; i++) {
+            renderer.onDrawFrame(gl10);
+        }
         convertToBitmap();
         return bitmap;
     }
@@ -186,7 +202,7 @@ public class PixelBuffer {
     }
 
     private void convertToBitmap() {
-        bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap = BitmapPool.getDefault().get(width, height, Bitmap.Config.ARGB_8888);
         GPUImageNativeLibrary.adjustBitmap(bitmap);
     }
 }
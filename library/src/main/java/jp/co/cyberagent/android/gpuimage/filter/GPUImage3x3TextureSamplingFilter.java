@@ -113,8 +113,8 @@ public class GPUImage3x3TextureSamplingFilter extends GPUImageFilter {
 
     public void setLineSize(final float size) {
         lineSize = size;
-        texelWidth = size / getOutputWidth();
-        texelHeight = size / getOutputHeight();
+        texelWidth = size * getRenderScale() / getOutputWidth();
+        texelHeight = size * getRenderScale() / getOutputHeight();
         updateTexelValues();
     }
 
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.cyberagent.android.gpuimage.GPUImage;
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+
+/**
+ * Collapses a chain of per-pixel color filters (tone curve, levels, color balance, hue, white
+ * balance, ...) into a single lookup, so every pixel costs one lookup instead of the whole chain.
+ * <p>
+ * The chain is drawn once over the identity lookup image of {@link GPUImageLookupFilter} and the
+ * result is used as the lookup texture. The lookup is baked again lazily on the next draw after a
+ * parameter of the chain changes. The last {@link #MAX_CACHED_LOOKUPS} lookups are kept, keyed
+ * by the {@link GPUImageFilter#getBakeKey()} of the filters, so switching back and forth between
+ * presets does not re-bake. A chain with a filter without a bake key is baked again after every
+ * change.
+ * <p>
+ * Only filters whose output depends on the color of the same pixel alone can be baked; blurs,
+ * edge detection, vignettes and the like cannot.
+ */
+public class GPUImageBakedLookupFilter extends GPUImageLookupFilter {
+
+    /**
+     * The number of baked lookups kept per filter, 1MB of GPU memory each.
+     */
+    public static final int MAX_CACHED_LOOKUPS = 4;
+
+    private static final int LOOKUP_SIZE = 512;
+
+    private final GPUImageFilter colorFilter;
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+    private final LinkedHashMap<Object, Integer> cachedSlots =
+            new LinkedHashMap<>(MAX_CACHED_LOOKUPS, 0.75f, true);
+    private final int[] lookupFrameBuffers = new int[MAX_CACHED_LOOKUPS];
+    private final int[] lookupTextures = new int[MAX_CACHED_LOOKUPS];
+
+    private int identityTexture = OpenGlUtils.NO_TEXTURE;
+    private Object lookupKey;
+    private boolean baked;
+
+    public GPUImageBakedLookupFilter(final GPUImageFilter colorFilter) {
+        this(colorFilter, 1.0f);
+    }
+
+    /**
+     * @param colorFilter a per-pixel color filter, usually a {@link GPUImageFilterGroup}
+     * @param intensity   how much of the baked look to mix in, from 0.0 to 1.0
+     */
+    public GPUImageBakedLookupFilter(final GPUImageFilter colorFilter, final float intensity) {
+        super(intensity);
+        this.colorFilter = colorFilter;
+
+        glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glCubeBuffer.put(CUBE).position(0);
+
+        glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+    }
+
+    public GPUImageFilter getColorFilter() {
+        return colorFilter;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        colorFilter.ifNeedInit();
+        colorFilter.onOutputSizeChanged(LOOKUP_SIZE, LOOKUP_SIZE);
+        identityTexture = OpenGlUtils.loadTexture(createIdentityBitmap(),
+                OpenGlUtils.NO_TEXTURE, true);
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        colorFilter.collectPrograms(programs);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        colorFilter.destroy();
+        GlStateCache.deleteTextures(1, new int[]{identityTexture}, 0);
+        identityTexture = OpenGlUtils.NO_TEXTURE;
+        int slots = cachedSlots.size();
+        GlStateCache.deleteTextures(slots, lookupTextures, 0);
+        GlStateCache.deleteFramebuffers(slots, lookupFrameBuffers, 0);
+        cachedSlots.clear();
+        baked = false;
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        if (isInitialized() && (!baked || hasPendingChanges(colorFilter))) {
+            updateLookup();
+        }
+        super.onDraw(frameBuffer, textureId, cubeBuffer, textureBuffer);
+    }
+
+    private void updateLookup() {
+        Object key = getBakeKey(colorFilter);
+        if (key == null) {
+            // Never equal to another key, so the slot is only reused once it is the eldest
+            key = new Object();
+        }
+        Integer slot = cachedSlots.get(key);
+        if (slot != null) {
+            // The lookup is already baked, only bring the uniforms of the chain up to date
+            runPendingChanges(colorFilter);
+        } else {
+            slot = obtainSlot();
+            int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+            GlStateCache.bindFramebuffer(lookupFrameBuffers[slot]);
+            GLES20.glViewport(0, 0, LOOKUP_SIZE, LOOKUP_SIZE);
+            colorFilter.onDraw(lookupFrameBuffers[slot], identityTexture,
+                    glCubeBuffer, glTextureBuffer);
+            GlStateCache.bindFramebuffer(targetFrameBuffer);
+            GLES20.glViewport(0, 0, getOutputWidth(), getOutputHeight());
+            cachedSlots.put(key, slot);
+        }
+        lookupKey = key;
+        baked = true;
+        setTexture(lookupTextures[slot]);
+    }
+
+    private int obtainSlot() {
+        if (cachedSlots.size() < MAX_CACHED_LOOKUPS) {
+            int slot = cachedSlots.size();
+            OpenGlUtils.createFrameBuffer(LOOKUP_SIZE, LOOKUP_SIZE,
+                    lookupFrameBuffers, lookupTextures, slot);
+            return slot;
+        }
+        // Reuse the framebuffer of the least recently used lookup
+        Iterator<Map.Entry<Object, Integer>> eldest = cachedSlots.entrySet().iterator();
+        int slot = eldest.next().getValue();
+        eldest.remove();
+        return slot;
+    }
+
+    /**
+     * The hash of the bake key the current lookup was baked with.
+     */
+    public int getLookupHash() {
+        return lookupKey != null ? lookupKey.hashCode() : 0;
+    }
+
+    /**
+     * Bakes the given per-pixel color filter into a 512x512 lookup image that can be loaded into
+     * {@link GPUImageLookupFilter#setBitmap(Bitmap)}, e.g. to save a preset. Renders offscreen, so
+     * call it off the UI thread.
+     */
+    public static Bitmap createLookupBitmap(final Context context, final GPUImageFilter colorFilter) {
+        GPUImage gpuImage = new GPUImage(context);
+        gpuImage.setFilter(colorFilter);
+        return gpuImage.getBitmapWithFilterApplied(createIdentityBitmap(), true);
+    }
+
+    private static boolean hasPendingChanges(final GPUImageFilter filter) {
+        if (filter.hasPendingOnDrawTasks()) {
+            return true;
+        }
+        if (filter instanceof GPUImageFilterGroup) {
+            for (GPUImageFilter child : ((GPUImageFilterGroup) filter).getFilters()) {
+                if (hasPendingChanges(child)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void runPendingChanges(final GPUImageFilter filter) {
+        GlStateCache.useProgram(filter.getProgram());
+        filter.runPendingOnDrawTasks();
+        if (filter instanceof GPUImageFilterGroup) {
+            for (GPUImageFilter child : ((GPUImageFilterGroup) filter).getFilters()) {
+                runPendingChanges(child);
+            }
+        }
+    }
+
+    /**
+     * The bake keys of the filter, or of the filters of a group in order, null if a filter has
+     * none.
+     */
+    static Object getBakeKey(final GPUImageFilter filter) {
+        if (!(filter instanceof GPUImageFilterGroup)) {
+            return filter.getBakeKey();
+        }
+        List<Object> keys = new ArrayList<>();
+        for (GPUImageFilter child : ((GPUImageFilterGroup) filter).getFilters()) {
+            Object key = getBakeKey(child);
+            if (key == null) {
+                return null;
+            }
+            keys.add(key);
+        }
+        return keys;
+    }
+}
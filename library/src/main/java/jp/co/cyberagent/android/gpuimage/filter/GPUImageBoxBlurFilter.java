@@ -20,6 +20,8 @@ package jp.co.cyberagent.android.gpuimage.filter;
  * A hardware-accelerated 9-hit box blur of an image
  * <p>
  * scaling: for the size of the applied blur, default of 1.0
+ * <p>
+ * For blur sizes above 4 use {@link GPUImagePyramidBlurFilter}, whose cost does not grow with the radius.
  */
 public class GPUImageBoxBlurFilter extends GPUImageTwoPassTextureSamplingFilter {
     public static final String VERTEX_SHADER =
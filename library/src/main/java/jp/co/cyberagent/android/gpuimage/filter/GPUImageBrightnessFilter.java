@@ -63,4 +63,9 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
         this.brightness = brightness;
         setFloat(brightnessLocation, this.brightness);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(brightness);
+    }
 }
@@ -194,4 +194,9 @@ public class GPUImageColorBalanceFilter extends GPUImageFilter {
         this.preserveLuminosity = preserveLuminosity;
         setInteger(preserveLuminosityLocation, preserveLuminosity ? 1 : 0);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(showdows, midtones, highlights, preserveLuminosity);
+    }
 }
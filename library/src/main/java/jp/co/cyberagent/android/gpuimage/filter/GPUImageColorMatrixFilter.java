@@ -81,4 +81,9 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
         this.colorMatrix = colorMatrix;
         setUniformMatrix4f(colorMatrixLocation, colorMatrix);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(intensity, colorMatrix);
+    }
 }
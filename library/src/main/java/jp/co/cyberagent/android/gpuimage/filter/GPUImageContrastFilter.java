@@ -65,4 +65,9 @@ public class GPUImageContrastFilter extends GPUImageFilter {
         this.contrast = contrast;
         setFloat(contrastLocation, this.contrast);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(contrast);
+    }
 }
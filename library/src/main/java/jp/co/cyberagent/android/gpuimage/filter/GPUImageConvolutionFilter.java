@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+
+/**
+ * Runs a square convolution kernel of any odd size against the RGB channels of the image,
+ * keeping the alpha channel of the center pixel.
+ * <p>
+ * The kernel is given row by row, with the first row on top, like
+ * {@link GPUImage3x3ConvolutionFilter}. The sample positions are unrolled into generated shaders
+ * and the coefficients are passed as uniforms:
+ * <ul>
+ * <li>Kernels of rank 1 from {@link #MIN_SEPARABLE_SIZE} up (e.g. box, Gaussian or Sobel
+ * kernels) are detected with a singular value decomposition and run as a horizontal and a
+ * vertical pass.</li>
+ * <li>Other kernels run as a single unrolled pass, or as several passes of at most
+ * {@link #MAX_TAPS_PER_PASS} taps each that accumulate into an intermediate framebuffer.</li>
+ * </ul>
+ * Intermediate results are stored in 8-bit framebuffers, rescaled to the range the remaining
+ * coefficients can produce, so negative partial sums survive.
+ * <p>
+ * The shaders only depend on the kernel size and on whether the kernel is separable, so
+ * changing the coefficients of a kernel, e.g. from a slider, only updates uniforms.
+ */
+public class GPUImageConvolutionFilter extends GPUImageFilter {
+
+    /**
+     * The most kernel taps a single pass samples. Larger non-separable kernels are split into
+     * several passes.
+     */
+    public static final int MAX_TAPS_PER_PASS = 25;
+
+    /**
+     * The smallest kernel size run as two passes when it is separable. Smaller kernels sample
+     * about as often in one pass as in two, without the intermediate framebuffer.
+     */
+    public static final int MIN_SEPARABLE_SIZE = 5;
+
+    private static final float SEPARABLE_TOLERANCE = 1e-4f;
+    private static final int SHADER_CACHE_SIZE = 16;
+
+    // Generated sources by tap layout, the least recently used is dropped first
+    private static final Map<String, String> SHADER_CACHE =
+            new LinkedHashMap<String, String>(SHADER_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+                    return size() > SHADER_CACHE_SIZE;
+                }
+            };
+
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+    private final List<KernelPassFilter> passFilters = new ArrayList<>();
+
+    private float[] kernel;
+    private int kernelSize;
+    // The kernel size and separability the passes were created for
+    private int passSize;
+    private boolean separable;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
+
+    /**
+     * Instantiates a new GPUImageConvolutionFilter with a 1x1 identity kernel, that will look
+     * like the original image.
+     */
+    public GPUImageConvolutionFilter() {
+        this(new float[]{1.0f}, 1);
+    }
+
+    /**
+     * @param kernel     kernelSize * kernelSize coefficients, row by row, top row first
+     * @param kernelSize the width and height of the kernel, an odd number
+     */
+    public GPUImageConvolutionFilter(final float[] kernel, final int kernelSize) {
+        super();
+        checkKernel(kernel, kernelSize);
+        this.kernel = kernel.clone();
+        this.kernelSize = kernelSize;
+        updatePassFilters();
+
+        glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glCubeBuffer.put(CUBE).position(0);
+
+        glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (GPUImageFilter filter : passFilters) {
+            filter.ifNeedInit();
+        }
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        for (GPUImageFilter filter : passFilters) {
+            filter.collectPrograms(programs);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyFramebuffers();
+        for (GPUImageFilter filter : passFilters) {
+            filter.destroy();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        destroyFramebuffers();
+        updateFramebuffers();
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (!isInitialized() || (passFilters.size() > 1 && frameBuffers == null)) {
+            return;
+        }
+
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        int previousTexture = OpenGlUtils.NO_TEXTURE;
+        int passes = passFilters.size();
+        for (int i = 0; i < passes; i++) {
+            KernelPassFilter filter = passFilters.get(i);
+            boolean isLast = i == passes - 1;
+            GlStateCache.bindFramebuffer(isLast ? targetFrameBuffer : frameBuffers[i % 2]);
+
+            // Separable kernels read the previous pass, tiles read the image and accumulate
+            // the previous pass
+            boolean readsImage = i == 0 || !separable;
+            FloatBuffer sourceBuffer = readsImage ? textureBuffer : glTextureBuffer;
+            filter.setSteps(
+                    GPUImageOffsetPassFilter.getPixelStep(sourceBuffer, false, getOutputWidth()),
+                    GPUImageOffsetPassFilter.getPixelStep(sourceBuffer, true, getOutputHeight()));
+            filter.setSecondInput(readsImage ? previousTexture : OpenGlUtils.NO_TEXTURE,
+                    glTextureBuffer);
+            filter.onDraw(frameBuffer, readsImage ? textureId : previousTexture,
+                    isLast ? cubeBuffer : glCubeBuffer, sourceBuffer);
+            if (!isLast) {
+                previousTexture = frameBufferTextures[i % 2];
+            }
+        }
+    }
+
+    /**
+     * Sets a new kernel on the next draw. New shaders are only compiled when the kernel size or
+     * its separability changes.
+     *
+     * @param kernel     kernelSize * kernelSize coefficients, row by row, top row first
+     * @param kernelSize the width and height of the kernel, an odd number
+     */
+    public void setKernel(final float[] kernel, final int kernelSize) {
+        checkKernel(kernel, kernelSize);
+        final float[] newKernel = kernel.clone();
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                GPUImageConvolutionFilter.this.kernel = newKernel;
+                GPUImageConvolutionFilter.this.kernelSize = kernelSize;
+                if (updatePassFilters()) {
+                    for (GPUImageFilter filter : passFilters) {
+                        filter.ifNeedInit();
+                    }
+                    updateFramebuffers();
+                }
+            }
+        });
+    }
+
+    public float[] getKernel() {
+        return kernel.clone();
+    }
+
+    public int getKernelSize() {
+        return kernelSize;
+    }
+
+    /**
+     * Whether the current kernel is run as a horizontal and a vertical pass.
+     */
+    public boolean isSeparable() {
+        return separable;
+    }
+
+    /**
+     * Number of passes the current kernel is drawn with.
+     */
+    public int getPassCount() {
+        return passFilters.size();
+    }
+
+    private static void checkKernel(final float[] kernel, final int kernelSize) {
+        if (kernelSize < 1 || kernelSize % 2 == 0) {
+            throw new IllegalArgumentException("Kernel size must be odd: " + kernelSize);
+        }
+        if (kernel == null || kernel.length != kernelSize * kernelSize) {
+            throw new IllegalArgumentException("Kernel must have " + kernelSize * kernelSize
+                    + " coefficients");
+        }
+        for (float value : kernel) {
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                throw new IllegalArgumentException("Kernel coefficients must be finite");
+            }
+        }
+    }
+
+    /**
+     * Sets the weights of the passes for the current kernel, creating new passes if the kernel
+     * needs another layout.
+     *
+     * @return whether new passes were created
+     */
+    private boolean updatePassFilters() {
+        float[][] factors = kernelSize >= MIN_SEPARABLE_SIZE ? factorize(kernel, kernelSize) : null;
+        boolean newSeparable = factors != null;
+        boolean created = passFilters.isEmpty() || passSize != kernelSize
+                || separable != newSeparable;
+        if (created) {
+            for (GPUImageFilter filter : passFilters) {
+                filter.destroy();
+            }
+            passFilters.clear();
+            separable = newSeparable;
+            passSize = kernelSize;
+            createPassFilters();
+        }
+
+        if (separable) {
+            float[] column = factors[0];
+            float[] row = factors[1];
+            float[] range = getRange(row, 0f, 0f);
+            float[] encoding = getEncoding(range);
+            passFilters.get(0).setWeights(row, 0f, 0f, encoding[0], encoding[1]);
+
+            // Decode the stored range back while sampling: sum(w * (e * scale + low))
+            float scale = range[1] - range[0];
+            float bias = 0f;
+            float[] weights = new float[kernelSize];
+            for (int i = 0; i < kernelSize; i++) {
+                bias += column[i] * range[0];
+                weights[i] = column[i] * scale;
+            }
+            passFilters.get(1).setWeights(weights, bias, 0f, 1f, 0f);
+            return created;
+        }
+
+        int passes = passFilters.size();
+        float[] partialRange = {0f, 0f};
+        for (int i = 0; i < passes; i++) {
+            float[] weights = Arrays.copyOfRange(kernel, i * MAX_TAPS_PER_PASS,
+                    Math.min(kernel.length, (i + 1) * MAX_TAPS_PER_PASS));
+            boolean accumulate = i > 0;
+            float[] range = getRange(weights, partialRange[0], partialRange[1]);
+            float[] encoding = i == passes - 1 ? new float[]{1f, 0f} : getEncoding(range);
+            passFilters.get(i).setWeights(weights,
+                    accumulate ? partialRange[0] : 0f,
+                    accumulate ? partialRange[1] - partialRange[0] : 0f,
+                    encoding[0], encoding[1]);
+            partialRange = range;
+        }
+        return created;
+    }
+
+    /**
+     * Creates the passes for the current kernel size and separability. Taps are listed as
+     * {x offset, y offset} in pixels, in the order of the weights they are given.
+     */
+    private void createPassFilters() {
+        int center = kernelSize / 2;
+        if (separable) {
+            List<float[]> horizontalTaps = new ArrayList<>();
+            List<float[]> verticalTaps = new ArrayList<>();
+            for (int i = 0; i < kernelSize; i++) {
+                horizontalTaps.add(new float[]{i - center, 0f});
+                verticalTaps.add(new float[]{0f, center - i});
+            }
+            passFilters.add(new KernelPassFilter(getFragmentShader(horizontalTaps, false),
+                    kernelSize));
+            passFilters.add(new KernelPassFilter(getFragmentShader(verticalTaps, false),
+                    kernelSize));
+            return;
+        }
+
+        List<float[]> taps = new ArrayList<>();
+        for (int y = 0; y < kernelSize; y++) {
+            for (int x = 0; x < kernelSize; x++) {
+                taps.add(new float[]{x - center, center - y});
+            }
+        }
+        int passes = (taps.size() + MAX_TAPS_PER_PASS - 1) / MAX_TAPS_PER_PASS;
+        for (int i = 0; i < passes; i++) {
+            List<float[]> tileTaps = taps.subList(i * MAX_TAPS_PER_PASS,
+                    Math.min(taps.size(), (i + 1) * MAX_TAPS_PER_PASS));
+            passFilters.add(new KernelPassFilter(getFragmentShader(tileTaps, i > 0),
+                    tileTaps.size()));
+        }
+    }
+
+    private void updateFramebuffers() {
+        if (passFilters.size() < 2 || frameBuffers != null
+                || getOutputWidth() == 0 || getOutputHeight() == 0) {
+            return;
+        }
+        frameBuffers = new int[2];
+        frameBufferTextures = new int[2];
+        for (int i = 0; i < 2; i++) {
+            OpenGlUtils.createFrameBuffer(getOutputWidth(), getOutputHeight(),
+                    frameBuffers, frameBufferTextures, i);
+        }
+    }
+
+    private void destroyFramebuffers() {
+        if (frameBufferTextures != null) {
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBufferTextures = null;
+        }
+        if (frameBuffers != null) {
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            frameBuffers = null;
+        }
+    }
+
+    /**
+     * Splits a rank 1 kernel into a column and a row vector whose outer product is the kernel,
+     * using power iteration for the largest singular value and its singular vectors.
+     *
+     * @return {column, row}, or null if the kernel is not separable
+     */
+    static float[][] factorize(final float[] kernel, final int size) {
+        if (size < 3) {
+            return null;
+        }
+        double maxValue = 0;
+        for (float value : kernel) {
+            maxValue = Math.max(maxValue, Math.abs(value));
+        }
+        if (maxValue == 0) {
+            return null;
+        }
+
+        double[] v = new double[size];
+        for (int i = 0; i < size; i++) {
+            v[i] = 1.0 + 0.618 * i;
+        }
+        double[] u = new double[size];
+        double sigma = 0;
+        for (int iteration = 0; iteration < 32; iteration++) {
+            // u = A v, v = A^T u, normalized
+            sigma = 0;
+            for (int y = 0; y < size; y++) {
+                double sum = 0;
+                for (int x = 0; x < size; x++) {
+                    sum += kernel[y * size + x] * v[x];
+                }
+                u[y] = sum;
+                sigma += sum * sum;
+            }
+            sigma = Math.sqrt(sigma);
+            if (sigma == 0) {
+                return null;
+            }
+            for (int y = 0; y < size; y++) {
+                u[y] /= sigma;
+            }
+            double norm = 0;
+            for (int x = 0; x < size; x++) {
+                double sum = 0;
+                for (int y = 0; y < size; y++) {
+                    sum += kernel[y * size + x] * u[y];
+                }
+                v[x] = sum;
+                norm += sum * sum;
+            }
+            norm = Math.sqrt(norm);
+            for (int x = 0; x < size; x++) {
+                v[x] /= norm;
+            }
+            sigma = norm;
+        }
+
+        double scale = Math.sqrt(sigma);
+        float[] column = new float[size];
+        float[] row = new float[size];
+        for (int i = 0; i < size; i++) {
+            column[i] = (float) (u[i] * scale);
+            row[i] = (float) (v[i] * scale);
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                double residual = kernel[y * size + x] - (double) column[y] * row[x];
+                if (Math.abs(residual) > SEPARABLE_TOLERANCE * maxValue) {
+                    return null;
+                }
+            }
+        }
+        // Drop what is left of coefficients that are zero in the kernel
+        for (int i = 0; i < size; i++) {
+            if (Math.abs(column[i]) < SEPARABLE_TOLERANCE * scale) {
+                column[i] = 0f;
+            }
+            if (Math.abs(row[i]) < SEPARABLE_TOLERANCE * scale) {
+                row[i] = 0f;
+            }
+        }
+        return new float[][]{column, row};
+    }
+
+    /**
+     * Range a pass can produce from inputs in [0, 1] plus a partial sum in [low, high].
+     */
+    private static float[] getRange(final float[] weights, final float low, final float high) {
+        float[] range = {low, high};
+        for (float weight : weights) {
+            if (weight < 0f) {
+                range[0] += weight;
+            } else {
+                range[1] += weight;
+            }
+        }
+        return range;
+    }
+
+    /**
+     * Scale and bias that map the given range to [0, 1] for storing it in an 8-bit framebuffer.
+     */
+    private static float[] getEncoding(final float[] range) {
+        if (range[0] >= 0f && range[1] <= 1f) {
+            range[0] = 0f;
+            range[1] = 1f;
+            return new float[]{1f, 0f};
+        }
+        float size = range[1] - range[0];
+        if (size <= 0f) {
+            return new float[]{0f, 0f};
+        }
+        return new float[]{1f / size, -range[0] / size};
+    }
+
+    private static String getFragmentShader(final List<float[]> taps, final boolean accumulate) {
+        StringBuilder key = new StringBuilder();
+        for (float[] tap : taps) {
+            key.append(Arrays.toString(tap));
+        }
+        key.append(accumulate);
+        synchronized (SHADER_CACHE) {
+            String shader = SHADER_CACHE.get(key.toString());
+            if (shader == null) {
+                shader = createFragmentShader(taps, accumulate);
+                SHADER_CACHE.put(key.toString(), shader);
+            }
+            return shader;
+        }
+    }
+
+    /**
+     * Generates a pass sampling the given taps. The weights are packed four to a vec4, which
+     * also keeps large passes within the 16 uniform vectors OpenGL ES 2.0 guarantees. params is
+     * the bias, the scale of the partial sum, and the scale and bias of the result.
+     */
+    private static String createFragmentShader(final List<float[]> taps,
+                                               final boolean accumulate) {
+        StringBuilder shader = new StringBuilder()
+                .append("varying highp vec2 textureCoordinate;\n")
+                .append("varying highp vec2 textureCoordinate2;\n")
+                .append("\n")
+                .append("uniform sampler2D inputImageTexture;\n")
+                .append("uniform sampler2D inputImageTexture2;\n")
+                .append("uniform highp vec2 stepX;\n")
+                .append("uniform highp vec2 stepY;\n")
+                .append("uniform mediump vec4 weights[").append((taps.size() + 3) / 4)
+                .append("];\n")
+                .append("uniform mediump vec4 params;\n")
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    lowp vec4 center = texture2D(inputImageTexture, textureCoordinate);\n")
+                .append("    mediump vec3 sum = vec3(params.x);\n");
+        if (accumulate) {
+            shader.append("    sum += texture2D(inputImageTexture2, textureCoordinate2).rgb")
+                    .append(" * params.y;\n");
+        }
+        for (int i = 0; i < taps.size(); i++) {
+            float[] tap = taps.get(i);
+            shader.append("    sum += ");
+            if (tap[0] == 0f && tap[1] == 0f) {
+                shader.append("center.rgb");
+            } else {
+                shader.append("texture2D(inputImageTexture, textureCoordinate");
+                if (tap[0] != 0f) {
+                    shader.append(" + stepX * ").append(toGlsl(tap[0]));
+                }
+                if (tap[1] != 0f) {
+                    shader.append(" + stepY * ").append(toGlsl(tap[1]));
+                }
+                shader.append(").rgb");
+            }
+            shader.append(" * weights[").append(i / 4).append("].").append("xyzw".charAt(i % 4))
+                    .append(";\n");
+        }
+        shader.append("    gl_FragColor = vec4(sum * params.z + params.w, center.a);\n")
+                .append("}");
+        return shader.toString();
+    }
+
+    private static String toGlsl(final float value) {
+        // Float.toString always has a fraction or an exponent, both valid GLSL float literals
+        return value < 0f ? "(" + value + ")" : Float.toString(value);
+    }
+
+    /**
+     * One generated kernel pass. Samples the image along two step vectors and optionally adds
+     * the partial sum of the previous pass, its second input.
+     */
+    private static class KernelPassFilter extends GPUImageOffsetPassFilter {
+        private static final String VERTEX_SHADER = "" +
+                "attribute vec4 position;\n" +
+                "attribute vec4 inputTextureCoordinate;\n" +
+                "attribute vec4 inputTextureCoordinate2;\n" +
+                "\n" +
+                "varying vec2 textureCoordinate;\n" +
+                "varying vec2 textureCoordinate2;\n" +
+                "\n" +
+                "void main()\n" +
+                "{\n" +
+                "    gl_Position = position;\n" +
+                "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+                "    textureCoordinate2 = inputTextureCoordinate2.xy;\n" +
+                "}";
+
+        private final float[] weights;
+        private final float[] params = new float[4];
+        private int stepYLocation;
+        private int weightsLocation;
+        private int paramsLocation;
+        private float[] stepY = {0f, 0f};
+
+        KernelPassFilter(final String fragmentShader, final int taps) {
+            super(VERTEX_SHADER, fragmentShader, "stepX");
+            weights = new float[(taps + 3) / 4 * 4];
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            stepYLocation = GLES20.glGetUniformLocation(getProgram(), "stepY");
+            weightsLocation = GLES20.glGetUniformLocation(getProgram(), "weights");
+            paramsLocation = GLES20.glGetUniformLocation(getProgram(), "params");
+        }
+
+        void setSteps(final float[] stepX, final float[] stepY) {
+            setOffset(stepX[0], stepX[1]);
+            this.stepY = stepY;
+        }
+
+        /**
+         * Sets the weights of the taps and the params of the shader, uploaded with every draw.
+         */
+        void setWeights(final float[] weights, final float bias, final float partialScale,
+                        final float outputScale, final float outputBias) {
+            System.arraycopy(weights, 0, this.weights, 0, weights.length);
+            params[0] = bias;
+            params[1] = partialScale;
+            params[2] = outputScale;
+            params[3] = outputBias;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            super.onDrawArraysPre();
+            GLES20.glUniform2f(stepYLocation, stepY[0], stepY[1]);
+            GLES20.glUniform4fv(weightsLocation, weights.length / 4, weights, 0);
+            GLES20.glUniform4fv(paramsLocation, 1, params, 0);
+        }
+    }
+}
@@ -21,7 +21,11 @@ package jp.co.cyberagent.android.gpuimage.filter;
  * out dilationRadius pixels from the center.
  * This extends out bright features, and is most commonly used with black-and-white thresholded images.
  */
-public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter {
+public class GPUImageDilationFilter extends GPUImageMorphologyFilter {
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String VERTEX_SHADER_1 =
             "attribute vec4 position;\n" +
                     "attribute vec2 inputTextureCoordinate;\n" +
@@ -44,6 +48,10 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "oneStepPositiveTextureCoordinate = inputTextureCoordinate + offset;\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String VERTEX_SHADER_2 =
             "attribute vec4 position;\n" +
                     "attribute vec2 inputTextureCoordinate;\n" +
@@ -70,6 +78,10 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "twoStepsPositiveTextureCoordinate = inputTextureCoordinate + (offset * 2.0);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String VERTEX_SHADER_3 =
             "attribute vec4 position;\n" +
                     "attribute vec2 inputTextureCoordinate;\n" +
@@ -100,6 +112,10 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "threeStepsPositiveTextureCoordinate = inputTextureCoordinate + (offset * 3.0);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String VERTEX_SHADER_4 =
 
             "attribute vec4 position;\n" +
@@ -136,6 +152,10 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "}\n";
 
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String FRAGMENT_SHADER_1 =
             "precision lowp float;\n" +
                     "\n" +
@@ -157,6 +177,10 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "gl_FragColor = vec4(vec3(maxValue), 1.0);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String FRAGMENT_SHADER_2 =
             "precision lowp float;\n" +
                     "\n" +
@@ -184,6 +208,10 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "gl_FragColor = vec4(vec3(maxValue), 1.0);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String FRAGMENT_SHADER_3 =
             "precision lowp float;\n" +
                     "\n" +
@@ -217,6 +245,10 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "gl_FragColor = vec4(vec3(maxValue), 1.0);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String FRAGMENT_SHADER_4 =
             "precision lowp float;\n" +
                     "\n" +
@@ -256,50 +288,17 @@ public class GPUImageDilationFilter extends GPUImageTwoPassTextureSamplingFilter
                     "gl_FragColor = vec4(vec3(maxValue), 1.0);\n" +
                     "}\n";
 
-
     public GPUImageDilationFilter() {
         this(1);
     }
 
     /**
-     * Acceptable values for dilationRadius, which sets the distance in pixels to sample out from the center,
-     * are 1, 2, 3, and 4.
+     * The dilation radius sets the distance in pixels to sample out from the center. Any radius
+     * of 1 or more is accepted; radii above {@link #MAX_PASS_RADIUS} take additional passes.
      *
-     * @param radius 1, 2, 3 or 4
+     * @param radius 1 or more
      */
     public GPUImageDilationFilter(int radius) {
-        this(getVertexShader(radius), getFragmentShader(radius));
-    }
-
-    private GPUImageDilationFilter(String vertexShader, String fragmentShader) {
-        super(vertexShader, fragmentShader, vertexShader, fragmentShader);
-    }
-
-    private static String getVertexShader(int radius) {
-        switch (radius) {
-            case 0:
-            case 1:
-                return VERTEX_SHADER_1;
-            case 2:
-                return VERTEX_SHADER_2;
-            case 3:
-                return VERTEX_SHADER_3;
-            default:
-                return VERTEX_SHADER_4;
-        }
-    }
-
-    private static String getFragmentShader(int radius) {
-        switch (radius) {
-            case 0:
-            case 1:
-                return FRAGMENT_SHADER_1;
-            case 2:
-                return FRAGMENT_SHADER_2;
-            case 3:
-                return FRAGMENT_SHADER_3;
-            default:
-                return FRAGMENT_SHADER_4;
-        }
+        super(Operation.DILATE, radius, false);
     }
 }
@@ -63,4 +63,9 @@ public class GPUImageExposureFilter extends GPUImageFilter {
         this.exposure = exposure;
         setFloat(exposureLocation, this.exposure);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(exposure);
+    }
 }
@@ -81,4 +81,9 @@ public class GPUImageFalseColorFilter extends GPUImageFilter {
         this.secondColor = secondColor;
         setFloatVec3(secondColorLocation, secondColor);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(firstColor, secondColor);
+    }
 }
@@ -22,9 +22,14 @@ import android.graphics.PointF;
 import android.opengl.GLES20;
 
 import java.io.InputStream;
+import java.lang.reflect.Array;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
 import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
 
 public class GPUImageFilter {
@@ -58,12 +63,19 @@ public class GPUImageFilter {
     private int glAttribTextureCoordinate;
     private int outputWidth;
     private int outputHeight;
+    private float preferredScale = 1f;
+    private float renderScale = 1f;
     private boolean isInitialized;
 
     public GPUImageFilter() {
         this(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
     }
 
+    /**
+     * @param vertexShader   the vertex shader, or null with the fragment shader for filters that
+     *                       only draw through other filters and link no program of their own
+     * @param fragmentShader the fragment shader, or null with the vertex shader
+     */
     public GPUImageFilter(final String vertexShader, final String fragmentShader) {
         runOnDraw = new LinkedList<>();
         this.vertexShader = vertexShader;
@@ -76,23 +88,39 @@ public class GPUImageFilter {
     }
 
     public void onInit() {
-        glProgId = OpenGlUtils.loadProgram(vertexShader, fragmentShader);
-        glAttribPosition = GLES20.glGetAttribLocation(glProgId, "position");
-        glUniformTexture = GLES20.glGetUniformLocation(glProgId, "inputImageTexture");
-        glAttribTextureCoordinate = GLES20.glGetAttribLocation(glProgId, "inputTextureCoordinate");
+        if (hasProgram()) {
+            glProgId = OpenGlUtils.loadProgram(vertexShader, fragmentShader);
+            glAttribPosition = GLES20.glGetAttribLocation(glProgId, "position");
+            glUniformTexture = GLES20.glGetUniformLocation(glProgId, "inputImageTexture");
+            glAttribTextureCoordinate = GLES20.glGetAttribLocation(glProgId, "inputTextureCoordinate");
+        }
         isInitialized = true;
     }
 
     public void onInitialized() {
     }
 
+    public String getVertexShader() {
+        return vertexShader;
+    }
+
+    public String getFragmentShader() {
+        return fragmentShader;
+    }
+
     public void ifNeedInit() {
         if (!isInitialized) init();
     }
 
+    private boolean hasProgram() {
+        return vertexShader != null && fragmentShader != null;
+    }
+
     public final void destroy() {
         isInitialized = false;
-        GLES20.glDeleteProgram(glProgId);
+        if (hasProgram()) {
+            GlStateCache.deleteProgram(glProgId);
+        }
         onDestroy();
     }
 
@@ -106,34 +134,75 @@ public class GPUImageFilter {
 
     public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
-        GLES20.glUseProgram(glProgId);
+        GlStateCache.useProgram(glProgId);
         runPendingOnDrawTasks();
         if (!isInitialized) {
             return;
         }
 
-        cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(glAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
-        GLES20.glEnableVertexAttribArray(glAttribPosition);
-        textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(glAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
+        boolean positionInQuadBuffer = setVertexAttribPointer(glAttribPosition, cubeBuffer);
+        boolean coordinateInQuadBuffer = setVertexAttribPointer(glAttribTextureCoordinate,
                 textureBuffer);
-        GLES20.glEnableVertexAttribArray(glAttribTextureCoordinate);
+        // Subclasses pass client side arrays to onDrawArraysPre
+        GlStateCache.bindArrayBuffer(0);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GlStateCache.activeTexture(GLES20.GL_TEXTURE0);
+            GlStateCache.bindTexture(textureId);
             GLES20.glUniform1i(glUniformTexture, 0);
         }
         onDrawArraysPre();
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glDisableVertexAttribArray(glAttribPosition);
-        GLES20.glDisableVertexAttribArray(glAttribTextureCoordinate);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        onDrawArraysAfter();
+        // Arrays in the quad buffer stay enabled for the next filter, client side arrays may not
+        // outlive this filter
+        if (!positionInQuadBuffer) {
+            GlStateCache.disableVertexAttribArray(glAttribPosition);
+        }
+        if (!coordinateInQuadBuffer) {
+            GlStateCache.disableVertexAttribArray(glAttribTextureCoordinate);
+        }
+    }
+
+    /**
+     * Points the attribute at the coordinates, in the shared quad buffer if they are one of the
+     * quads it holds.
+     *
+     * @return whether the coordinates are read from the quad buffer
+     */
+    private static boolean setVertexAttribPointer(final int attribute, final FloatBuffer buffer) {
+        int offset = GlStateCache.getQuadOffset(buffer);
+        if (offset >= 0) {
+            GlStateCache.bindArrayBuffer(GlStateCache.getQuadBuffer());
+            GLES20.glVertexAttribPointer(attribute, 2, GLES20.GL_FLOAT, false, 0, offset);
+        } else {
+            GlStateCache.bindArrayBuffer(0);
+            buffer.position(0);
+            GLES20.glVertexAttribPointer(attribute, 2, GLES20.GL_FLOAT, false, 0, buffer);
+        }
+        GlStateCache.enableVertexAttribArray(attribute);
+        return offset >= 0;
     }
 
     protected void onDrawArraysPre() {
     }
 
+    /**
+     * Called right after drawing. Subclasses that enabled client side arrays in
+     * {@link #onDrawArraysPre()} disable them here, as they may not outlive the filter.
+     */
+    protected void onDrawArraysAfter() {
+    }
+
+    /**
+     * Whether setters queued GL updates that have not run yet, i.e. the parameters changed since
+     * the last draw.
+     */
+    boolean hasPendingOnDrawTasks() {
+        synchronized (runOnDraw) {
+            return !runOnDraw.isEmpty();
+        }
+    }
+
     protected void runPendingOnDrawTasks() {
         synchronized (runOnDraw) {
             while (!runOnDraw.isEmpty()) {
@@ -142,6 +211,57 @@ public class GPUImageFilter {
         }
     }
 
+    /**
+     * Describes what the filter draws for {@link GPUImageBakedLookupFilter}, which reuses a
+     * lookup it baked before when the keys are equal. Filters whose output depends on the color
+     * of each pixel alone return {@link #createBakeKey(Object...)} of their parameters. null, the
+     * default, makes the lookup bake again after every change.
+     */
+    public Object getBakeKey() {
+        return null;
+    }
+
+    /**
+     * A key equal to the key of another instance of the same class with equal parameters.
+     * Arrays and points are copied, so changing them later does not change the key.
+     */
+    protected final Object createBakeKey(final Object... parameters) {
+        List<Object> key = new ArrayList<>(parameters.length + 1);
+        key.add(getClass());
+        for (Object parameter : parameters) {
+            key.add(copyBakeParameter(parameter));
+        }
+        return key;
+    }
+
+    private static Object copyBakeParameter(final Object parameter) {
+        if (parameter instanceof PointF) {
+            PointF point = (PointF) parameter;
+            return Arrays.asList(point.x, point.y);
+        }
+        if (parameter != null && parameter.getClass().isArray()) {
+            int length = Array.getLength(parameter);
+            List<Object> copy = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                copy.add(copyBakeParameter(Array.get(parameter, i)));
+            }
+            return copy;
+        }
+        return parameter;
+    }
+
+    /**
+     * Adds the {vertex shader, fragment shader} of every program the filter links while it is
+     * initialized, for {@link jp.co.cyberagent.android.gpuimage.GPUImageShaderPrecompiler}.
+     * Filters drawing through other filters add the programs of those too. Must be called on the
+     * GL thread, since some filters pick their passes by what the context supports.
+     */
+    public void collectPrograms(final List<String[]> programs) {
+        if (hasProgram()) {
+            programs.add(new String[]{vertexShader, fragmentShader});
+        }
+    }
+
     public boolean isInitialized() {
         return isInitialized;
     }
@@ -154,6 +274,39 @@ public class GPUImageFilter {
         return outputHeight;
     }
 
+    /**
+     * Hints that the filter may run at a fraction of the size of its group, for expensive
+     * stages whose result is smooth anyway, e.g. blurs. The group draws the filter into a
+     * smaller framebuffer and the next filter scales it back up by sampling it linearly. Only
+     * used when the filter is drawn by a {@link GPUImageFilterGroup}, and must be set before the
+     * group's output size is.
+     *
+     * @param scale the fraction of the group's width and height, in (0, 1], 1 by default
+     */
+    public void setPreferredScale(final float scale) {
+        if (!(scale > 0 && scale <= 1)) {
+            throw new IllegalArgumentException("scale must be in (0, 1], was " + scale);
+        }
+        preferredScale = scale;
+    }
+
+    public float getPreferredScale() {
+        return preferredScale;
+    }
+
+    /**
+     * The fraction of the outermost group's size the filter is drawn at, taking the preferred
+     * scales of the filter and the groups it is nested in into account. Filters sampling
+     * neighbouring pixels use it to keep their offsets the same in the image.
+     */
+    public float getRenderScale() {
+        return renderScale;
+    }
+
+    void setRenderScale(final float renderScale) {
+        this.renderScale = renderScale;
+    }
+
     public int getProgram() {
         return glProgId;
     }
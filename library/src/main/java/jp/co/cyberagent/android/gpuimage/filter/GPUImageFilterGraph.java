@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+import jp.co.cyberagent.android.gpuimage.util.Rotation;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+
+/**
+ * Applies filters wired as a graph instead of a chain, so a node can feed several others and a
+ * {@link GPUImageTwoInputFilter} can blend two branches, e.g. a blur of the input with an edge
+ * map of the input:
+ * <pre>
+ * GPUImageFilterGraph graph = new GPUImageFilterGraph();
+ * graph.addNode("blur", new GPUImageGaussianBlurFilter(), GPUImageFilterGraph.INPUT);
+ * graph.addNode("edges", new GPUImageSobelEdgeDetectionFilter(), GPUImageFilterGraph.INPUT);
+ * graph.addNode("blend", new GPUImageMultiplyBlendFilter(), "blur", "edges");
+ * </pre>
+ * Every node is drawn once per frame, however many nodes use it. Nodes only refer to nodes
+ * added before them, so the order they are added in is a valid drawing order. Nodes the output
+ * does not depend on are skipped. A framebuffer is handed to the next node as soon as the last
+ * node reading it has been drawn, so a graph needs as many framebuffers as results that are
+ * alive at the same time rather than one per node.
+ */
+public class GPUImageFilterGraph extends GPUImageFilter {
+
+    /**
+     * The name of the image the graph is applied to.
+     */
+    public static final String INPUT = "input";
+
+    private static class Node {
+        final GPUImageFilter filter;
+        final Node[] inputs;
+        // The framebuffer the node draws into, -1 for the output of the graph
+        int buffer = -1;
+        // The index in the drawing order of the last node reading this one
+        int lastUse;
+
+        Node(final GPUImageFilter filter, final Node[] inputs) {
+            this.filter = filter;
+            this.inputs = inputs;
+        }
+    }
+
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final Node inputNode;
+    private Node outputNode;
+    private final List<Node> drawOrder = new ArrayList<>();
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
+
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+
+    public GPUImageFilterGraph() {
+        super();
+        // Copies the input into a framebuffer, only drawn when a node reads it as second input
+        inputNode = new Node(new GPUImageFilter(), new Node[0]);
+        nodes.put(INPUT, inputNode);
+        outputNode = inputNode;
+
+        glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glCubeBuffer.put(CUBE).position(0);
+
+        glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+    }
+
+    /**
+     * Adds a node and makes it the output of the graph. Must be called before the graph is
+     * initialized.
+     *
+     * @param name   the unique name of the node
+     * @param filter the filter the node applies
+     * @param inputs the names of the nodes whose results the filter is applied to, or
+     *               {@link #INPUT}: one, or two for a {@link GPUImageTwoInputFilter}, whose
+     *               second texture coordinates are then set to match the framebuffers
+     */
+    public void addNode(final String name, final GPUImageFilter filter, final String... inputs) {
+        if (isInitialized()) {
+            throw new IllegalStateException("Nodes must be added before the graph is initialized");
+        }
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("Node " + name + " already exists");
+        }
+        if (inputs.length == 0 || inputs.length > 2
+                || inputs.length == 2 && !(filter instanceof GPUImageTwoInputFilter)) {
+            throw new IllegalArgumentException("Node " + name + " has " + inputs.length
+                    + " inputs, its filter takes " + (filter instanceof GPUImageTwoInputFilter ? 2 : 1));
+        }
+        Node[] inputNodes = new Node[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputNodes[i] = nodes.get(inputs[i]);
+            if (inputNodes[i] == null) {
+                throw new IllegalArgumentException("Node " + name + " reads unknown node " + inputs[i]);
+            }
+        }
+        if (inputs.length == 2) {
+            ((GPUImageTwoInputFilter) filter).setRotation(Rotation.NORMAL, false, true);
+        }
+        Node node = new Node(filter, inputNodes);
+        nodes.put(name, node);
+        outputNode = node;
+    }
+
+    /**
+     * Selects the node whose result the graph draws, by default the last one added.
+     */
+    public void setOutput(final String name) {
+        final Node node = nodes.get(name);
+        if (node == null) {
+            throw new IllegalArgumentException("Unknown node " + name);
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                outputNode = node;
+                if (frameBuffers != null) {
+                    destroyFramebuffers();
+                    createFramebuffers();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the filter of a node, or null if there is no such node.
+     */
+    public GPUImageFilter getFilter(final String name) {
+        Node node = nodes.get(name);
+        return node != null && node != inputNode ? node.filter : null;
+    }
+
+    /**
+     * How many framebuffers drawing the graph needs at the moment.
+     */
+    public int getFrameBufferCount() {
+        return frameBuffers != null ? frameBuffers.length : 0;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (Node node : nodes.values()) {
+            node.filter.ifNeedInit();
+        }
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        for (Node node : nodes.values()) {
+            node.filter.collectPrograms(programs);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyFramebuffers();
+        for (Node node : nodes.values()) {
+            node.filter.destroy();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        destroyFramebuffers();
+        for (Node node : nodes.values()) {
+            node.filter.onOutputSizeChanged(width, height);
+        }
+        if (width == 0 || height == 0) {
+            return;
+        }
+        createFramebuffers();
+    }
+
+    /**
+     * Orders the nodes the output depends on and assigns the framebuffers by liveness.
+     */
+    private void createFramebuffers() {
+        Set<Node> needed = new HashSet<>();
+        ArrayDeque<Node> pending = new ArrayDeque<>();
+        pending.add(outputNode);
+        while (!pending.isEmpty()) {
+            Node node = pending.poll();
+            if (needed.add(node)) {
+                for (Node input : node.inputs) {
+                    pending.add(input);
+                }
+            }
+        }
+        // The input is read straight from the source texture unless it is a second input
+        boolean copyInput = outputNode == inputNode;
+        for (Node node : needed) {
+            copyInput |= node.inputs.length == 2 && node.inputs[1] == inputNode;
+        }
+
+        drawOrder.clear();
+        for (Node node : nodes.values()) {
+            if (needed.contains(node) && (node != inputNode || copyInput)) {
+                drawOrder.add(node);
+            }
+        }
+        for (int i = 0; i < drawOrder.size(); i++) {
+            for (Node input : drawOrder.get(i).inputs) {
+                input.lastUse = i;
+            }
+        }
+
+        ArrayDeque<Integer> freeBuffers = new ArrayDeque<>();
+        int bufferCount = 0;
+        for (int i = 0; i < drawOrder.size(); i++) {
+            Node node = drawOrder.get(i);
+            if (node == outputNode) {
+                node.buffer = -1;
+            } else if (freeBuffers.isEmpty()) {
+                node.buffer = bufferCount++;
+            } else {
+                node.buffer = freeBuffers.pop();
+            }
+            // Only after taking one, so a node never draws into a framebuffer it reads
+            for (Node input : node.inputs) {
+                if (input.lastUse == i && input.buffer >= 0 && !freeBuffers.contains(input.buffer)
+                        && (input != inputNode || copyInput)) {
+                    freeBuffers.push(input.buffer);
+                }
+            }
+        }
+
+        frameBuffers = new int[bufferCount];
+        frameBufferTextures = new int[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            OpenGlUtils.createFrameBuffer(getOutputWidth(), getOutputHeight(),
+                    frameBuffers, frameBufferTextures, i);
+        }
+    }
+
+    private void destroyFramebuffers() {
+        if (frameBufferTextures != null) {
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBufferTextures = null;
+        }
+        if (frameBuffers != null) {
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            frameBuffers = null;
+        }
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (!isInitialized() || frameBuffers == null) {
+            return;
+        }
+
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        for (Node node : drawOrder) {
+            boolean isOutput = node == outputNode;
+            int nodeFrameBuffer = isOutput ? targetFrameBuffer : frameBuffers[node.buffer];
+            GlStateCache.bindFramebuffer(nodeFrameBuffer);
+            if (node.inputs.length == 2) {
+                ((GPUImageTwoInputFilter) node.filter)
+                        .useTexture(frameBufferTextures[node.inputs[1].buffer]);
+            }
+            boolean fromInput = node == inputNode || node.inputs[0] == inputNode;
+            node.filter.onDraw(nodeFrameBuffer,
+                    fromInput ? textureId : frameBufferTextures[node.inputs[0].buffer],
+                    isOutput ? cubeBuffer : glCubeBuffer,
+                    fromInput ? textureBuffer : glTextureBuffer);
+        }
+    }
+}
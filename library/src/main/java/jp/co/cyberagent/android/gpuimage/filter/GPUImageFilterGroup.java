@@ -18,6 +18,7 @@ package jp.co.cyberagent.android.gpuimage.filter;
 
 import android.annotation.SuppressLint;
 import android.opengl.GLES20;
+import android.util.Log;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -25,6 +26,8 @@ import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
 import jp.co.cyberagent.android.gpuimage.util.Rotation;
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
@@ -34,13 +37,72 @@ import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE
 /**
  * Resembles a filter that consists of multiple filters applied after each
  * other.
+ * <p>
+ * Nested groups are merged into one list of filters. Whenever the framebuffers are created, the
+ * list is compiled into an array of passes with their inputs resolved, so drawing a frame is one
+ * loop over arrays without list access, allocation or per-pass decisions.
+ * <p>
+ * Filters with a {@link GPUImageFilter#setPreferredScale(float) preferred scale} below 1 are
+ * drawn into framebuffers of that fraction of the group's size, and the next filter scales them
+ * back up. If the last filter is scaled, one more pass copies its result into the caller's
+ * framebuffer at full size.
  */
 public class GPUImageFilterGroup extends GPUImageFilter {
+    private static final String TAG = "GPUImageFilterGroup";
+
+    /**
+     * The format of the framebuffers passed between the filters of a group.
+     */
+    public enum Precision {
+        /**
+         * 8 bits per channel with alpha, the default.
+         */
+        RGBA8(4),
+        /**
+         * 5, 6 and 5 bits without alpha. Halves the memory and bandwidth of {@link #RGBA8} where
+         * the banding is acceptable, e.g. for opaque images on low-end devices.
+         */
+        RGB565(2),
+        /**
+         * 16 bit floats per channel. Long chains keep their gradients and values outside of
+         * [0, 1] between filters, for twice the memory and bandwidth of {@link #RGBA8}. Needs
+         * EXT_color_buffer_half_float (or EXT_color_buffer_float on OpenGL ES 3.0).
+         */
+        RGBA16F(8);
+
+        private final int bytesPerPixel;
+
+        Precision(final int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+
+        public int getBytesPerPixel() {
+            return bytesPerPixel;
+        }
+
+        /**
+         * Checks whether the current context can render into this format. RGB565 is also
+         * checked once its framebuffers are created. Must be called on the GL thread.
+         */
+        public boolean isSupported() {
+            return this != RGBA16F || OpenGlUtils.isHalfFloatRenderable();
+        }
+    }
 
     private List<GPUImageFilter> filters;
     private List<GPUImageFilter> mergedFilters;
     private int[] frameBuffers;
     private int[] frameBufferTextures;
+    // The merged filters as of the last time the framebuffers were created, null without them
+    private GPUImageFilter[] passFilters;
+    private int[] passWidths;
+    private int[] passHeights;
+    private boolean scaledPasses;
+    private FloatBuffer lastPassTextureBuffer;
+    // Scales the last filter back up when it prefers a smaller size
+    private GPUImageFilter copyFilter;
+    private Precision requestedPrecision = Precision.RGBA8;
+    private Precision precision = Precision.RGBA8;
 
     private final FloatBuffer glCubeBuffer;
     private final FloatBuffer glTextureBuffer;
@@ -107,24 +169,39 @@ public class GPUImageFilterGroup extends GPUImageFilter {
      * (non-Javadoc)
      * @see jp.co.cyberagent.android.gpuimage.filter.GPUImageFilter#onDestroy()
      */
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        for (GPUImageFilter filter : filters) {
+            filter.collectPrograms(programs);
+        }
+    }
+
     @Override
     public void onDestroy() {
         destroyFramebuffers();
         for (GPUImageFilter filter : filters) {
             filter.destroy();
         }
+        if (copyFilter != null) {
+            copyFilter.destroy();
+            copyFilter = null;
+        }
         super.onDestroy();
     }
 
     private void destroyFramebuffers() {
         if (frameBufferTextures != null) {
-            GLES20.glDeleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
             frameBufferTextures = null;
         }
         if (frameBuffers != null) {
-            GLES20.glDeleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
             frameBuffers = null;
         }
+        passFilters = null;
+        passWidths = null;
+        passHeights = null;
     }
 
     /*
@@ -142,37 +219,161 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
         int size = filters.size();
         for (int i = 0; i < size; i++) {
-            filters.get(i).onOutputSizeChanged(width, height);
+            GPUImageFilter filter = filters.get(i);
+            float scale = filter.getPreferredScale();
+            filter.setRenderScale(getRenderScale() * scale);
+            filter.onOutputSizeChanged(scaleSize(width, scale), scaleSize(height, scale));
         }
 
+        createFramebuffers(width, height);
+    }
+
+    private static int scaleSize(final int size, final float scale) {
+        return scale == 1f ? size : Math.max(1, Math.round(size * scale));
+    }
+
+    private void createFramebuffers(final int width, final int height) {
         if (mergedFilters != null && mergedFilters.size() > 0) {
-            size = mergedFilters.size();
-            frameBuffers = new int[size - 1];
-            frameBufferTextures = new int[size - 1];
-
-            for (int i = 0; i < size - 1; i++) {
-                GLES20.glGenFramebuffers(1, frameBuffers, i);
-                GLES20.glGenTextures(1, frameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, frameBufferTextures[i]);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                        GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[i]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                        GLES20.GL_TEXTURE_2D, frameBufferTextures[i], 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            compilePasses(width, height);
+            int count = passFilters.length - 1;
+            frameBuffers = new int[count];
+            frameBufferTextures = new int[count];
+
+            precision = requestedPrecision;
+            for (int i = 0; i < count; i++) {
+                while (!createFramebuffer(passWidths[i], passHeights[i], i)) {
+                    Log.w(TAG, precision + " framebuffers are not renderable, falling back to RGBA8");
+                    precision = Precision.RGBA8;
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves the passes once instead of on every frame. Pass i draws into framebuffer i and
+     * reads framebuffer i - 1, except that the first pass reads the caller's texture and the
+     * last one draws into the caller's framebuffer. Each framebuffer has the output size of the
+     * filter drawing into it, which nested groups have already scaled. Filters added afterwards
+     * are drawn once the framebuffers are created again, e.g. when the output size changes.
+     */
+    private void compilePasses(final int width, final int height) {
+        int size = mergedFilters.size();
+        GPUImageFilter last = mergedFilters.get(size - 1);
+        boolean copy = isScaled(last, width, height);
+        if (copy && copyFilter == null) {
+            copyFilter = new GPUImageFilter();
+        }
+        if (copy) {
+            copyFilter.ifNeedInit();
+            copyFilter.onOutputSizeChanged(width, height);
+        }
+
+        int count = copy ? size + 1 : size;
+        passFilters = mergedFilters.toArray(new GPUImageFilter[count]);
+        if (copy) {
+            passFilters[size] = copyFilter;
+        }
+        passWidths = new int[count];
+        passHeights = new int[count];
+        scaledPasses = false;
+        for (int i = 0; i < count; i++) {
+            // The last pass fills the caller's framebuffer
+            boolean scaled = i < count - 1 && isScaled(passFilters[i], width, height);
+            passWidths[i] = scaled ? passFilters[i].getOutputWidth() : width;
+            passHeights[i] = scaled ? passFilters[i].getOutputHeight() : height;
+            scaledPasses |= scaled;
+        }
+        // The last pass reads an upside down image after an odd number of framebuffer passes
+        lastPassTextureBuffer = count % 2 == 0 ? glTextureFlipBuffer : glTextureBuffer;
+    }
+
+    // Filters added since the output size was set have no size yet and run at full size
+    private static boolean isScaled(final GPUImageFilter filter, final int width,
+                                    final int height) {
+        return filter.getOutputWidth() > 0 && filter.getOutputHeight() > 0
+                && (filter.getOutputWidth() != width || filter.getOutputHeight() != height);
+    }
+
+    /**
+     * Creates framebuffer {@code index} with the current precision.
+     *
+     * @return false if the precision is not supported, nothing is left allocated then
+     */
+    private boolean createFramebuffer(final int width, final int height, final int index) {
+        switch (precision) {
+            case RGB565:
+                OpenGlUtils.createFrameBuffer(width, height, GLES20.GL_RGB, GLES20.GL_RGB,
+                        GLES20.GL_UNSIGNED_SHORT_5_6_5, GLES20.GL_LINEAR,
+                        frameBuffers, frameBufferTextures, index);
+                break;
+            case RGBA16F:
+                if (!precision.isSupported()) {
+                    return false;
+                }
+                OpenGlUtils.createHalfFloatFrameBuffer(width, height,
+                        frameBuffers, frameBufferTextures, index);
+                break;
+            default:
+                OpenGlUtils.createFrameBuffer(width, height, frameBuffers, frameBufferTextures, index);
+                return true;
+        }
+        if (OpenGlUtils.isFrameBufferComplete(frameBuffers[index])) {
+            return true;
+        }
+        GlStateCache.deleteTextures(1, frameBufferTextures, index);
+        GlStateCache.deleteFramebuffers(1, frameBuffers, index);
+        return false;
+    }
+
+    /**
+     * Sets the format of the framebuffers between the filters. Only the outermost group's
+     * precision is used, nested groups are merged into it. Falls back to {@link Precision#RGBA8}
+     * where the format cannot be rendered into, see {@link #getPrecision()}.
+     *
+     * @param precision the framebuffer format, {@link Precision#RGBA8} by default
+     */
+    public void setPrecision(final Precision precision) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                requestedPrecision = precision;
+                if (frameBuffers != null) {
+                    destroyFramebuffers();
+                    createFramebuffers(getOutputWidth(), getOutputHeight());
+                }
+            }
+        });
+    }
+
+    /**
+     * The format of the framebuffers between the filters, once they are created.
+     */
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * The memory the framebuffers between the filters take at the current output size.
+     */
+    public long getFrameBufferBytes() {
+        return frameBuffers != null ? getFrameBufferBytes(precision) : 0;
+    }
+
+    /**
+     * The memory the framebuffers between the filters would take at the current output size
+     * with the given precision, to compare what each precision costs. Drivers may pad this.
+     */
+    public long getFrameBufferBytes(final Precision precision) {
+        long pixels = 0;
+        if (passWidths != null) {
+            for (int i = 0; i < passWidths.length - 1; i++) {
+                pixels += (long) passWidths[i] * passHeights[i];
             }
+        } else if (mergedFilters != null) {
+            pixels = (long) Math.max(0, mergedFilters.size() - 1)
+                    * getOutputWidth() * getOutputHeight();
         }
+        return pixels * precision.getBytesPerPixel();
     }
 
     /*
@@ -185,33 +386,35 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
         runPendingOnDrawTasks();
-        if (!isInitialized() || frameBuffers == null || frameBufferTextures == null) {
+        GPUImageFilter[] filters = passFilters;
+        if (!isInitialized() || filters == null) {
             return;
         }
-        if (mergedFilters != null) {
-            int size = mergedFilters.size();
-            int previousTexture = textureId;
-            for (int i = 0; i < size; i++) {
-                GPUImageFilter filter = mergedFilters.get(i);
-                boolean isNotLast = i < size - 1;
-                if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[i]);
-                    GLES20.glClearColor(0, 0, 0, 0);
-                }
-
-                if (i == 0) {
-                    filter.onDraw(frameBuffer, previousTexture, cubeBuffer, textureBuffer);
-                } else if (i == size - 1) {
-                    filter.onDraw(frameBuffer, previousTexture, glCubeBuffer, (size % 2 == 0) ? glTextureFlipBuffer : glTextureBuffer);
-                } else {
-                    filter.onDraw(frameBuffer, previousTexture, glCubeBuffer, glTextureBuffer);
-                }
-
-                if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer);
-                    previousTexture = frameBufferTextures[i];
-                }
+        // Each pass fully covers its framebuffer, so none is cleared
+        int last = filters.length - 1;
+        boolean scaled = scaledPasses;
+        if (last > 0) {
+            GlStateCache.bindFramebuffer(frameBuffers[0]);
+        }
+        if (scaled) {
+            GLES20.glViewport(0, 0, passWidths[0], passHeights[0]);
+        }
+        filters[0].onDraw(frameBuffer, textureId, cubeBuffer, textureBuffer);
+        for (int i = 1; i < last; i++) {
+            GlStateCache.bindFramebuffer(frameBuffers[i]);
+            if (scaled) {
+                GLES20.glViewport(0, 0, passWidths[i], passHeights[i]);
+            }
+            filters[i].onDraw(frameBuffer, frameBufferTextures[i - 1], glCubeBuffer,
+                    glTextureBuffer);
+        }
+        if (last > 0) {
+            GlStateCache.bindFramebuffer(frameBuffer);
+            if (scaled) {
+                GLES20.glViewport(0, 0, passWidths[last], passHeights[last]);
             }
+            filters[last].onDraw(frameBuffer, frameBufferTextures[last - 1], glCubeBuffer,
+                    lastPassTextureBuffer);
         }
     }
 
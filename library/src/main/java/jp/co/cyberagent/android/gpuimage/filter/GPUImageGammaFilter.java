@@ -63,4 +63,9 @@ public class GPUImageGammaFilter extends GPUImageFilter {
         this.gamma = gamma;
         setFloat(gammaLocation, this.gamma);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(gamma);
+    }
 }
@@ -19,6 +19,8 @@ package jp.co.cyberagent.android.gpuimage.filter;
 /**
  * A more generalized 9x9 Gaussian blur filter
  * blurSize value ranging from 0.0 on up, with a default of 1.0
+ * <p>
+ * For blur sizes above 4 use {@link GPUImagePyramidBlurFilter}, whose cost does not grow with the radius.
  */
 public class GPUImageGaussianBlurFilter extends GPUImageTwoPassTextureSamplingFilter {
     public static final String VERTEX_SHADER =
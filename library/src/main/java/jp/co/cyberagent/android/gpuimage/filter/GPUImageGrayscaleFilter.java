@@ -40,4 +40,9 @@ public class GPUImageGrayscaleFilter extends GPUImageFilter {
     public GPUImageGrayscaleFilter() {
         super(NO_FILTER_VERTEX_SHADER, GRAYSCALE_FRAGMENT_SHADER);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey();
+    }
 }
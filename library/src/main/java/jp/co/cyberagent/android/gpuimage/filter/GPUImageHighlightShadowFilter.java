@@ -83,4 +83,9 @@ public class GPUImageHighlightShadowFilter extends GPUImageFilter {
         this.shadows = shadows;
         setFloat(shadowsLocation, this.shadows);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(shadows, highlights);
+    }
 }
@@ -93,4 +93,9 @@ public class GPUImageHueFilter extends GPUImageFilter {
         float hueAdjust = (this.hue % 360.0f) * (float) Math.PI / 180.0f;
         setFloat(hueLocation, hueAdjust);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(hue);
+    }
 }
@@ -16,136 +16,279 @@
 
 package jp.co.cyberagent.android.gpuimage.filter;
 
-import android.opengl.GLES20;
+import android.annotation.SuppressLint;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
 
 /**
  * Kuwahara image abstraction, drawn from the work of Kyprianidis, et. al. in their publication
  * "Anisotropic Kuwahara Filtering on the GPU" within the GPU Pro collection. This produces an oil-painting-like
- * image, but it is extremely computationally expensive, so it can take seconds to render a frame on an iPad 2.
- * This might be best used for still images.
+ * image.
+ * <p>
+ * The mean color and the summed variance of the RGB channels of every (radius + 1)^2 region are
+ * taken from a moment texture that is box filtered in two separable passes, so the cost grows
+ * linearly with the radius instead of quadratically. The shaders are generated per radius with
+ * the loop unrolled, and texel sizes follow the actual output size.
+ * <p>
+ * The variance is the difference of two moments, which is mostly below what 8 bits resolve, so
+ * the moments are kept in half float framebuffers. Where those cannot be rendered into, they
+ * fall back to RGBA8 and regions with little variance are told apart less reliably.
  */
 public class GPUImageKuwaharaFilter extends GPUImageFilter {
-    public static final String KUWAHARA_FRAGMENT_SHADER = "" +
-            "varying highp vec2 textureCoordinate;\n" +
-            "uniform sampler2D inputImageTexture;\n" +
-            "uniform int radius;\n" +
-            "\n" +
-            "precision highp float;\n" +
-            "\n" +
-            "const vec2 src_size = vec2 (1.0 / 768.0, 1.0 / 1024.0);\n" +
-            "\n" +
-            "void main (void) \n" +
-            "{\n" +
-            "vec2 uv = textureCoordinate;\n" +
-            "float n = float((radius + 1) * (radius + 1));\n" +
-            "int i; int j;\n" +
-            "vec3 m0 = vec3(0.0); vec3 m1 = vec3(0.0); vec3 m2 = vec3(0.0); vec3 m3 = vec3(0.0);\n" +
-            "vec3 s0 = vec3(0.0); vec3 s1 = vec3(0.0); vec3 s2 = vec3(0.0); vec3 s3 = vec3(0.0);\n" +
-            "vec3 c;\n" +
-            "\n" +
-            "for (j = -radius; j <= 0; ++j)  {\n" +
-            "for (i = -radius; i <= 0; ++i)  {\n" +
-            "c = texture2D(inputImageTexture, uv + vec2(i,j) * src_size).rgb;\n" +
-            "m0 += c;\n" +
-            "s0 += c * c;\n" +
-            "}\n" +
-            "}\n" +
-            "\n" +
-            "for (j = -radius; j <= 0; ++j)  {\n" +
-            "for (i = 0; i <= radius; ++i)  {\n" +
-            "c = texture2D(inputImageTexture, uv + vec2(i,j) * src_size).rgb;\n" +
-            "m1 += c;\n" +
-            "s1 += c * c;\n" +
-            "}\n" +
-            "}\n" +
-            "\n" +
-            "for (j = 0; j <= radius; ++j)  {\n" +
-            "for (i = 0; i <= radius; ++i)  {\n" +
-            "c = texture2D(inputImageTexture, uv + vec2(i,j) * src_size).rgb;\n" +
-            "m2 += c;\n" +
-            "s2 += c * c;\n" +
-            "}\n" +
-            "}\n" +
-            "\n" +
-            "for (j = 0; j <= radius; ++j)  {\n" +
-            "for (i = -radius; i <= 0; ++i)  {\n" +
-            "c = texture2D(inputImageTexture, uv + vec2(i,j) * src_size).rgb;\n" +
-            "m3 += c;\n" +
-            "s3 += c * c;\n" +
-            "}\n" +
-            "}\n" +
-            "\n" +
-            "\n" +
-            "float min_sigma2 = 1e+2;\n" +
-            "m0 /= n;\n" +
-            "s0 = abs(s0 / n - m0 * m0);\n" +
-            "\n" +
-            "float sigma2 = s0.r + s0.g + s0.b;\n" +
-            "if (sigma2 < min_sigma2) {\n" +
-            "min_sigma2 = sigma2;\n" +
-            "gl_FragColor = vec4(m0, 1.0);\n" +
-            "}\n" +
-            "\n" +
-            "m1 /= n;\n" +
-            "s1 = abs(s1 / n - m1 * m1);\n" +
-            "\n" +
-            "sigma2 = s1.r + s1.g + s1.b;\n" +
-            "if (sigma2 < min_sigma2) {\n" +
-            "min_sigma2 = sigma2;\n" +
-            "gl_FragColor = vec4(m1, 1.0);\n" +
-            "}\n" +
-            "\n" +
-            "m2 /= n;\n" +
-            "s2 = abs(s2 / n - m2 * m2);\n" +
-            "\n" +
-            "sigma2 = s2.r + s2.g + s2.b;\n" +
-            "if (sigma2 < min_sigma2) {\n" +
-            "min_sigma2 = sigma2;\n" +
-            "gl_FragColor = vec4(m2, 1.0);\n" +
-            "}\n" +
-            "\n" +
-            "m3 /= n;\n" +
-            "s3 = abs(s3 / n - m3 * m3);\n" +
-            "\n" +
-            "sigma2 = s3.r + s3.g + s3.b;\n" +
-            "if (sigma2 < min_sigma2) {\n" +
-            "min_sigma2 = sigma2;\n" +
-            "gl_FragColor = vec4(m3, 1.0);\n" +
-            "}\n" +
-            "}\n";
+    private static final String TAG = "GPUImageKuwaharaFilter";
+
+    // The squares are taken around 0.5 and scaled to [0, 1] so they keep more precision
+    private static final String MOMENT_ENCODING = "" +
+            "const highp vec3 CENTER = vec3(0.5);\n" +
+            "const highp float SQUARES_SCALE = 0.75;\n";
+
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
 
+    private GPUImageOffsetPassFilter momentsFilter;
+    private GPUImageOffsetPassFilter boxFilter;
+    private GPUImageOffsetPassFilter selectFilter;
     private int radius;
-    private int radiusLocation;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
 
     public GPUImageKuwaharaFilter() {
         this(3);
     }
 
     public GPUImageKuwaharaFilter(int radius) {
-        super(NO_FILTER_VERTEX_SHADER, KUWAHARA_FRAGMENT_SHADER);
-        this.radius = radius;
+        super();
+        this.radius = Math.max(0, radius);
+        createPassFilters();
+
+        glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glCubeBuffer.put(CUBE).position(0);
+
+        glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
     }
 
     @Override
     public void onInit() {
         super.onInit();
-        radiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+        initPassFilters();
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        momentsFilter.collectPrograms(programs);
+        boxFilter.collectPrograms(programs);
+        selectFilter.collectPrograms(programs);
     }
 
     @Override
-    public void onInitialized() {
-        super.onInitialized();
-        setRadius(radius);
+    public void onDestroy() {
+        destroyFramebuffers();
+        destroyPassFilters();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        destroyFramebuffers();
+        if (width == 0 || height == 0) {
+            return;
+        }
+        frameBuffers = new int[2];
+        frameBufferTextures = new int[2];
+        boolean halfFloat = OpenGlUtils.isHalfFloatRenderable();
+        for (int i = 0; i < 2; i++) {
+            if (halfFloat) {
+                OpenGlUtils.createHalfFloatFrameBuffer(width, height,
+                        frameBuffers, frameBufferTextures, i);
+                if (OpenGlUtils.isFrameBufferComplete(frameBuffers[i])) {
+                    continue;
+                }
+                GlStateCache.deleteTextures(1, frameBufferTextures, i);
+                GlStateCache.deleteFramebuffers(1, frameBuffers, i);
+                halfFloat = false;
+            }
+            OpenGlUtils.createFrameBuffer(width, height, frameBuffers, frameBufferTextures, i);
+        }
+        if (!halfFloat) {
+            Log.w(TAG, "Half float framebuffers are not renderable, keeping moments in RGBA8");
+        }
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (!isInitialized() || frameBuffers == null) {
+            return;
+        }
+
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        float texelWidth = 1f / getOutputWidth();
+        float texelHeight = 1f / getOutputHeight();
+
+        GlStateCache.bindFramebuffer(frameBuffers[0]);
+        float[] step = GPUImageOffsetPassFilter.getPixelStep(textureBuffer, false,
+                getOutputWidth());
+        momentsFilter.setOffset(step[0], step[1]);
+        momentsFilter.onDraw(frameBuffer, textureId, glCubeBuffer, textureBuffer);
+
+        GlStateCache.bindFramebuffer(frameBuffers[1]);
+        boxFilter.setOffset(0f, texelHeight);
+        boxFilter.onDraw(frameBuffer, frameBufferTextures[0], glCubeBuffer, glTextureBuffer);
+
+        GlStateCache.bindFramebuffer(targetFrameBuffer);
+        selectFilter.setOffset(texelWidth, texelHeight);
+        selectFilter.onDraw(frameBuffer, frameBufferTextures[1], cubeBuffer, glTextureBuffer);
     }
 
     /**
      * The radius to sample from when creating the brush-stroke effect, with a default of 3.
-     * The larger the radius, the slower the filter.
+     * The larger the radius, the slower the filter, but only linearly.
      *
      * @param radius default 3
      */
     public void setRadius(final int radius) {
-        this.radius = radius;
-        setInteger(radiusLocation, radius);
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                int newRadius = Math.max(0, radius);
+                if (newRadius == GPUImageKuwaharaFilter.this.radius) {
+                    return;
+                }
+                GPUImageKuwaharaFilter.this.radius = newRadius;
+                destroyPassFilters();
+                createPassFilters();
+                initPassFilters();
+            }
+        });
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    private void createPassFilters() {
+        momentsFilter = new GPUImageOffsetPassFilter(NO_FILTER_VERTEX_SHADER,
+                createBoxFragmentShader(radius + 1, true), "texelStep");
+        boxFilter = new GPUImageOffsetPassFilter(NO_FILTER_VERTEX_SHADER,
+                createBoxFragmentShader(radius + 1, false), "texelStep");
+        selectFilter = new GPUImageOffsetPassFilter(NO_FILTER_VERTEX_SHADER,
+                createSelectFragmentShader(radius), "texelSize");
+    }
+
+    private void initPassFilters() {
+        momentsFilter.ifNeedInit();
+        boxFilter.ifNeedInit();
+        selectFilter.ifNeedInit();
+    }
+
+    private void destroyPassFilters() {
+        momentsFilter.destroy();
+        boxFilter.destroy();
+        selectFilter.destroy();
+    }
+
+    private void destroyFramebuffers() {
+        if (frameBufferTextures != null) {
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBufferTextures = null;
+        }
+        if (frameBuffers != null) {
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            frameBuffers = null;
+        }
+    }
+
+    /**
+     * Averages {@code taps} texels starting at the current one along texelStep. With
+     * {@code moments} the input color is expanded to its first moments in rgb and the encoded
+     * sum of its squared channels in a first.
+     */
+    private static String createBoxFragmentShader(final int taps, final boolean moments) {
+        StringBuilder shader = new StringBuilder()
+                .append("varying highp vec2 textureCoordinate;\n")
+                .append("\n")
+                .append("uniform sampler2D inputImageTexture;\n")
+                .append("uniform highp vec2 texelStep;\n")
+                .append("\n")
+                .append(MOMENT_ENCODING)
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    highp vec4 sum = vec4(0.0);\n")
+                .append("    highp vec4 c;\n");
+        for (int i = 0; i < taps; i++) {
+            shader.append("    c = texture2D(inputImageTexture, textureCoordinate + texelStep * ")
+                    .append(i).append(".0);\n");
+            if (moments) {
+                shader.append("    sum += vec4(c.rgb, dot(c.rgb - CENTER, c.rgb - CENTER)")
+                        .append(" / SQUARES_SCALE);\n");
+            } else {
+                shader.append("    sum += c;\n");
+            }
+        }
+        shader.append("    gl_FragColor = sum / ").append(taps).append(".0;\n")
+                .append("}");
+        return shader.toString();
+    }
+
+    /**
+     * Picks the mean of the quadrant with the lowest variance summed over the RGB channels, like
+     * the original per-channel Kuwahara filter. Each box filtered texel
+     * holds the moments of the region to its lower right, so the four quadrants around the
+     * current texel are found at offsets of 0 and -radius.
+     */
+    private static String createSelectFragmentShader(final int radius) {
+        return "varying highp vec2 textureCoordinate;\n" +
+                "\n" +
+                "uniform sampler2D inputImageTexture;\n" +
+                "uniform highp vec2 texelSize;\n" +
+                "\n" +
+                MOMENT_ENCODING +
+                "const highp float radius = " + radius + ".0;\n" +
+                "\n" +
+                "highp float variance(highp vec4 m)\n" +
+                "{\n" +
+                "    highp vec3 mean = m.rgb - CENTER;\n" +
+                "    return abs(m.a * SQUARES_SCALE - dot(mean, mean));\n" +
+                "}\n" +
+                "\n" +
+                "void main()\n" +
+                "{\n" +
+                "    highp vec2 d = texelSize * radius;\n" +
+                "    highp vec4 m0 = texture2D(inputImageTexture, textureCoordinate - d);\n" +
+                "    highp vec4 m1 = texture2D(inputImageTexture, textureCoordinate - vec2(0.0, d.y));\n" +
+                "    highp vec4 m2 = texture2D(inputImageTexture, textureCoordinate);\n" +
+                "    highp vec4 m3 = texture2D(inputImageTexture, textureCoordinate - vec2(d.x, 0.0));\n" +
+                "\n" +
+                "    highp vec4 best = m0;\n" +
+                "    highp float minVariance = variance(m0);\n" +
+                "    highp float v = variance(m1);\n" +
+                "    if (v < minVariance) { minVariance = v; best = m1; }\n" +
+                "    v = variance(m2);\n" +
+                "    if (v < minVariance) { minVariance = v; best = m2; }\n" +
+                "    v = variance(m3);\n" +
+                "    if (v < minVariance) { best = m3; }\n" +
+                "\n" +
+                "    gl_FragColor = vec4(best.rgb, 1.0);\n" +
+                "}";
     }
 }
@@ -0,0 +1,562 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
+
+/**
+ * Blends any number of layers over the image, each with its own blend mode, opacity and
+ * transform, in a single pass instead of one {@link GPUImageTwoInputFilter} pass per layer.
+ * <p>
+ * All layers are bound at once, one texture unit each. The shader is generated for the blend
+ * modes of the layers and cached, so only adding or removing layers or changing a blend mode
+ * needs another program; opacity and transforms are uniforms. Layers beyond what one pass can
+ * sample (texture units and varyings of the device) are blended in further passes. When the
+ * layers change, passes whose blend modes stay the same are kept, and the last few passes that
+ * went out of use are kept linked in case their blend modes come back.
+ * <p>
+ * Layers are expected to have premultiplied alpha, like bitmaps uploaded by GLUtils.
+ */
+public class GPUImageLayerCompositorFilter extends GPUImageFilter {
+
+    public enum BlendMode {
+        NORMAL("s"),
+        MULTIPLY("b * s"),
+        SCREEN("1.0 - (1.0 - b) * (1.0 - s)"),
+        OVERLAY("mix(2.0 * b * s, 1.0 - 2.0 * (1.0 - b) * (1.0 - s), step(0.5, b))"),
+        DARKEN("min(b, s)"),
+        LIGHTEN("max(b, s)"),
+        ADD("b + s"),
+        SUBTRACT("b - s"),
+        DIFFERENCE("abs(b - s)");
+
+        // Of the base color b and the unpremultiplied layer color s
+        private final String expression;
+
+        BlendMode(final String expression) {
+            this.expression = expression;
+        }
+    }
+
+    private static final int SHADER_CACHE_SIZE = 16;
+    private static final int MAX_UNUSED_PASSES = 4;
+
+    // Generated sources by blend modes, the least recently used is dropped first
+    private static final Map<String, String[]> SHADER_CACHE =
+            new LinkedHashMap<String, String[]>(SHADER_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, String[]> eldest) {
+                    return size() > SHADER_CACHE_SIZE;
+                }
+            };
+
+    private static class Layer {
+        final Bitmap bitmap;
+        int texture;
+        BlendMode blendMode;
+        float opacity = 1.0f;
+        // Maps output coordinates to layer coordinates, column major
+        final float[] transform = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+
+        Layer(final Bitmap bitmap, final int texture, final BlendMode blendMode) {
+            this.bitmap = bitmap;
+            this.texture = texture;
+            this.blendMode = blendMode;
+        }
+    }
+
+    // Only touched on the GL thread
+    private final List<Layer> layers = new ArrayList<>();
+    private final List<CompositePass> passes = new ArrayList<>();
+    // Linked passes out of use, the oldest first
+    private final List<CompositePass> unusedPasses = new ArrayList<>();
+    private boolean passesChanged;
+    private int maxLayersPerPass = 1;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
+
+    private int layerCount;
+
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+    private final FloatBuffer glLayerCoordinateBuffer;
+
+    public GPUImageLayerCompositorFilter() {
+        super();
+        glCubeBuffer = createBuffer(CUBE);
+        glTextureBuffer = createBuffer(TEXTURE_FRAMEBUFFER);
+        glLayerCoordinateBuffer = createBuffer(TEXTURE_NO_ROTATION);
+    }
+
+    private static FloatBuffer createBuffer(final float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    /**
+     * Adds a layer on top of the others, covering the whole image until it is transformed. The
+     * bitmap is uploaded once and not recycled by this filter.
+     */
+    public void addLayer(final Bitmap bitmap, final BlendMode blendMode) {
+        addLayer(new Layer(bitmap, OpenGlUtils.NO_TEXTURE, blendMode));
+    }
+
+    /**
+     * Adds a texture the app renders into, e.g. an animated overlay, as a layer on top of the
+     * others. It is read on every draw and not deleted by this filter.
+     */
+    public void addLayer(final int texture, final BlendMode blendMode) {
+        addLayer(new Layer(null, texture, blendMode));
+    }
+
+    private void addLayer(final Layer layer) {
+        layerCount++;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                layers.add(layer);
+                passesChanged = true;
+            }
+        });
+    }
+
+    /**
+     * Removes a layer, the ones above move down one index.
+     */
+    public void removeLayer(final int index) {
+        layerCount--;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                Layer layer = layers.remove(index);
+                if (layer.bitmap != null && layer.texture != OpenGlUtils.NO_TEXTURE) {
+                    GlStateCache.deleteTextures(1, new int[]{layer.texture}, 0);
+                }
+                passesChanged = true;
+            }
+        });
+    }
+
+    public int getLayerCount() {
+        return layerCount;
+    }
+
+    public void setLayerBlendMode(final int index, final BlendMode blendMode) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                Layer layer = layers.get(index);
+                if (layer.blendMode != blendMode) {
+                    layer.blendMode = blendMode;
+                    passesChanged = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * @param opacity from 0.0 (invisible) to 1.0
+     */
+    public void setLayerOpacity(final int index, final float opacity) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                layers.get(index).opacity = opacity;
+            }
+        });
+    }
+
+    /**
+     * Places a layer on the image.
+     *
+     * @param matrix maps the layer onto the image, both as the unit square with the origin at
+     *               the top left, e.g. a scale of 0.5 covers the top left quarter. A matrix that
+     *               cannot be inverted hides the layer.
+     */
+    public void setLayerTransform(final int index, final Matrix matrix) {
+        Matrix inverse = new Matrix();
+        final float[] values = new float[9];
+        if (matrix.invert(inverse)) {
+            inverse.getValues(values);
+        } else {
+            // Maps everything far outside the layer
+            values[Matrix.MTRANS_X] = -2;
+            values[Matrix.MPERSP_2] = 1;
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                // Row major to column major
+                float[] transform = layers.get(index).transform;
+                for (int row = 0; row < 3; row++) {
+                    for (int column = 0; column < 3; column++) {
+                        transform[column * 3 + row] = values[row * 3 + column];
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        maxLayersPerPass = getMaxLayersPerPass();
+        passesChanged = true;
+    }
+
+    /**
+     * How many layers one pass can sample on the current context, the input taking a texture
+     * unit and a varying.
+     */
+    private static int getMaxLayersPerPass() {
+        int[] value = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_IMAGE_UNITS, value, 0);
+        int textureUnits = value[0] - 1;
+        GLES20.glGetIntegerv(GLES20.GL_MAX_VARYING_VECTORS, value, 0);
+        int varyings = value[0] - 1;
+        return Math.max(1, Math.min(textureUnits, varyings));
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        // The passes are only built on the next draw
+        int layersPerPass = getMaxLayersPerPass();
+        for (int start = 0; start < layers.size(); start += layersPerPass) {
+            Layer[] passLayers = layers.subList(start,
+                    Math.min(layers.size(), start + layersPerPass)).toArray(new Layer[0]);
+            String key = getKey(passLayers);
+            if (!containsPass(passes, key) && !containsPass(unusedPasses, key)) {
+                programs.add(getShaders(passLayers, key));
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyPasses();
+        destroyFramebuffers();
+        for (Layer layer : layers) {
+            if (layer.bitmap != null && layer.texture != OpenGlUtils.NO_TEXTURE) {
+                GlStateCache.deleteTextures(1, new int[]{layer.texture}, 0);
+                layer.texture = OpenGlUtils.NO_TEXTURE;
+            }
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        destroyFramebuffers();
+        for (CompositePass pass : passes) {
+            pass.onOutputSizeChanged(width, height);
+        }
+    }
+
+    private void updatePasses() {
+        List<CompositePass> previousPasses = new ArrayList<>(passes);
+        passes.clear();
+        for (Layer layer : layers) {
+            if (layer.bitmap != null && layer.texture == OpenGlUtils.NO_TEXTURE
+                    && !layer.bitmap.isRecycled()) {
+                layer.texture = OpenGlUtils.loadTexture(layer.bitmap, OpenGlUtils.NO_TEXTURE, false);
+            }
+        }
+        for (int start = 0; start < layers.size(); start += maxLayersPerPass) {
+            Layer[] passLayers = layers.subList(start,
+                    Math.min(layers.size(), start + maxLayersPerPass)).toArray(new Layer[0]);
+            String key = getKey(passLayers);
+            CompositePass pass = takePass(previousPasses, key);
+            if (pass == null) {
+                pass = takePass(unusedPasses, key);
+            }
+            if (pass == null) {
+                pass = new CompositePass(passLayers, key, glLayerCoordinateBuffer);
+                pass.ifNeedInit();
+            } else {
+                pass.setLayers(passLayers);
+            }
+            pass.onOutputSizeChanged(getOutputWidth(), getOutputHeight());
+            passes.add(pass);
+        }
+        unusedPasses.addAll(previousPasses);
+        while (unusedPasses.size() > MAX_UNUSED_PASSES) {
+            unusedPasses.remove(0).destroy();
+        }
+        passesChanged = false;
+    }
+
+    private static boolean containsPass(final List<CompositePass> passes, final String key) {
+        for (CompositePass pass : passes) {
+            if (pass.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static CompositePass takePass(final List<CompositePass> passes, final String key) {
+        for (int i = 0; i < passes.size(); i++) {
+            if (passes.get(i).key.equals(key)) {
+                return passes.remove(i);
+            }
+        }
+        return null;
+    }
+
+    private void destroyPasses() {
+        for (CompositePass pass : passes) {
+            pass.destroy();
+        }
+        passes.clear();
+        for (CompositePass pass : unusedPasses) {
+            pass.destroy();
+        }
+        unusedPasses.clear();
+    }
+
+    private void destroyFramebuffers() {
+        if (frameBufferTextures != null) {
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBufferTextures = null;
+        }
+        if (frameBuffers != null) {
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            frameBuffers = null;
+        }
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (!isInitialized()) {
+            return;
+        }
+        if (passesChanged) {
+            updatePasses();
+        }
+        if (passes.isEmpty()) {
+            super.onDraw(frameBuffer, textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        if (passes.size() > 1 && frameBuffers == null) {
+            frameBuffers = new int[2];
+            frameBufferTextures = new int[2];
+            for (int i = 0; i < 2; i++) {
+                OpenGlUtils.createFrameBuffer(getOutputWidth(), getOutputHeight(),
+                        frameBuffers, frameBufferTextures, i);
+            }
+        }
+
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        int previousTexture = textureId;
+        for (int i = 0; i < passes.size(); i++) {
+            boolean isLast = i == passes.size() - 1;
+            int passFrameBuffer = isLast ? targetFrameBuffer : frameBuffers[i % 2];
+            GlStateCache.bindFramebuffer(passFrameBuffer);
+            passes.get(i).onDraw(passFrameBuffer, previousTexture,
+                    isLast ? cubeBuffer : glCubeBuffer, i == 0 ? textureBuffer : glTextureBuffer);
+            if (!isLast) {
+                previousTexture = frameBufferTextures[i % 2];
+            }
+        }
+    }
+
+    /**
+     * What the shaders of a pass depend on, the blend modes of its layers in order.
+     */
+    private static String getKey(final Layer[] layers) {
+        StringBuilder key = new StringBuilder();
+        for (Layer layer : layers) {
+            key.append(layer.blendMode.name()).append(',');
+        }
+        return key.toString();
+    }
+
+    private static String[] getShaders(final Layer[] layers, final String key) {
+        synchronized (SHADER_CACHE) {
+            String[] shaders = SHADER_CACHE.get(key);
+            if (shaders == null) {
+                shaders = new String[]{createVertexShader(layers), createFragmentShader(layers)};
+                SHADER_CACHE.put(key, shaders);
+            }
+            return shaders;
+        }
+    }
+
+    private static String createVertexShader(final Layer[] layers) {
+        StringBuilder shader = new StringBuilder()
+                .append("attribute vec4 position;\n")
+                .append("attribute vec4 inputTextureCoordinate;\n")
+                .append("attribute vec4 inputTextureCoordinate2;\n")
+                .append("\n");
+        for (int i = 0; i < layers.length; i++) {
+            shader.append("uniform highp mat3 layerTransform").append(i).append(";\n");
+        }
+        shader.append("\n")
+                .append("varying vec2 textureCoordinate;\n");
+        for (int i = 0; i < layers.length; i++) {
+            shader.append("varying highp vec3 layerCoordinate").append(i).append(";\n");
+        }
+        shader.append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    gl_Position = position;\n")
+                .append("    textureCoordinate = inputTextureCoordinate.xy;\n")
+                .append("    highp vec3 coordinate = vec3(inputTextureCoordinate2.xy, 1.0);\n");
+        for (int i = 0; i < layers.length; i++) {
+            shader.append("    layerCoordinate").append(i)
+                    .append(" = layerTransform").append(i).append(" * coordinate;\n");
+        }
+        return shader.append("}").toString();
+    }
+
+    private static String createFragmentShader(final Layer[] layers) {
+        StringBuilder shader = new StringBuilder()
+                .append("varying highp vec2 textureCoordinate;\n");
+        for (int i = 0; i < layers.length; i++) {
+            shader.append("varying highp vec3 layerCoordinate").append(i).append(";\n");
+        }
+        shader.append("\n")
+                .append("uniform sampler2D inputImageTexture;\n");
+        for (int i = 0; i < layers.length; i++) {
+            shader.append("uniform sampler2D layerTexture").append(i).append(";\n")
+                    .append("uniform lowp float layerOpacity").append(i).append(";\n");
+        }
+        shader.append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    lowp vec4 color = texture2D(inputImageTexture, textureCoordinate);\n")
+                .append("    highp vec2 uv;\n")
+                .append("    lowp vec4 layer;\n")
+                .append("    lowp float alpha;\n")
+                .append("    lowp vec3 b;\n")
+                .append("    lowp vec3 s;\n");
+        for (int i = 0; i < layers.length; i++) {
+            shader.append("\n")
+                    .append("    uv = layerCoordinate").append(i)
+                    .append(".xy / layerCoordinate").append(i).append(".z;\n")
+                    .append("    layer = texture2D(layerTexture").append(i).append(", uv);\n")
+                    // Nothing outside of the layer
+                    .append("    alpha = layer.a * layerOpacity").append(i)
+                    .append(" * step(0.0, uv.x) * step(uv.x, 1.0) * step(0.0, uv.y) * step(uv.y, 1.0);\n")
+                    .append("    b = color.rgb;\n")
+                    .append("    s = layer.rgb / max(layer.a, 0.001);\n")
+                    .append("    color.rgb = mix(b, clamp(").append(layers[i].blendMode.expression)
+                    .append(", 0.0, 1.0), alpha);\n")
+                    .append("    color.a = color.a + alpha * (1.0 - color.a);\n");
+        }
+        return shader.append("\n")
+                .append("    gl_FragColor = color;\n")
+                .append("}").toString();
+    }
+
+    /**
+     * Blends the layers one program can sample over its input.
+     */
+    private static class CompositePass extends GPUImageFilter {
+        final String key;
+        private Layer[] layers;
+        private final FloatBuffer layerCoordinateBuffer;
+        private final int[] textureLocations;
+        private final int[] transformLocations;
+        private final int[] opacityLocations;
+        private int layerCoordinateAttribute;
+
+        CompositePass(final Layer[] layers, final String key,
+                      final FloatBuffer layerCoordinateBuffer) {
+            this(layers, key, getShaders(layers, key), layerCoordinateBuffer);
+        }
+
+        private CompositePass(final Layer[] layers, final String key, final String[] shaders,
+                              final FloatBuffer layerCoordinateBuffer) {
+            super(shaders[0], shaders[1]);
+            this.key = key;
+            this.layers = layers;
+            this.layerCoordinateBuffer = layerCoordinateBuffer;
+            textureLocations = new int[layers.length];
+            transformLocations = new int[layers.length];
+            opacityLocations = new int[layers.length];
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            layerCoordinateAttribute = GLES20.glGetAttribLocation(getProgram(), "inputTextureCoordinate2");
+            for (int i = 0; i < layers.length; i++) {
+                textureLocations[i] = GLES20.glGetUniformLocation(getProgram(), "layerTexture" + i);
+                transformLocations[i] = GLES20.glGetUniformLocation(getProgram(), "layerTransform" + i);
+                opacityLocations[i] = GLES20.glGetUniformLocation(getProgram(), "layerOpacity" + i);
+            }
+        }
+
+        /**
+         * Draws other layers with the same blend modes.
+         */
+        void setLayers(final Layer[] layers) {
+            this.layers = layers;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            layerCoordinateBuffer.position(0);
+            GLES20.glVertexAttribPointer(layerCoordinateAttribute, 2, GLES20.GL_FLOAT, false, 0,
+                    layerCoordinateBuffer);
+            GlStateCache.enableVertexAttribArray(layerCoordinateAttribute);
+            for (int i = 0; i < layers.length; i++) {
+                Layer layer = layers[i];
+                GlStateCache.activeTexture(GLES20.GL_TEXTURE1 + i);
+                GlStateCache.bindTexture(layer.texture);
+                GLES20.glUniform1i(textureLocations[i], 1 + i);
+                GLES20.glUniformMatrix3fv(transformLocations[i], 1, false, layer.transform, 0);
+                // Unbound textures read as opaque black, so hide layers without one
+                GLES20.glUniform1f(opacityLocations[i],
+                        layer.texture != OpenGlUtils.NO_TEXTURE ? layer.opacity : 0.0f);
+            }
+            GlStateCache.activeTexture(GLES20.GL_TEXTURE0);
+        }
+
+        @Override
+        protected void onDrawArraysAfter() {
+            GlStateCache.disableVertexAttribArray(layerCoordinateAttribute);
+        }
+    }
+}
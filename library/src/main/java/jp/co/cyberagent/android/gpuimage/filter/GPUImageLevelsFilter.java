@@ -126,4 +126,9 @@ public class GPUImageLevelsFilter extends GPUImageFilter {
     public void setBlueMin(float min, float mid, float max) {
         setBlueMin(min, mid, max, 0, 1);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(min, mid, max, minOutput, maxOutput);
+    }
 }
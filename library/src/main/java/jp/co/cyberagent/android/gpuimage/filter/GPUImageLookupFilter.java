@@ -16,6 +16,7 @@
 
 package jp.co.cyberagent.android.gpuimage.filter;
 
+import android.graphics.Bitmap;
 import android.opengl.GLES20;
 
 public class GPUImageLookupFilter extends GPUImageTwoInputFilter {
@@ -85,4 +86,22 @@ public class GPUImageLookupFilter extends GPUImageTwoInputFilter {
         this.intensity = intensity;
         setFloat(intensityLocation, this.intensity);
     }
+
+    /**
+     * Creates the 512x512 lookup image that maps every color to itself: 64 tiles of 64x64, one
+     * per blue level, with red growing to the right and green growing downwards in each tile.
+     * Applying per-pixel filters to it gives a lookup image that reproduces them.
+     */
+    public static Bitmap createIdentityBitmap() {
+        int[] pixels = new int[512 * 512];
+        for (int y = 0; y < 512; y++) {
+            for (int x = 0; x < 512; x++) {
+                int red = Math.round((x % 64) * 255f / 63f);
+                int green = Math.round((y % 64) * 255f / 63f);
+                int blue = Math.round(((y / 64) * 8 + x / 64) * 255f / 63f);
+                pixels[y * 512 + x] = 0xff000000 | (red << 16) | (green << 8) | blue;
+            }
+        }
+        return Bitmap.createBitmap(pixels, 512, 512, Bitmap.Config.ARGB_8888);
+    }
 }
@@ -39,4 +39,9 @@ public class GPUImageLuminanceFilter extends GPUImageFilter {
     public GPUImageLuminanceFilter() {
         super(NO_FILTER_VERTEX_SHADER, LUMINANCE_FRAGMENT_SHADER);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey();
+    }
 }
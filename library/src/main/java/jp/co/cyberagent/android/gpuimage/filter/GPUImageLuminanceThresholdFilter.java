@@ -65,4 +65,9 @@ public class GPUImageLuminanceThresholdFilter extends GPUImageFilter {
         this.threshold = threshold;
         setFloat(uniformThresholdLocation, threshold);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(threshold);
+    }
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.Lut3D;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+/**
+ * Applies a 3D color lookup table of any size, e.g. one read with {@link Lut3D#readCube} or
+ * {@link Lut3D#read3dl}.
+ * <p>
+ * On OpenGL ES 3.0 the table is uploaded as a GL_TEXTURE_3D and looked up with a single
+ * hardware trilinear fetch. Filters using the same {@link Lut3D} object on the same GL context
+ * share one texture. Elsewhere the table is resampled into the 64^3 lookup image of
+ * {@link GPUImageLookupFilter}.
+ */
+public class GPUImageLut3DFilter extends GPUImageFilter {
+    private static final String TAG = "GPUImageLut3DFilter";
+
+    public static final String LUT_3D_VERTEX_SHADER = "" +
+            "#version 300 es\n" +
+            "in vec4 position;\n" +
+            "in vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "out vec2 textureCoordinate;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "}";
+
+    public static final String LUT_3D_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "\n" +
+            "in vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform mediump sampler3D lookupTexture;\n" +
+            "uniform vec3 domainMin;\n" +
+            "uniform vec3 domainScale;\n" +
+            "uniform float lookupScale;\n" +
+            "uniform float lookupOffset;\n" +
+            "uniform lowp float intensity;\n" +
+            "\n" +
+            "out vec4 fragColor;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec4 textureColor = texture(inputImageTexture, textureCoordinate);\n" +
+            "    vec3 position = clamp((textureColor.rgb - domainMin) * domainScale, 0.0, 1.0);\n" +
+            "    vec3 newColor = texture(lookupTexture, position * lookupScale + lookupOffset).rgb;\n" +
+            "    fragColor = vec4(mix(textureColor.rgb, newColor, intensity), textureColor.a);\n" +
+            "}";
+
+    private static final Map<EGLContext, Map<Lut3D, int[]>> SHARED_TEXTURES = new HashMap<>();
+
+    private final Lut3D lut;
+    private float intensity;
+    private Lut3DTextureFilter lutFilter;
+    private GPUImageLookupFilter fallbackFilter;
+
+    public GPUImageLut3DFilter(final Lut3D lut) {
+        this(lut, 1.0f);
+    }
+
+    /**
+     * @param lut       the lookup table
+     * @param intensity how much of the looked up color to mix in, from 0.0 to 1.0
+     */
+    public GPUImageLut3DFilter(final Lut3D lut, final float intensity) {
+        // Draws through the 3D texture or the fallback filter only
+        super(null, null);
+        this.lut = lut;
+        this.intensity = intensity;
+    }
+
+    public Lut3D getLut() {
+        return lut;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        if (supports3DTextures()) {
+            lutFilter = new Lut3DTextureFilter(lut);
+            lutFilter.ifNeedInit();
+        } else {
+            Log.w(TAG, "3D textures are not supported, falling back to a 2D lookup image");
+            fallbackFilter = new GPUImageLookupFilter(intensity);
+            fallbackFilter.setBitmap(lut.toLookupBitmap());
+            fallbackFilter.ifNeedInit();
+        }
+    }
+
+    private static boolean supports3DTextures() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && OpenGlUtils.isGLES30Supported();
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setIntensity(intensity);
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        if (lutFilter != null || fallbackFilter == null && supports3DTextures()) {
+            programs.add(new String[]{LUT_3D_VERTEX_SHADER, LUT_3D_FRAGMENT_SHADER});
+        } else if (fallbackFilter != null) {
+            fallbackFilter.collectPrograms(programs);
+        } else {
+            // The fallback is only created while initializing
+            new GPUImageLookupFilter().collectPrograms(programs);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        if (lutFilter != null) {
+            lutFilter.destroy();
+            lutFilter = null;
+        }
+        if (fallbackFilter != null) {
+            fallbackFilter.destroy();
+            fallbackFilter.recycleBitmap();
+            fallbackFilter = null;
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        if (lutFilter != null) {
+            lutFilter.onOutputSizeChanged(width, height);
+        } else if (fallbackFilter != null) {
+            fallbackFilter.onOutputSizeChanged(width, height);
+        }
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (lutFilter != null) {
+            lutFilter.onDraw(frameBuffer, textureId, cubeBuffer, textureBuffer);
+        } else if (fallbackFilter != null) {
+            fallbackFilter.onDraw(frameBuffer, textureId, cubeBuffer, textureBuffer);
+        }
+    }
+
+    /**
+     * @param intensity how much of the looked up color to mix in, from 0.0 to 1.0
+     */
+    public void setIntensity(final float intensity) {
+        this.intensity = intensity;
+        if (lutFilter != null) {
+            lutFilter.setIntensity(intensity);
+        } else if (fallbackFilter != null) {
+            fallbackFilter.setIntensity(intensity);
+        }
+    }
+
+    public float getIntensity() {
+        return intensity;
+    }
+
+    /**
+     * Returns the 3D texture of the table on the current context, uploading it if no other
+     * filter did. Every call must be balanced by {@link #releaseTexture(EGLContext, Lut3D)}
+     * with the context current here.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static int acquireTexture(final Lut3D lut) {
+        synchronized (SHARED_TEXTURES) {
+            EGLContext context = EGL14.eglGetCurrentContext();
+            Map<Lut3D, int[]> textures = SHARED_TEXTURES.get(context);
+            if (textures == null) {
+                textures = new HashMap<>();
+                SHARED_TEXTURES.put(context, textures);
+            }
+            // {texture, reference count}
+            int[] entry = textures.get(lut);
+            if (entry == null) {
+                entry = new int[]{OpenGlUtils.NO_TEXTURE, 0};
+                int[] texture = new int[1];
+                GLES20.glGenTextures(1, texture, 0);
+                GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, texture[0]);
+                GLES20.glTexParameteri(GLES30.GL_TEXTURE_3D,
+                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+                GLES20.glTexParameteri(GLES30.GL_TEXTURE_3D,
+                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+                GLES20.glTexParameteri(GLES30.GL_TEXTURE_3D,
+                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+                GLES20.glTexParameteri(GLES30.GL_TEXTURE_3D,
+                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+                GLES20.glTexParameteri(GLES30.GL_TEXTURE_3D,
+                        GLES30.GL_TEXTURE_WRAP_R, GLES20.GL_CLAMP_TO_EDGE);
+                int size = lut.getSize();
+                GLES30.glTexImage3D(GLES30.GL_TEXTURE_3D, 0, GLES30.GL_RGB16F, size, size, size,
+                        0, GLES20.GL_RGB, GLES20.GL_FLOAT, lut.getData());
+                GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, 0);
+                entry[0] = texture[0];
+                textures.put(lut, entry);
+            }
+            entry[1]++;
+            return entry[0];
+        }
+    }
+
+    /**
+     * Drops a reference taken on the given context, removing the entry with the last one. The
+     * texture is only deleted while that context is current, otherwise it went away with it.
+     */
+    private static void releaseTexture(final EGLContext context, final Lut3D lut) {
+        synchronized (SHARED_TEXTURES) {
+            Map<Lut3D, int[]> textures = SHARED_TEXTURES.get(context);
+            int[] entry = textures != null ? textures.get(lut) : null;
+            if (entry == null || --entry[1] > 0) {
+                return;
+            }
+            textures.remove(lut);
+            if (context.equals(EGL14.eglGetCurrentContext())) {
+                GlStateCache.deleteTextures(1, entry, 0);
+            }
+            if (textures.isEmpty()) {
+                SHARED_TEXTURES.remove(context);
+            }
+        }
+    }
+
+    private static class Lut3DTextureFilter extends GPUImageFilter {
+        private final Lut3D lut;
+        // The context the texture was acquired on
+        private EGLContext context;
+        private int lookupTexture = OpenGlUtils.NO_TEXTURE;
+        private int lookupTextureLocation;
+        private int intensityLocation;
+        private float intensity;
+
+        Lut3DTextureFilter(final Lut3D lut) {
+            super(LUT_3D_VERTEX_SHADER, LUT_3D_FRAGMENT_SHADER);
+            this.lut = lut;
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            context = EGL14.eglGetCurrentContext();
+            lookupTexture = acquireTexture(lut);
+            lookupTextureLocation = GLES20.glGetUniformLocation(getProgram(), "lookupTexture");
+            intensityLocation = GLES20.glGetUniformLocation(getProgram(), "intensity");
+        }
+
+        @Override
+        public void onInitialized() {
+            super.onInitialized();
+            float[] domainMin = lut.getDomainMin();
+            float[] domainMax = lut.getDomainMax();
+            float[] domainScale = new float[3];
+            for (int i = 0; i < 3; i++) {
+                float range = domainMax[i] - domainMin[i];
+                domainScale[i] = range > 0f ? 1f / range : 0f;
+            }
+            // Map [0, 1] onto the texel centers of the first and last entry
+            int size = lut.getSize();
+            setFloatVec3(GLES20.glGetUniformLocation(getProgram(), "domainMin"), domainMin);
+            setFloatVec3(GLES20.glGetUniformLocation(getProgram(), "domainScale"), domainScale);
+            setFloat(GLES20.glGetUniformLocation(getProgram(), "lookupScale"),
+                    (size - 1f) / size);
+            setFloat(GLES20.glGetUniformLocation(getProgram(), "lookupOffset"), 0.5f / size);
+            setIntensity(intensity);
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            releaseTexture(context, lut);
+            context = null;
+            lookupTexture = OpenGlUtils.NO_TEXTURE;
+        }
+
+        void setIntensity(final float intensity) {
+            this.intensity = intensity;
+            setFloat(intensityLocation, intensity);
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            GlStateCache.activeTexture(GLES20.GL_TEXTURE3);
+            GLES20.glBindTexture(GLES30.GL_TEXTURE_3D, lookupTexture);
+            GLES20.glUniform1i(lookupTextureLocation, 3);
+        }
+    }
+}
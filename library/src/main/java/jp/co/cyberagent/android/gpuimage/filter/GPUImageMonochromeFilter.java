@@ -98,4 +98,9 @@ public class GPUImageMonochromeFilter extends GPUImageFilter {
     public void setColor(final float red, final float green, final float blue) {
         setFloatVec3(filterColorLocation, new float[]{red, green, blue});
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(intensity, color);
+    }
 }
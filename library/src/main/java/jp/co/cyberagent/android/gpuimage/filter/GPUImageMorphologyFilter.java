@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+
+/**
+ * Morphological operations (dilation, erosion, opening and closing) with a square structuring
+ * element extending out radius pixels from the center, for any radius.
+ * <p>
+ * Every operation runs as separable horizontal and vertical passes. Radii above
+ * {@link #MAX_PASS_RADIUS} are decomposed into repeated passes whose taps are spread further apart
+ * each time, so the number of texture reads grows with log(radius) rather than with the radius.
+ * The pass shaders are generated on demand and cached.
+ * <p>
+ * By default only the red channel is used and the result is written as grayscale, which suits
+ * black-and-white thresholded images. In RGB mode all four channels are processed independently.
+ */
+public class GPUImageMorphologyFilter extends GPUImageFilter {
+
+    public enum Operation {
+        /** Maximum over the neighborhood, extends bright features. */
+        DILATE,
+        /** Minimum over the neighborhood, extends dark features. */
+        ERODE,
+        /** Erosion followed by dilation, removes small bright features. */
+        OPEN,
+        /** Dilation followed by erosion, removes small dark features. */
+        CLOSE
+    }
+
+    /**
+     * The largest number of tap pairs a single pass samples on each side of the center.
+     */
+    public static final int MAX_PASS_RADIUS = 4;
+
+    private static final Map<String, String> SHADER_CACHE = new HashMap<>();
+
+    private final Operation operation;
+    private final boolean rgb;
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+    private final List<GPUImageOffsetPassFilter> passFilters = new ArrayList<>();
+
+    private int radius;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
+
+    public GPUImageMorphologyFilter() {
+        this(Operation.DILATE, 1, false);
+    }
+
+    /**
+     * @param operation the morphological operation
+     * @param radius    the distance in pixels to sample out from the center, 1 or more
+     * @param rgb       process all channels instead of only the red channel
+     */
+    public GPUImageMorphologyFilter(Operation operation, int radius, boolean rgb) {
+        super();
+        this.operation = operation;
+        this.radius = Math.max(1, radius);
+        this.rgb = rgb;
+        createPassFilters();
+
+        glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glCubeBuffer.put(CUBE).position(0);
+
+        glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (GPUImageFilter filter : passFilters) {
+            filter.ifNeedInit();
+        }
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        for (GPUImageFilter filter : passFilters) {
+            filter.collectPrograms(programs);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyFramebuffers();
+        for (GPUImageFilter filter : passFilters) {
+            filter.destroy();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        destroyFramebuffers();
+        if (width == 0 || height == 0) {
+            return;
+        }
+        frameBuffers = new int[2];
+        frameBufferTextures = new int[2];
+        for (int i = 0; i < 2; i++) {
+            OpenGlUtils.createFrameBuffer(width, height, frameBuffers, frameBufferTextures, i);
+        }
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (!isInitialized() || frameBuffers == null) {
+            return;
+        }
+
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        int previousTexture = textureId;
+
+        // Every pass filter runs once horizontally and once vertically
+        int passes = passFilters.size() * 2;
+        for (int i = 0; i < passes; i++) {
+            GPUImageOffsetPassFilter filter = passFilters.get(i / 2);
+            boolean isLast = i == passes - 1;
+            GlStateCache.bindFramebuffer(isLast ? targetFrameBuffer : frameBuffers[i % 2]);
+            boolean vertical = i % 2 == 1;
+            FloatBuffer sourceBuffer = i == 0 ? textureBuffer : glTextureBuffer;
+            float[] step = GPUImageOffsetPassFilter.getPixelStep(sourceBuffer, vertical,
+                    vertical ? getOutputHeight() : getOutputWidth());
+            filter.setOffset(step[0], step[1]);
+            filter.onDraw(frameBuffer, previousTexture,
+                    isLast ? cubeBuffer : glCubeBuffer, sourceBuffer);
+            previousTexture = frameBufferTextures[i % 2];
+        }
+    }
+
+    /**
+     * The distance in pixels to sample out from the center, 1 or more. Changing it rebuilds the
+     * pass shaders on the next draw.
+     *
+     * @param radius 1 or more
+     */
+    public void setRadius(final int radius) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                int newRadius = Math.max(1, radius);
+                if (newRadius == GPUImageMorphologyFilter.this.radius) {
+                    return;
+                }
+                GPUImageMorphologyFilter.this.radius = newRadius;
+                for (GPUImageFilter filter : passFilters) {
+                    filter.destroy();
+                }
+                createPassFilters();
+                for (GPUImageFilter filter : passFilters) {
+                    filter.ifNeedInit();
+                }
+            }
+        });
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    /**
+     * Estimates the cost of an operation as the number of texture reads per output pixel summed
+     * over all passes. Useful to compare radii, since it grows with log(radius).
+     */
+    public static int getTextureReadsPerPixel(final Operation operation, final int radius) {
+        int reads = 0;
+        for (int[] offsets : decompose(Math.max(1, radius))) {
+            // Center plus both sides, once per axis
+            reads += 2 * (1 + 2 * offsets.length);
+        }
+        return operation == Operation.OPEN || operation == Operation.CLOSE ? reads * 2 : reads;
+    }
+
+    private void createPassFilters() {
+        passFilters.clear();
+        switch (operation) {
+            case DILATE:
+                addPassFilters(true);
+                break;
+            case ERODE:
+                addPassFilters(false);
+                break;
+            case OPEN:
+                addPassFilters(false);
+                addPassFilters(true);
+                break;
+            case CLOSE:
+                addPassFilters(true);
+                addPassFilters(false);
+                break;
+        }
+    }
+
+    private void addPassFilters(final boolean dilate) {
+        for (int[] offsets : decompose(radius)) {
+            passFilters.add(new GPUImageOffsetPassFilter(NO_FILTER_VERTEX_SHADER,
+                    getFragmentShader(dilate, rgb, offsets), "texelStep"));
+        }
+    }
+
+    private void destroyFramebuffers() {
+        if (frameBufferTextures != null) {
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBufferTextures = null;
+        }
+        if (frameBuffers != null) {
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            frameBuffers = null;
+        }
+    }
+
+    /**
+     * Splits a radius into passes of at most {@link #MAX_PASS_RADIUS} tap offsets each. A pass
+     * applied after passes covering [-covered, covered] may space its taps up to
+     * 2 * covered + 1 apart without leaving holes, so the covered range grows geometrically.
+     */
+    static int[][] decompose(final int radius) {
+        List<int[]> passes = new ArrayList<>();
+        int covered = 0;
+        while (covered < radius) {
+            int remaining = radius - covered;
+            int stride = Math.min(2 * covered + 1,
+                    (remaining + MAX_PASS_RADIUS - 1) / MAX_PASS_RADIUS);
+            int[] offsets;
+            if (stride * MAX_PASS_RADIUS >= remaining) {
+                offsets = new int[(remaining + stride - 1) / stride];
+                for (int i = 0; i < offsets.length - 1; i++) {
+                    offsets[i] = (i + 1) * stride;
+                }
+                offsets[offsets.length - 1] = remaining;
+            } else {
+                offsets = new int[MAX_PASS_RADIUS];
+                for (int i = 0; i < offsets.length; i++) {
+                    offsets[i] = (i + 1) * stride;
+                }
+            }
+            covered += offsets[offsets.length - 1];
+            passes.add(offsets);
+        }
+        return passes.toArray(new int[passes.size()][]);
+    }
+
+    private static String getFragmentShader(final boolean dilate, final boolean rgb,
+                                            final int[] offsets) {
+        String key = (dilate ? "max" : "min") + (rgb ? "4" : "1") + Arrays.toString(offsets);
+        synchronized (SHADER_CACHE) {
+            String shader = SHADER_CACHE.get(key);
+            if (shader == null) {
+                shader = createFragmentShader(dilate, rgb, offsets);
+                SHADER_CACHE.put(key, shader);
+            }
+            return shader;
+        }
+    }
+
+    private static String createFragmentShader(final boolean dilate, final boolean rgb,
+                                               final int[] offsets) {
+        String function = dilate ? "max" : "min";
+        String channels = rgb ? "" : ".r";
+        StringBuilder shader = new StringBuilder()
+                .append("varying highp vec2 textureCoordinate;\n")
+                .append("\n")
+                .append("uniform sampler2D inputImageTexture;\n")
+                .append("uniform highp vec2 texelStep;\n")
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append(rgb ? "    lowp vec4" : "    lowp float")
+                .append(" value = texture2D(inputImageTexture, textureCoordinate)")
+                .append(channels).append(";\n");
+        for (int offset : offsets) {
+            shader.append("    value = ").append(function)
+                    .append("(value, texture2D(inputImageTexture, textureCoordinate + texelStep * ")
+                    .append(offset).append(".0)").append(channels).append(");\n");
+            shader.append("    value = ").append(function)
+                    .append("(value, texture2D(inputImageTexture, textureCoordinate - texelStep * ")
+                    .append(offset).append(".0)").append(channels).append(");\n");
+        }
+        shader.append(rgb ? "    gl_FragColor = value;\n" : "    gl_FragColor = vec4(vec3(value), 1.0);\n")
+                .append("}");
+        return shader.toString();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+/**
+ * One pass of a filter that drives several passes itself. The only state that changes between
+ * draws is a vec2 offset uniform, which is uploaded right before drawing instead of being queued,
+ * so the same pass can be drawn several times per frame with different offsets.
+ * <p>
+ * Passes combining their input with an earlier result read it as inputImageTexture2 at
+ * inputTextureCoordinate2, like {@link GPUImageTwoInputFilter}, see
+ * {@link #setSecondInput(int, FloatBuffer)}.
+ */
+class GPUImageOffsetPassFilter extends GPUImageFilter {
+    private final String offsetUniformName;
+    private int offsetLocation;
+    private float offsetX;
+    private float offsetY;
+    private int secondTextureLocation;
+    private int secondCoordinateAttribute;
+    private int secondTexture = OpenGlUtils.NO_TEXTURE;
+    private FloatBuffer secondCoordinates;
+
+    GPUImageOffsetPassFilter(final String vertexShader, final String fragmentShader,
+                             final String offsetUniformName) {
+        super(vertexShader, fragmentShader);
+        this.offsetUniformName = offsetUniformName;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        offsetLocation = GLES20.glGetUniformLocation(getProgram(), offsetUniformName);
+        secondTextureLocation = GLES20.glGetUniformLocation(getProgram(), "inputImageTexture2");
+        secondCoordinateAttribute = GLES20.glGetAttribLocation(getProgram(),
+                "inputTextureCoordinate2");
+    }
+
+    void setOffset(final float x, final float y) {
+        offsetX = x;
+        offsetY = y;
+    }
+
+    /**
+     * Sets the second input of the next draws, bound to texture unit 3.
+     *
+     * @param texture     the texture, or {@link OpenGlUtils#NO_TEXTURE} for none
+     * @param coordinates where the quad samples it, used if the shader reads them
+     */
+    void setSecondInput(final int texture, final FloatBuffer coordinates) {
+        secondTexture = texture;
+        secondCoordinates = coordinates;
+    }
+
+    /**
+     * Returns the step of one output pixel along the horizontal or vertical axis of the quad,
+     * in the texture coordinates the given buffer maps onto it. Unlike 1 / width this follows
+     * rotated inputs such as camera frames, so a horizontal pass stays horizontal on screen.
+     *
+     * @param textureBuffer texture coordinates in the vertex order of the renderer's CUBE
+     * @param vertical      step along the vertical axis instead of the horizontal one
+     * @param size          output size in pixels along that axis
+     */
+    static float[] getPixelStep(final FloatBuffer textureBuffer, final boolean vertical,
+                                final int size) {
+        int corner = vertical ? 4 : 2;
+        return new float[]{
+                (textureBuffer.get(corner) - textureBuffer.get(0)) / size,
+                (textureBuffer.get(corner + 1) - textureBuffer.get(1)) / size
+        };
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        GLES20.glUniform2f(offsetLocation, offsetX, offsetY);
+        if (secondCoordinateAttribute >= 0 && secondCoordinates != null) {
+            secondCoordinates.position(0);
+            GLES20.glVertexAttribPointer(secondCoordinateAttribute, 2, GLES20.GL_FLOAT,
+                    false, 0, secondCoordinates);
+            GlStateCache.enableVertexAttribArray(secondCoordinateAttribute);
+        }
+        if (secondTexture != OpenGlUtils.NO_TEXTURE) {
+            GlStateCache.activeTexture(GLES20.GL_TEXTURE3);
+            GlStateCache.bindTexture(secondTexture);
+            GLES20.glUniform1i(secondTextureLocation, 3);
+        }
+    }
+
+    @Override
+    protected void onDrawArraysAfter() {
+        if (secondCoordinateAttribute >= 0 && secondCoordinates != null) {
+            GlStateCache.disableVertexAttribArray(secondCoordinateAttribute);
+        }
+    }
+}
@@ -64,4 +64,9 @@ public class GPUImageOpacityFilter extends GPUImageFilter {
         this.opacity = opacity;
         setFloat(opacityLocation, this.opacity);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(opacity);
+    }
 }
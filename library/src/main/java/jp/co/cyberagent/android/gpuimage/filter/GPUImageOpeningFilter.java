@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+/**
+ * This performs an erosion on the red channel of an image, followed by a dilation of the same radius.
+ * This filters out smaller bright regions.
+ */
+public class GPUImageOpeningFilter extends GPUImageMorphologyFilter {
+
+    public GPUImageOpeningFilter() {
+        this(1);
+    }
+
+    /**
+     * The opening radius sets the distance in pixels to sample out from the center. Any radius
+     * of 1 or more is accepted; radii above {@link #MAX_PASS_RADIUS} take additional passes.
+     *
+     * @param radius 1 or more
+     */
+    public GPUImageOpeningFilter(int radius) {
+        super(Operation.OPEN, radius, false);
+    }
+}
@@ -65,4 +65,9 @@ public class GPUImagePosterizeFilter extends GPUImageFilter {
         this.colorLevels = colorLevels;
         setFloat(glUniformColorLevels, colorLevels);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(colorLevels);
+    }
 }
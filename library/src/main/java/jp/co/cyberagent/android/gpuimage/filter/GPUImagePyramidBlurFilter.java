@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+
+/**
+ * A dual Kawase blur which renders the image into a chain of progressively halved framebuffers
+ * and back up again. Each level only costs a handful of bilinear taps at its own resolution, so
+ * the cost stays roughly constant while the blur radius doubles with every level. Use this in
+ * place of {@link GPUImageGaussianBlurFilter} or {@link GPUImageBoxBlurFilter} for blur sizes
+ * above 4, where their fixed kernels start to show gaps.
+ * <p>
+ * blurSize: same scale as {@link GPUImageGaussianBlurFilter#setBlurSize(float)}, default of 4.0
+ */
+public class GPUImagePyramidBlurFilter extends GPUImageFilter {
+    public static final String DOWNSAMPLE_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "uniform highp vec2 halfPixel;\n" +
+            "\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying highp vec4 diagonalCoordinates[2];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    vec2 uv = inputTextureCoordinate.xy;\n" +
+            "    textureCoordinate = uv;\n" +
+            "    diagonalCoordinates[0] = vec4(uv - halfPixel, uv + halfPixel);\n" +
+            "    diagonalCoordinates[1] = vec4(uv + vec2(halfPixel.x, -halfPixel.y),\n" +
+            "                                  uv - vec2(halfPixel.x, -halfPixel.y));\n" +
+            "}";
+
+    public static final String DOWNSAMPLE_FRAGMENT_SHADER = "" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying highp vec4 diagonalCoordinates[2];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    mediump vec4 sum = texture2D(inputImageTexture, textureCoordinate) * 4.0;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[0].xy);\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[0].zw);\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[1].xy);\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[1].zw);\n" +
+            "    gl_FragColor = sum * 0.125;\n" +
+            "}";
+
+    public static final String UPSAMPLE_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "uniform highp vec2 halfPixel;\n" +
+            "\n" +
+            "varying highp vec4 axisCoordinates[2];\n" +
+            "varying highp vec4 diagonalCoordinates[2];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    vec2 uv = inputTextureCoordinate.xy;\n" +
+            "    axisCoordinates[0] = vec4(uv - vec2(halfPixel.x * 2.0, 0.0), uv + vec2(halfPixel.x * 2.0, 0.0));\n" +
+            "    axisCoordinates[1] = vec4(uv - vec2(0.0, halfPixel.y * 2.0), uv + vec2(0.0, halfPixel.y * 2.0));\n" +
+            "    diagonalCoordinates[0] = vec4(uv - halfPixel, uv + halfPixel);\n" +
+            "    diagonalCoordinates[1] = vec4(uv + vec2(halfPixel.x, -halfPixel.y),\n" +
+            "                                  uv - vec2(halfPixel.x, -halfPixel.y));\n" +
+            "}";
+
+    public static final String UPSAMPLE_FRAGMENT_SHADER = "" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "varying highp vec4 axisCoordinates[2];\n" +
+            "varying highp vec4 diagonalCoordinates[2];\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    mediump vec4 sum = texture2D(inputImageTexture, axisCoordinates[0].xy);\n" +
+            "    sum += texture2D(inputImageTexture, axisCoordinates[0].zw);\n" +
+            "    sum += texture2D(inputImageTexture, axisCoordinates[1].xy);\n" +
+            "    sum += texture2D(inputImageTexture, axisCoordinates[1].zw);\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[0].xy) * 2.0;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[0].zw) * 2.0;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[1].xy) * 2.0;\n" +
+            "    sum += texture2D(inputImageTexture, diagonalCoordinates[1].zw) * 2.0;\n" +
+            "    gl_FragColor = sum / 12.0;\n" +
+            "}";
+
+    public static final int MAX_LEVELS = 8;
+
+    private final GPUImageOffsetPassFilter downsampleFilter;
+    private final GPUImageOffsetPassFilter upsampleFilter;
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+
+    private float blurSize;
+    private int levels;
+    private float offset;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
+    private int[] levelWidths;
+    private int[] levelHeights;
+
+    public GPUImagePyramidBlurFilter() {
+        this(4f);
+    }
+
+    public GPUImagePyramidBlurFilter(float blurSize) {
+        super();
+        downsampleFilter = new GPUImageOffsetPassFilter(DOWNSAMPLE_VERTEX_SHADER, DOWNSAMPLE_FRAGMENT_SHADER,
+                "halfPixel");
+        upsampleFilter = new GPUImageOffsetPassFilter(UPSAMPLE_VERTEX_SHADER, UPSAMPLE_FRAGMENT_SHADER,
+                "halfPixel");
+
+        glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glCubeBuffer.put(CUBE).position(0);
+
+        glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+
+        updateLevels(blurSize);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        downsampleFilter.ifNeedInit();
+        upsampleFilter.ifNeedInit();
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        downsampleFilter.collectPrograms(programs);
+        upsampleFilter.collectPrograms(programs);
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyFramebuffers();
+        downsampleFilter.destroy();
+        upsampleFilter.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        downsampleFilter.onOutputSizeChanged(width, height);
+        upsampleFilter.onOutputSizeChanged(width, height);
+        createFramebuffers();
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (!isInitialized() || frameBuffers == null) {
+            return;
+        }
+
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        int previousTexture = textureId;
+
+        // Downsample: input -> level 0 -> ... -> level n-1
+        for (int i = 0; i < levels; i++) {
+            GlStateCache.bindFramebuffer(frameBuffers[i]);
+            GLES20.glViewport(0, 0, levelWidths[i], levelHeights[i]);
+            downsampleFilter.setOffset(offset * 0.5f / levelWidths[i], offset * 0.5f / levelHeights[i]);
+            downsampleFilter.onDraw(frameBuffer, previousTexture, glCubeBuffer,
+                    i == 0 ? textureBuffer : glTextureBuffer);
+            previousTexture = frameBufferTextures[i];
+        }
+
+        // Upsample: level n-1 -> ... -> level 0
+        for (int i = levels - 1; i > 0; i--) {
+            GlStateCache.bindFramebuffer(frameBuffers[i - 1]);
+            GLES20.glViewport(0, 0, levelWidths[i - 1], levelHeights[i - 1]);
+            upsampleFilter.setOffset(offset * 0.5f / levelWidths[i - 1], offset * 0.5f / levelHeights[i - 1]);
+            upsampleFilter.onDraw(frameBuffer, previousTexture, glCubeBuffer, glTextureBuffer);
+            previousTexture = frameBufferTextures[i - 1];
+        }
+
+        // Level 0 -> original target at full size
+        GlStateCache.bindFramebuffer(targetFrameBuffer);
+        GLES20.glViewport(0, 0, getOutputWidth(), getOutputHeight());
+        upsampleFilter.setOffset(offset * 0.5f / getOutputWidth(), offset * 0.5f / getOutputHeight());
+        upsampleFilter.onDraw(frameBuffer, previousTexture, cubeBuffer, glTextureBuffer);
+    }
+
+    /**
+     * A multiplier for the blur size on the same scale as the Gaussian blur, ranging from 0.0 on up,
+     * with a default of 4.0. Larger values add pyramid levels instead of widening the kernel.
+     *
+     * @param blurSize from 0.0 on up, default 4.0
+     */
+    public void setBlurSize(final float blurSize) {
+        this.blurSize = blurSize;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                int oldLevels = levels;
+                updateLevels(blurSize);
+                if (oldLevels != levels) {
+                    createFramebuffers();
+                }
+            }
+        });
+    }
+
+    public float getBlurSize() {
+        return blurSize;
+    }
+
+    /**
+     * @return the number of downsampled levels currently used
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    private void updateLevels(float blurSize) {
+        this.blurSize = blurSize;
+        // The 9-tap Gaussian covers 4 texels per unit of blurSize on each side. Every
+        // level of the pyramid doubles the reach of the 1-texel dual Kawase kernel.
+        float radius = Math.max(4f * blurSize, 2f);
+        int levels = Math.round((float) (Math.log(radius) / Math.log(2))) - 1;
+        this.levels = Math.max(1, Math.min(MAX_LEVELS, levels));
+        offset = radius / (1 << (this.levels + 1));
+    }
+
+    private void createFramebuffers() {
+        destroyFramebuffers();
+        int width = getOutputWidth();
+        int height = getOutputHeight();
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        frameBuffers = new int[levels];
+        frameBufferTextures = new int[levels];
+        levelWidths = new int[levels];
+        levelHeights = new int[levels];
+        for (int i = 0; i < levels; i++) {
+            levelWidths[i] = Math.max(1, width >> (i + 1));
+            levelHeights[i] = Math.max(1, height >> (i + 1));
+            OpenGlUtils.createFrameBuffer(levelWidths[i], levelHeights[i],
+                    frameBuffers, frameBufferTextures, i);
+        }
+    }
+
+    private void destroyFramebuffers() {
+        if (frameBufferTextures != null) {
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBufferTextures = null;
+        }
+        if (frameBuffers != null) {
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            frameBuffers = null;
+        }
+    }
+}
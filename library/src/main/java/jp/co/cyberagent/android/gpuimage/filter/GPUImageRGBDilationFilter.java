@@ -21,7 +21,11 @@ package jp.co.cyberagent.android.gpuimage.filter;
  * out dilationRadius pixels from the center.
  * This extends out brighter colors, and can be used for abstraction of color images.
  */
-public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFilter {
+public class GPUImageRGBDilationFilter extends GPUImageMorphologyFilter {
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String VERTEX_SHADER_1 =
             "attribute vec4 position;\n" +
                     "attribute vec2 inputTextureCoordinate;\n" +
@@ -44,6 +48,10 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "oneStepPositiveTextureCoordinate = inputTextureCoordinate + offset;\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String VERTEX_SHADER_2 =
             "attribute vec4 position;\n" +
                     "attribute vec2 inputTextureCoordinate;\n" +
@@ -70,6 +78,10 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "twoStepsPositiveTextureCoordinate = inputTextureCoordinate + (offset * 2.0);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String VERTEX_SHADER_3 =
             "attribute vec4 position;\n" +
                     "attribute vec2 inputTextureCoordinate;\n" +
@@ -100,6 +112,10 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "threeStepsPositiveTextureCoordinate = inputTextureCoordinate + (offset * 3.0);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String VERTEX_SHADER_4 =
             "attribute vec4 position;\n" +
                     "attribute vec2 inputTextureCoordinate;\n" +
@@ -135,6 +151,10 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "}\n";
 
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String FRAGMENT_SHADER_1 =
             "precision highp float;\n" +
                     "\n" +
@@ -155,6 +175,10 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "gl_FragColor = max(maxValue, oneStepNegativeIntensity);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String FRAGMENT_SHADER_2 =
             "precision highp float;\n" +
                     "\n" +
@@ -182,6 +206,10 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "gl_FragColor = max(maxValue, twoStepsNegativeIntensity);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String FRAGMENT_SHADER_3 =
             "precision highp float;\n" +
                     "\n" +
@@ -214,6 +242,10 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "gl_FragColor = max(maxValue, threeStepsNegativeIntensity);\n" +
                     "}\n";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageMorphologyFilter}
+     */
+    @Deprecated
     public static final String FRAGMENT_SHADER_4 =
             "precision highp float;\n" +
                     "\n" +
@@ -252,50 +284,17 @@ public class GPUImageRGBDilationFilter extends GPUImageTwoPassTextureSamplingFil
                     "gl_FragColor = max(maxValue, fourStepsNegativeIntensity);\n" +
                     "}\n";
 
-
     public GPUImageRGBDilationFilter() {
         this(1);
     }
 
     /**
-     * Acceptable values for dilationRadius, which sets the distance in pixels to sample out
-     * from the center, are 1, 2, 3, and 4.
+     * The dilation radius sets the distance in pixels to sample out from the center. Any radius
+     * of 1 or more is accepted; radii above {@link #MAX_PASS_RADIUS} take additional passes.
      *
-     * @param radius 1, 2, 3 or 4
+     * @param radius 1 or more
      */
     public GPUImageRGBDilationFilter(int radius) {
-        this(getVertexShader(radius), getFragmentShader(radius));
-    }
-
-    private GPUImageRGBDilationFilter(String vertexShader, String fragmentShader) {
-        super(vertexShader, fragmentShader, vertexShader, fragmentShader);
-    }
-
-    private static String getVertexShader(int radius) {
-        switch (radius) {
-            case 0:
-            case 1:
-                return VERTEX_SHADER_1;
-            case 2:
-                return VERTEX_SHADER_2;
-            case 3:
-                return VERTEX_SHADER_3;
-            default:
-                return VERTEX_SHADER_4;
-        }
-    }
-
-    private static String getFragmentShader(int radius) {
-        switch (radius) {
-            case 0:
-            case 1:
-                return FRAGMENT_SHADER_1;
-            case 2:
-                return FRAGMENT_SHADER_2;
-            case 3:
-                return FRAGMENT_SHADER_3;
-            default:
-                return FRAGMENT_SHADER_4;
-        }
+        super(Operation.DILATE, radius, true);
     }
 }
@@ -88,4 +88,9 @@ public class GPUImageRGBFilter extends GPUImageFilter {
         this.blue = blue;
         setFloat(blueLocation, this.blue);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(red, green, blue);
+    }
 }
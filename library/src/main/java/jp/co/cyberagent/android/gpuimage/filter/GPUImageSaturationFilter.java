@@ -69,4 +69,9 @@ public class GPUImageSaturationFilter extends GPUImageFilter {
         this.saturation = saturation;
         setFloat(saturationLocation, this.saturation);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(saturation);
+    }
 }
@@ -16,14 +16,16 @@
 
 package jp.co.cyberagent.android.gpuimage.filter;
 
-import android.opengl.GLES20;
-
 /**
  * Sharpens the picture. <br>
  * <br>
  * sharpness: from -4.0 to 4.0, with 0.0 as the normal level
  */
-public class GPUImageSharpenFilter extends GPUImageFilter {
+public class GPUImageSharpenFilter extends GPUImageConvolutionFilter {
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageConvolutionFilter}
+     */
+    @Deprecated
     public static final String SHARPEN_VERTEX_SHADER = "" +
             "attribute vec4 position;\n" +
             "attribute vec4 inputTextureCoordinate;\n" +
@@ -58,6 +60,10 @@ public class GPUImageSharpenFilter extends GPUImageFilter {
             "    edgeMultiplier = sharpness;\n" +
             "}";
 
+    /**
+     * @deprecated no longer used, the filter runs on {@link GPUImageConvolutionFilter}
+     */
+    @Deprecated
     public static final String SHARPEN_FRAGMENT_SHADER = "" +
             "precision highp float;\n" +
             "\n" +
@@ -83,43 +89,31 @@ public class GPUImageSharpenFilter extends GPUImageFilter {
             "    gl_FragColor = vec4((textureColor * centerMultiplier - (leftTextureColor * edgeMultiplier + rightTextureColor * edgeMultiplier + topTextureColor * edgeMultiplier + bottomTextureColor * edgeMultiplier)), texture2D(inputImageTexture, bottomTextureCoordinate).w);\n" +
             "}";
 
-    private int sharpnessLocation;
     private float sharpness;
-    private int imageWidthFactorLocation;
-    private int imageHeightFactorLocation;
 
     public GPUImageSharpenFilter() {
         this(0.0f);
     }
 
     public GPUImageSharpenFilter(final float sharpness) {
-        super(SHARPEN_VERTEX_SHADER, SHARPEN_FRAGMENT_SHADER);
+        super(createKernel(sharpness), 3);
         this.sharpness = sharpness;
     }
 
-    @Override
-    public void onInit() {
-        super.onInit();
-        sharpnessLocation = GLES20.glGetUniformLocation(getProgram(), "sharpness");
-        imageWidthFactorLocation = GLES20.glGetUniformLocation(getProgram(), "imageWidthFactor");
-        imageHeightFactorLocation = GLES20.glGetUniformLocation(getProgram(), "imageHeightFactor");
-    }
-
-    @Override
-    public void onInitialized() {
-        super.onInitialized();
-        setSharpness(sharpness);
+    public void setSharpness(final float sharpness) {
+        this.sharpness = sharpness;
+        setKernel(createKernel(sharpness), 3);
     }
 
-    @Override
-    public void onOutputSizeChanged(final int width, final int height) {
-        super.onOutputSizeChanged(width, height);
-        setFloat(imageWidthFactorLocation, 1.0f / width);
-        setFloat(imageHeightFactorLocation, 1.0f / height);
+    public float getSharpness() {
+        return sharpness;
     }
 
-    public void setSharpness(final float sharpness) {
-        this.sharpness = sharpness;
-        setFloat(sharpnessLocation, this.sharpness);
+    private static float[] createKernel(final float sharpness) {
+        return new float[]{
+                0.0f, -sharpness, 0.0f,
+                -sharpness, 1.0f + 4.0f * sharpness, -sharpness,
+                0.0f, -sharpness, 0.0f
+        };
     }
 }
@@ -49,4 +49,9 @@ public class GPUImageSolarizeFilter extends GPUImageFilter {
         this.threshold = threshold;
         setFloat(uniformThresholdLocation, threshold);
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(threshold);
+    }
 }
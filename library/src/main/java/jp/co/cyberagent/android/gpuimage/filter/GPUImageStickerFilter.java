@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+/**
+ * Draws stickers and watermarks over the image, all of them with one draw call.
+ * <p>
+ * The sticker bitmaps are packed into a shared texture atlas as they are added, each bitmap once
+ * however many stickers show it. Every sticker is drawn as a quad of its own transform and
+ * opacity, so only the pixels the stickers cover are blended, instead of a full-screen
+ * {@link GPUImageTwoInputFilter} pass per sticker. Stickers that do not fit into one atlas go
+ * into further atlases, one draw call each.
+ */
+public class GPUImageStickerFilter extends GPUImageFilter {
+    private static final String TAG = "GPUImageStickerFilter";
+
+    public static final String STICKER_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec2 stickerCoordinate;\n" +
+            "attribute float stickerOpacity;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "varying float opacity;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = stickerCoordinate;\n" +
+            "    opacity = stickerOpacity;\n" +
+            "}";
+
+    public static final String STICKER_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "varying lowp float opacity;\n" +
+            "\n" +
+            "uniform sampler2D atlasTexture;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_FragColor = texture2D(atlasTexture, textureCoordinate) * opacity;\n" +
+            "}";
+
+    /**
+     * The largest atlas side, within the texture limits of any device.
+     */
+    private static final int MAX_ATLAS_SIZE = 2048;
+    // Transparent texels between the bitmaps, so linear filtering does not bleed
+    private static final int PADDING = 1;
+    // x, y, s, t and opacity of the six vertices of a quad
+    private static final int FLOATS_PER_VERTEX = 5;
+    private static final int FLOATS_PER_STICKER = 6 * FLOATS_PER_VERTEX;
+
+    private static class Sticker {
+        final Bitmap bitmap;
+        final Matrix transform = new Matrix();
+        float opacity = 1.0f;
+
+        Sticker(final Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    private static class Page {
+        final int[] texture = new int[1];
+        final int[] frameBuffer = new int[1];
+        int shelfX = PADDING;
+        int shelfY = PADDING;
+        int shelfHeight;
+        // Bitmaps placed on the page that stickers still show
+        int regionCount;
+    }
+
+    private static class Region {
+        final Page page;
+        final float left, top, right, bottom;
+
+        Region(final Page page, final float left, final float top, final float right,
+               final float bottom) {
+            this.page = page;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+    }
+
+    // Only touched on the GL thread
+    private final List<Sticker> stickers = new ArrayList<>();
+    private final List<Page> pages = new ArrayList<>();
+    private final Map<Bitmap, Region> regions = new IdentityHashMap<>();
+    private int atlasSize;
+    private int stickerProgram;
+    private int positionAttribute;
+    private int coordinateAttribute;
+    private int opacityAttribute;
+    private int atlasTextureLocation;
+    private FloatBuffer vertexBuffer;
+    private final float[] corners = new float[8];
+    private final float[] cube = new float[8];
+
+    private int stickerCount;
+
+    public GPUImageStickerFilter() {
+        super();
+    }
+
+    /**
+     * Adds a sticker on top of the others.
+     *
+     * @param bitmap    the image of the sticker, not recycled by this filter. Stickers showing
+     *                  the same bitmap object share its place in the atlas.
+     * @param transform see {@link #setStickerTransform(int, Matrix)}
+     */
+    public void addSticker(final Bitmap bitmap, final Matrix transform) {
+        final Sticker sticker = new Sticker(bitmap);
+        sticker.transform.set(transform);
+        stickerCount++;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                stickers.add(sticker);
+            }
+        });
+    }
+
+    /**
+     * Removes a sticker, the ones above move down one index. Its bitmap leaves the atlas once no
+     * sticker shows it, and an atlas page is freed once none of its bitmaps is shown. The space
+     * of a bitmap on a page still in use is not reused.
+     */
+    public void removeSticker(final int index) {
+        stickerCount--;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                releaseBitmap(stickers.remove(index).bitmap);
+            }
+        });
+    }
+
+    public int getStickerCount() {
+        return stickerCount;
+    }
+
+    /**
+     * Places a sticker on the image.
+     *
+     * @param matrix maps the sticker onto the image, both as the unit square with the origin at
+     *               the top left, e.g. a scale of 0.25 covers a quarter of the image's width and
+     *               height at its top left
+     */
+    public void setStickerTransform(final int index, final Matrix matrix) {
+        final Matrix transform = new Matrix(matrix);
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                stickers.get(index).transform.set(transform);
+            }
+        });
+    }
+
+    /**
+     * @param opacity from 0.0 (invisible) to 1.0
+     */
+    public void setStickerOpacity(final int index, final float opacity) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                stickers.get(index).opacity = opacity;
+            }
+        });
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        stickerProgram = OpenGlUtils.loadProgram(STICKER_VERTEX_SHADER, STICKER_FRAGMENT_SHADER);
+        positionAttribute = GLES20.glGetAttribLocation(stickerProgram, "position");
+        coordinateAttribute = GLES20.glGetAttribLocation(stickerProgram, "stickerCoordinate");
+        opacityAttribute = GLES20.glGetAttribLocation(stickerProgram, "stickerOpacity");
+        atlasTextureLocation = GLES20.glGetUniformLocation(stickerProgram, "atlasTexture");
+        int[] maxTextureSize = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+        atlasSize = Math.min(MAX_ATLAS_SIZE, maxTextureSize[0]);
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        programs.add(new String[]{STICKER_VERTEX_SHADER, STICKER_FRAGMENT_SHADER});
+    }
+
+    @Override
+    public void onDestroy() {
+        GlStateCache.deleteProgram(stickerProgram);
+        for (Page page : pages) {
+            GlStateCache.deleteTextures(1, page.texture, 0);
+            GlStateCache.deleteFramebuffers(1, page.frameBuffer, 0);
+        }
+        pages.clear();
+        regions.clear();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        super.onDraw(frameBuffer, textureId, cubeBuffer, textureBuffer);
+        if (!isInitialized() || stickers.isEmpty()) {
+            return;
+        }
+        for (Sticker sticker : stickers) {
+            if (!regions.containsKey(sticker.bitmap)) {
+                addToAtlas(sticker.bitmap);
+            }
+        }
+        drawStickers(cubeBuffer);
+    }
+
+    /**
+     * Packs a bitmap into the last atlas page in shelves, starting a new page when it is full.
+     */
+    private void addToAtlas(final Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (width + 2 * PADDING > atlasSize || height + 2 * PADDING > atlasSize) {
+            Log.w(TAG, "Sticker of " + width + "x" + height + " does not fit into the atlas");
+            regions.put(bitmap, null);
+            return;
+        }
+        Page page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+        if (page != null && page.shelfX + width + PADDING > atlasSize) {
+            page.shelfX = PADDING;
+            page.shelfY += page.shelfHeight + PADDING;
+            page.shelfHeight = 0;
+        }
+        if (page == null || page.shelfY + height + PADDING > atlasSize) {
+            page = createPage();
+        }
+
+        Bitmap upload = bitmap.getConfig() == Bitmap.Config.ARGB_8888
+                ? bitmap : bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        GlStateCache.bindTexture(page.texture[0]);
+        GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, page.shelfX, page.shelfY, upload);
+        GlStateCache.bindTexture(0);
+        if (upload != bitmap) {
+            upload.recycle();
+        }
+
+        page.regionCount++;
+        regions.put(bitmap, new Region(page,
+                (float) page.shelfX / atlasSize, (float) page.shelfY / atlasSize,
+                (float) (page.shelfX + width) / atlasSize, (float) (page.shelfY + height) / atlasSize));
+        page.shelfX += width + PADDING;
+        page.shelfHeight = Math.max(page.shelfHeight, height);
+    }
+
+    private Page createPage() {
+        Page page = new Page();
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        OpenGlUtils.createFrameBuffer(atlasSize, atlasSize, page.frameBuffer, page.texture, 0);
+        // The texture starts out undefined, the padding must be transparent
+        float[] clearColor = new float[4];
+        GLES20.glGetFloatv(GLES20.GL_COLOR_CLEAR_VALUE, clearColor, 0);
+        GlStateCache.bindFramebuffer(page.frameBuffer[0]);
+        GlStateCache.clearColor(0, 0, 0, 0);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GlStateCache.clearColor(clearColor[0], clearColor[1], clearColor[2], clearColor[3]);
+        GlStateCache.bindFramebuffer(targetFrameBuffer);
+        pages.add(page);
+        return page;
+    }
+
+    /**
+     * Takes a bitmap out of the atlas once no sticker shows it, freeing its page with the last.
+     */
+    private void releaseBitmap(final Bitmap bitmap) {
+        for (Sticker sticker : stickers) {
+            if (sticker.bitmap == bitmap) {
+                return;
+            }
+        }
+        Region region = regions.remove(bitmap);
+        if (region != null && --region.page.regionCount == 0) {
+            GlStateCache.deleteTextures(1, region.page.texture, 0);
+            GlStateCache.deleteFramebuffers(1, region.page.frameBuffer, 0);
+            pages.remove(region.page);
+        }
+    }
+
+    private void drawStickers(final FloatBuffer cubeBuffer) {
+        int capacity = stickers.size() * FLOATS_PER_STICKER;
+        if (vertexBuffer == null || vertexBuffer.capacity() < capacity) {
+            vertexBuffer = ByteBuffer.allocateDirect(capacity * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        }
+        // Stickers follow the image quad, e.g. when it is letterboxed
+        cubeBuffer.position(0);
+        cubeBuffer.get(cube);
+        cubeBuffer.position(0);
+
+        GlStateCache.useProgram(stickerProgram);
+        GlStateCache.bindArrayBuffer(0);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        // Bitmaps are uploaded with premultiplied alpha
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GlStateCache.activeTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(atlasTextureLocation, 0);
+        for (Page page : pages) {
+            vertexBuffer.clear();
+            int count = 0;
+            for (Sticker sticker : stickers) {
+                Region region = regions.get(sticker.bitmap);
+                if (region != null && region.page == page && sticker.opacity > 0) {
+                    putSticker(sticker, region);
+                    count++;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+            GlStateCache.bindTexture(page.texture[0]);
+            setAttribute(positionAttribute, 2, 0);
+            setAttribute(coordinateAttribute, 2, 2);
+            setAttribute(opacityAttribute, 1, 4);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, count * 6);
+        }
+        GlStateCache.disableVertexAttribArray(positionAttribute);
+        GlStateCache.disableVertexAttribArray(coordinateAttribute);
+        GlStateCache.disableVertexAttribArray(opacityAttribute);
+        GlStateCache.bindTexture(0);
+        GLES20.glDisable(GLES20.GL_BLEND);
+    }
+
+    private void setAttribute(final int attribute, final int size, final int offset) {
+        vertexBuffer.position(offset);
+        GLES20.glVertexAttribPointer(attribute, size, GLES20.GL_FLOAT, false,
+                FLOATS_PER_VERTEX * 4, vertexBuffer);
+        GlStateCache.enableVertexAttribArray(attribute);
+    }
+
+    private void putSticker(final Sticker sticker, final Region region) {
+        corners[0] = 0;
+        corners[1] = 0;
+        corners[2] = 1;
+        corners[3] = 0;
+        corners[4] = 0;
+        corners[5] = 1;
+        corners[6] = 1;
+        corners[7] = 1;
+        sticker.transform.mapPoints(corners);
+        // Top left, top right, bottom left, bottom left, top right, bottom right
+        putVertex(corners[0], corners[1], region.left, region.top, sticker.opacity);
+        putVertex(corners[2], corners[3], region.right, region.top, sticker.opacity);
+        putVertex(corners[4], corners[5], region.left, region.bottom, sticker.opacity);
+        putVertex(corners[4], corners[5], region.left, region.bottom, sticker.opacity);
+        putVertex(corners[2], corners[3], region.right, region.top, sticker.opacity);
+        putVertex(corners[6], corners[7], region.right, region.bottom, sticker.opacity);
+    }
+
+    /**
+     * Puts a vertex at image coordinates u, v mapped onto the image quad. The quad's vertices are
+     * the bottom left, bottom right, top left and top right corner of the image.
+     */
+    private void putVertex(final float u, final float v, final float s, final float t,
+                           final float opacity) {
+        vertexBuffer.put(cube[4] + u * (cube[6] - cube[4]) + v * (cube[0] - cube[4]));
+        vertexBuffer.put(cube[5] + u * (cube[7] - cube[5]) + v * (cube[1] - cube[5]));
+        vertexBuffer.put(s);
+        vertexBuffer.put(t);
+        vertexBuffer.put(opacity);
+    }
+}
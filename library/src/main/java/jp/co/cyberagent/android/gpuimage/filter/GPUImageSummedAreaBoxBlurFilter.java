@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.filter;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
+import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+
+/**
+ * A box blur whose per-pixel cost does not depend on the radius. The image is turned into a
+ * summed-area table with log4(size) prefix-sum passes per axis, after which every output pixel
+ * reads the box sum from four corners of the table.
+ * <p>
+ * An optional mask bitmap scales the radius per pixel by its red channel, which gives a
+ * depth-of-field style blur without extra passes.
+ * <p>
+ * The table needs renderable 32-bit float textures (OpenGL ES 3.0 with GL_EXT_color_buffer_float).
+ * Without them the filter falls back to {@link GPUImagePyramidBlurFilter} and ignores the mask.
+ */
+public class GPUImageSummedAreaBoxBlurFilter extends GPUImageFilter {
+    private static final String TAG = "SummedAreaBoxBlur";
+
+    // Center the values around zero so the float sums keep their precision on large images.
+    public static final String CENTER_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_FragColor = texture2D(inputImageTexture, textureCoordinate) - 0.5;\n" +
+            "}";
+
+    public static final String PREFIX_SUM_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform vec2 stepOffset;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec2 coordinate1 = textureCoordinate - stepOffset;\n" +
+            "    vec2 coordinate2 = coordinate1 - stepOffset;\n" +
+            "    vec2 coordinate3 = coordinate2 - stepOffset;\n" +
+            "    vec4 sum = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    sum += texture2D(inputImageTexture, coordinate1) * step(0.0, min(coordinate1.x, coordinate1.y));\n" +
+            "    sum += texture2D(inputImageTexture, coordinate2) * step(0.0, min(coordinate2.x, coordinate2.y));\n" +
+            "    sum += texture2D(inputImageTexture, coordinate3) * step(0.0, min(coordinate3.x, coordinate3.y));\n" +
+            "    gl_FragColor = sum;\n" +
+            "}";
+
+    public static final String BOX_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D maskTexture;\n" +
+            "uniform vec2 imageSize;\n" +
+            "uniform float radius;\n" +
+            "\n" +
+            "vec4 tableAt(vec2 texel)\n" +
+            "{\n" +
+            "    return texture2D(inputImageTexture, (texel + 0.5) / imageSize) * step(0.0, min(texel.x, texel.y));\n" +
+            "}\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    float r = floor(radius * texture2D(maskTexture, textureCoordinate).r + 0.5);\n" +
+            "    vec2 texel = floor(textureCoordinate * imageSize);\n" +
+            "    vec2 low = max(texel - r - 1.0, vec2(-1.0));\n" +
+            "    vec2 high = min(texel + r, imageSize - 1.0);\n" +
+            "    vec2 extent = high - low;\n" +
+            "\n" +
+            "    vec4 sum = tableAt(high) - tableAt(vec2(low.x, high.y))\n" +
+            "            - tableAt(vec2(high.x, low.y)) + tableAt(low);\n" +
+            "    gl_FragColor = sum / (extent.x * extent.y) + 0.5;\n" +
+            "}";
+
+    private final GPUImageFilter centerFilter;
+    private final GPUImageOffsetPassFilter prefixSumFilter;
+    private final BoxFilter boxFilter;
+    private final FloatBuffer glCubeBuffer;
+    private final FloatBuffer glTextureBuffer;
+
+    private GPUImagePyramidBlurFilter fallbackFilter;
+    private Bitmap maskBitmap;
+    private int radius;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
+
+    public GPUImageSummedAreaBoxBlurFilter() {
+        this(16);
+    }
+
+    /**
+     * @param radius the blur radius in pixels
+     */
+    public GPUImageSummedAreaBoxBlurFilter(int radius) {
+        super();
+        this.radius = radius;
+        centerFilter = new GPUImageFilter(NO_FILTER_VERTEX_SHADER, CENTER_FRAGMENT_SHADER);
+        prefixSumFilter = new GPUImageOffsetPassFilter(NO_FILTER_VERTEX_SHADER, PREFIX_SUM_FRAGMENT_SHADER,
+                "stepOffset");
+        boxFilter = new BoxFilter();
+
+        glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glCubeBuffer.put(CUBE).position(0);
+
+        glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        if (supportsFloatTargets()) {
+            centerFilter.ifNeedInit();
+            prefixSumFilter.ifNeedInit();
+            boxFilter.ifNeedInit();
+        } else {
+            Log.w(TAG, "Float render targets are not supported, falling back to a pyramid blur");
+            useFallback();
+        }
+    }
+
+    private static boolean supportsFloatTargets() {
+        return OpenGlUtils.isGLES30Supported()
+                && OpenGlUtils.isExtensionSupported("GL_EXT_color_buffer_float");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setRadius(radius);
+        if (maskBitmap != null) {
+            setMaskBitmap(maskBitmap);
+        }
+    }
+
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        if (fallbackFilter != null) {
+            fallbackFilter.collectPrograms(programs);
+        } else if (supportsFloatTargets()) {
+            centerFilter.collectPrograms(programs);
+            prefixSumFilter.collectPrograms(programs);
+            boxFilter.collectPrograms(programs);
+        } else {
+            // The fallback is only created while initializing
+            new GPUImagePyramidBlurFilter().collectPrograms(programs);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyFramebuffers();
+        if (fallbackFilter != null) {
+            fallbackFilter.destroy();
+            fallbackFilter = null;
+        } else {
+            centerFilter.destroy();
+            prefixSumFilter.destroy();
+            boxFilter.destroy();
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        if (fallbackFilter != null) {
+            fallbackFilter.onOutputSizeChanged(width, height);
+            return;
+        }
+        centerFilter.onOutputSizeChanged(width, height);
+        prefixSumFilter.onOutputSizeChanged(width, height);
+        boxFilter.onOutputSizeChanged(width, height);
+        createFramebuffers();
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (fallbackFilter != null) {
+            fallbackFilter.onDraw(frameBuffer, textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        if (!isInitialized() || frameBuffers == null) {
+            return;
+        }
+
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        int width = getOutputWidth();
+        int height = getOutputHeight();
+
+        GlStateCache.bindFramebuffer(frameBuffers[0]);
+        centerFilter.onDraw(frameBuffer, textureId, glCubeBuffer, textureBuffer);
+
+        int current = 0;
+        for (int step = 1; step < width; step *= 4) {
+            prefixSumFilter.setOffset((float) step / width, 0f);
+            current = drawPrefixSum(frameBuffer, current);
+        }
+        for (int step = 1; step < height; step *= 4) {
+            prefixSumFilter.setOffset(0f, (float) step / height);
+            current = drawPrefixSum(frameBuffer, current);
+        }
+
+        GlStateCache.bindFramebuffer(targetFrameBuffer);
+        boxFilter.onDraw(frameBuffer, frameBufferTextures[current], cubeBuffer, glTextureBuffer);
+    }
+
+    @SuppressLint("WrongCall")
+    private int drawPrefixSum(final int frameBuffer, final int source) {
+        int target = 1 - source;
+        GlStateCache.bindFramebuffer(frameBuffers[target]);
+        prefixSumFilter.onDraw(frameBuffer, frameBufferTextures[source], glCubeBuffer, glTextureBuffer);
+        return target;
+    }
+
+    /**
+     * The radius of the box in pixels. The cost of the filter does not depend on it.
+     *
+     * @param radius radius in pixels, default 16
+     */
+    public void setRadius(final int radius) {
+        this.radius = radius;
+        if (!isInitialized()) {
+            return;
+        }
+        if (fallbackFilter != null) {
+            fallbackFilter.setBlurSize(radius / 4f);
+        } else {
+            boxFilter.setRadius(radius);
+        }
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * Sets a mask whose red channel scales the radius per pixel, from 0 (sharp) to 1 (full radius).
+     * The mask is stretched over the output.
+     *
+     * @param bitmap the mask, or null to blur everything with the full radius
+     */
+    public void setMaskBitmap(final Bitmap bitmap) {
+        if (bitmap != null && bitmap.isRecycled()) {
+            return;
+        }
+        maskBitmap = bitmap;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                // The fallback ignores the mask and the box filter is not used
+                if (fallbackFilter == null) {
+                    boxFilter.loadMask(bitmap);
+                }
+            }
+        });
+    }
+
+    public Bitmap getMaskBitmap() {
+        return maskBitmap;
+    }
+
+    private void useFallback() {
+        fallbackFilter = new GPUImagePyramidBlurFilter(radius / 4f);
+        fallbackFilter.ifNeedInit();
+        if (getOutputWidth() != 0) {
+            fallbackFilter.onOutputSizeChanged(getOutputWidth(), getOutputHeight());
+        }
+    }
+
+    private void createFramebuffers() {
+        destroyFramebuffers();
+        int width = getOutputWidth();
+        int height = getOutputHeight();
+        if (width == 0 || height == 0) {
+            return;
+        }
+
+        frameBuffers = new int[2];
+        frameBufferTextures = new int[2];
+        for (int i = 0; i < 2; i++) {
+            OpenGlUtils.createFrameBuffer(width, height, GLES30.GL_RGBA32F, GLES20.GL_RGBA,
+                    GLES20.GL_FLOAT, GLES20.GL_NEAREST, frameBuffers, frameBufferTextures, i);
+        }
+
+        GlStateCache.bindFramebuffer(frameBuffers[0]);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GlStateCache.bindFramebuffer(0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            Log.w(TAG, "Float framebuffer incomplete (" + status + "), falling back to a pyramid blur");
+            destroyFramebuffers();
+            centerFilter.destroy();
+            prefixSumFilter.destroy();
+            boxFilter.destroy();
+            useFallback();
+        }
+    }
+
+    private void destroyFramebuffers() {
+        if (frameBufferTextures != null) {
+            GlStateCache.deleteTextures(frameBufferTextures.length, frameBufferTextures, 0);
+            frameBufferTextures = null;
+        }
+        if (frameBuffers != null) {
+            GlStateCache.deleteFramebuffers(frameBuffers.length, frameBuffers, 0);
+            frameBuffers = null;
+        }
+    }
+
+    private static class BoxFilter extends GPUImageFilter {
+        private int imageSizeLocation;
+        private int radiusLocation;
+        private int maskTextureLocation;
+        private int maskTexture = OpenGlUtils.NO_TEXTURE;
+
+        BoxFilter() {
+            super(NO_FILTER_VERTEX_SHADER, BOX_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            imageSizeLocation = GLES20.glGetUniformLocation(getProgram(), "imageSize");
+            radiusLocation = GLES20.glGetUniformLocation(getProgram(), "radius");
+            maskTextureLocation = GLES20.glGetUniformLocation(getProgram(), "maskTexture");
+        }
+
+        @Override
+        public void onInitialized() {
+            super.onInitialized();
+            if (maskTexture == OpenGlUtils.NO_TEXTURE) {
+                loadMask(null);
+            }
+        }
+
+        @Override
+        public void onOutputSizeChanged(int width, int height) {
+            super.onOutputSizeChanged(width, height);
+            setFloatVec2(imageSizeLocation, new float[]{width, height});
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            GlStateCache.deleteTextures(1, new int[]{maskTexture}, 0);
+            maskTexture = OpenGlUtils.NO_TEXTURE;
+        }
+
+        void setRadius(int radius) {
+            setFloat(radiusLocation, radius);
+        }
+
+        void loadMask(Bitmap bitmap) {
+            if (maskTexture != OpenGlUtils.NO_TEXTURE) {
+                GlStateCache.deleteTextures(1, new int[]{maskTexture}, 0);
+            }
+            if (bitmap == null || bitmap.isRecycled()) {
+                // A single white texel keeps the full radius everywhere
+                Bitmap white = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+                white.eraseColor(0xffffffff);
+                maskTexture = OpenGlUtils.loadTexture(white, OpenGlUtils.NO_TEXTURE, true);
+            } else {
+                maskTexture = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
+            }
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            GlStateCache.activeTexture(GLES20.GL_TEXTURE3);
+            GlStateCache.bindTexture(maskTexture);
+            GLES20.glUniform1i(maskTextureLocation, 3);
+            GlStateCache.activeTexture(GLES20.GL_TEXTURE0);
+        }
+    }
+}
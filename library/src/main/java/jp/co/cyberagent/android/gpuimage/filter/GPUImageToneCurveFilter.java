@@ -16,7 +16,6 @@
 
 package jp.co.cyberagent.android.gpuimage.filter;
 
-import android.graphics.Point;
 import android.graphics.PointF;
 import android.opengl.GLES20;
 
@@ -24,11 +23,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
 
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
 import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
 
+/**
+ * Applies a curve per color channel plus a composite curve to all of them, like the curves
+ * dialog of image editors. Control points range from 0.0 to 1.0 and are joined with natural
+ * cubic splines.
+ * <p>
+ * Changing the points of one channel recomputes only that channel's curve with primitive arrays
+ * and patches its row of the curve texture, so dragging a point does not allocate.
+ */
 public class GPUImageToneCurveFilter extends GPUImageFilter {
     public static final String TONE_CURVE_FRAGMENT_SHADER = "" +
             " varying highp vec2 textureCoordinate;\n" +
@@ -38,13 +44,19 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
             " void main()\n" +
             " {\n" +
             "     lowp vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
-            "     lowp float redCurveValue = texture2D(toneCurveTexture, vec2(textureColor.r, 0.0)).r;\n" +
-            "     lowp float greenCurveValue = texture2D(toneCurveTexture, vec2(textureColor.g, 0.0)).g;\n" +
-            "     lowp float blueCurveValue = texture2D(toneCurveTexture, vec2(textureColor.b, 0.0)).b;\n" +
+            "     lowp float redCurveValue = texture2D(toneCurveTexture, vec2(textureColor.r, 1.0 / 6.0)).r;\n" +
+            "     lowp float greenCurveValue = texture2D(toneCurveTexture, vec2(textureColor.g, 0.5)).r;\n" +
+            "     lowp float blueCurveValue = texture2D(toneCurveTexture, vec2(textureColor.b, 5.0 / 6.0)).r;\n" +
             "\n" +
             "     gl_FragColor = vec4(redCurveValue, greenCurveValue, blueCurveValue, textureColor.a);\n" +
             " }";
 
+    private static final int RGB_COMPOSITE = 0;
+    private static final int RED = 1;
+    private static final int GREEN = 2;
+    private static final int BLUE = 3;
+    private static final int ALL_ROWS = (1 << RED) | (1 << GREEN) | (1 << BLUE);
+
     private int[] toneCurveTexture = new int[]{OpenGlUtils.NO_TEXTURE};
     private int toneCurveTextureUniformLocation;
 
@@ -53,11 +65,29 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
     private PointF[] greenControlPoints;
     private PointF[] blueControlPoints;
 
-    private ArrayList<Float> rgbCompositeCurve;
-    private ArrayList<Float> redCurve;
-    private ArrayList<Float> greenCurve;
-    private ArrayList<Float> blueCurve;
-
+    // Output value for every input value 0..255, per curve. Guarded by itself.
+    private final int[][] curves = new int[4][256];
+    // One 256 byte row per color channel, the composite curve already applied
+    private final ByteBuffer toneCurveBuffer = ByteBuffer.allocateDirect(256 * 3);
+    private int dirtyRows;
+    private boolean uploadQueued;
+
+    // Spline scratch space, grown on demand
+    private float[] sortedX = new float[0];
+    private float[] sortedY = new float[0];
+    private int[] pointX = new int[0];
+    private int[] pointY = new int[0];
+    private double[] lower = new double[0];
+    private double[] diagonal = new double[0];
+    private double[] upper = new double[0];
+    private double[] secondDerivative = new double[0];
+
+    private final Runnable uploadToneCurveTexture = new Runnable() {
+        @Override
+        public void run() {
+            uploadToneCurveTexture();
+        }
+    };
 
     public GPUImageToneCurveFilter() {
         super(NO_FILTER_VERTEX_SHADER, TONE_CURVE_FRAGMENT_SHADER);
@@ -73,13 +103,15 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
     public void onInit() {
         super.onInit();
         toneCurveTextureUniformLocation = GLES20.glGetUniformLocation(getProgram(), "toneCurveTexture");
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+        GlStateCache.activeTexture(GLES20.GL_TEXTURE3);
         GLES20.glGenTextures(1, toneCurveTexture, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, toneCurveTexture[0]);
+        GlStateCache.bindTexture(toneCurveTexture[0]);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE, 256, 3, 0,
+                GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, null);
     }
 
     @Override
@@ -91,11 +123,21 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
         setBlueControlPoints(blueControlPoints);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        GlStateCache.deleteTextures(1, toneCurveTexture, 0);
+        toneCurveTexture[0] = OpenGlUtils.NO_TEXTURE;
+        synchronized (curves) {
+            uploadQueued = false;
+        }
+    }
+
     @Override
     protected void onDrawArraysPre() {
         if (toneCurveTexture[0] != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, toneCurveTexture[0]);
+            GlStateCache.activeTexture(GLES20.GL_TEXTURE3);
+            GlStateCache.bindTexture(toneCurveTexture[0]);
             GLES20.glUniform1i(toneCurveTextureUniformLocation, 3);
         }
     }
@@ -144,224 +186,204 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
 
     public void setRgbCompositeControlPoints(PointF[] points) {
         rgbCompositeControlPoints = points;
-        rgbCompositeCurve = createSplineCurve(rgbCompositeControlPoints);
-        updateToneCurveTexture();
+        updateCurve(RGB_COMPOSITE, points);
     }
 
     public void setRedControlPoints(PointF[] points) {
         redControlPoints = points;
-        redCurve = createSplineCurve(redControlPoints);
-        updateToneCurveTexture();
+        updateCurve(RED, points);
     }
 
     public void setGreenControlPoints(PointF[] points) {
         greenControlPoints = points;
-        greenCurve = createSplineCurve(greenControlPoints);
-        updateToneCurveTexture();
+        updateCurve(GREEN, points);
     }
 
     public void setBlueControlPoints(PointF[] points) {
         blueControlPoints = points;
-        blueCurve = createSplineCurve(blueControlPoints);
-        updateToneCurveTexture();
+        updateCurve(BLUE, points);
     }
 
-    private void updateToneCurveTexture() {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, toneCurveTexture[0]);
-
-                if ((redCurve.size() >= 256) && (greenCurve.size() >= 256) && (blueCurve.size() >= 256) && (rgbCompositeCurve.size() >= 256)) {
-                    byte[] toneCurveByteArray = new byte[256 * 4];
-                    for (int currentCurveIndex = 0; currentCurveIndex < 256; currentCurveIndex++) {
-                        // BGRA for upload to texture
-                        toneCurveByteArray[currentCurveIndex * 4 + 2] = (byte) ((int) Math.min(Math.max(currentCurveIndex + blueCurve.get(currentCurveIndex) + rgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4 + 1] = (byte) ((int) Math.min(Math.max(currentCurveIndex + greenCurve.get(currentCurveIndex) + rgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4] = (byte) ((int) Math.min(Math.max(currentCurveIndex + redCurve.get(currentCurveIndex) + rgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4 + 3] = (byte) (0xff);
-                    }
-
-                    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256 /*width*/, 1 /*height*/, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(toneCurveByteArray));
-                }
-//        Buffer pixels!
-//        GLES20.glTexImage2D(int target,
-//            int level,
-//            int internalformat,
-//            int width,
-//            int height,
-//            int border,
-//            int format,
-//            int type,
-//            java.nio.Buffer pixels);
+    private void updateCurve(final int curve, final PointF[] points) {
+        synchronized (curves) {
+            createSplineCurve(points, curves[curve]);
+            dirtyRows |= curve == RGB_COMPOSITE ? ALL_ROWS : 1 << curve;
+            if (uploadQueued || !isInitialized()) {
+                return;
             }
-        });
+            uploadQueued = true;
+        }
+        runOnDraw(uploadToneCurveTexture);
     }
 
-    private ArrayList<Float> createSplineCurve(PointF[] points) {
-        if (points == null || points.length <= 0) {
-            return null;
+    private void uploadToneCurveTexture() {
+        if (toneCurveTexture[0] == OpenGlUtils.NO_TEXTURE) {
+            return;
         }
-
-        // Sort the array
-        PointF[] pointsSorted = points.clone();
-        Arrays.sort(pointsSorted, new Comparator<PointF>() {
-            @Override
-            public int compare(PointF point1, PointF point2) {
-                if (point1.x < point2.x) {
-                    return -1;
-                } else if (point1.x > point2.x) {
-                    return 1;
-                } else {
-                    return 0;
+        int rows;
+        synchronized (curves) {
+            rows = dirtyRows;
+            dirtyRows = 0;
+            uploadQueued = false;
+            int[] composite = curves[RGB_COMPOSITE];
+            for (int channel = RED; channel <= BLUE; channel++) {
+                if ((rows & (1 << channel)) == 0) {
+                    continue;
+                }
+                int[] curve = curves[channel];
+                int offset = (channel - RED) * 256;
+                for (int i = 0; i < 256; i++) {
+                    // Both curves hold output values, apply the composite one on top
+                    int value = curve[i] + composite[i] - i;
+                    toneCurveBuffer.put(offset + i, (byte) Math.min(Math.max(value, 0), 255));
                 }
             }
-        });
-
-        // Convert from (0, 1) to (0, 255).
-        Point[] convertedPoints = new Point[pointsSorted.length];
-        for (int i = 0; i < points.length; i++) {
-            PointF point = pointsSorted[i];
-            convertedPoints[i] = new Point((int) (point.x * 255), (int) (point.y * 255));
         }
 
-        ArrayList<Point> splinePoints = createSplineCurve2(convertedPoints);
-
-        // If we have a first point like (0.3, 0) we'll be missing some points at the beginning
-        // that should be 0.
-        Point firstSplinePoint = splinePoints.get(0);
-        if (firstSplinePoint.x > 0) {
-            for (int i = firstSplinePoint.x; i >= 0; i--) {
-                splinePoints.add(0, new Point(i, 0));
+        GlStateCache.activeTexture(GLES20.GL_TEXTURE3);
+        GlStateCache.bindTexture(toneCurveTexture[0]);
+        if (rows == ALL_ROWS) {
+            toneCurveBuffer.position(0);
+            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, 256, 3,
+                    GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, toneCurveBuffer);
+            return;
+        }
+        for (int channel = RED; channel <= BLUE; channel++) {
+            if ((rows & (1 << channel)) != 0) {
+                toneCurveBuffer.position((channel - RED) * 256);
+                GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, channel - RED, 256, 1,
+                        GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, toneCurveBuffer);
             }
         }
+        toneCurveBuffer.position(0);
+    }
 
-        // Insert points similarly at the end, if necessary.
-        Point lastSplinePoint = splinePoints.get(splinePoints.size() - 1);
-        if (lastSplinePoint.x < 255) {
-            for (int i = lastSplinePoint.x + 1; i <= 255; i++) {
-                splinePoints.add(new Point(i, 255));
+    /**
+     * Evaluates the natural cubic spline through the points for every input value 0..255.
+     * Inputs below the first point map to 0, inputs above the last point to 255.
+     */
+    private void createSplineCurve(final PointF[] points, final int[] curve) {
+        if (points == null || points.length == 0) {
+            for (int i = 0; i < 256; i++) {
+                curve[i] = i;
             }
+            return;
         }
-
-        // Prepare the spline points.
-        ArrayList<Float> preparedSplinePoints = new ArrayList<>(splinePoints.size());
-        for (Point newPoint : splinePoints) {
-            Point origPoint = new Point(newPoint.x, newPoint.x);
-
-            float distance = (float) Math.sqrt(Math.pow((origPoint.x - newPoint.x), 2.0) + Math.pow((origPoint.y - newPoint.y), 2.0));
-
-            if (origPoint.y > newPoint.y) {
-                distance = -distance;
+        int n = sortPoints(points);
+
+        createSecondDerivative(n);
+
+        int segment = 0;
+        for (int x = 0; x < 256; x++) {
+            if (x < pointX[0]) {
+                curve[x] = 0;
+            } else if (x >= pointX[n - 1]) {
+                curve[x] = x == pointX[n - 1] ? pointY[n - 1] : 255;
+            } else {
+                while (x >= pointX[segment + 1]) {
+                    segment++;
+                }
+                int curX = pointX[segment];
+                int nextX = pointX[segment + 1];
+                double h = nextX - curX;
+                double b = (x - curX) / h;
+                double a = 1 - b;
+                double y = a * pointY[segment] + b * pointY[segment + 1]
+                        + (h * h / 6) * ((a * a * a - a) * secondDerivative[segment]
+                        + (b * b * b - b) * secondDerivative[segment + 1]);
+                curve[x] = (int) Math.round(Math.min(Math.max(y, 0.0), 255.0));
             }
-
-            preparedSplinePoints.add(distance);
         }
-
-        return preparedSplinePoints;
     }
 
-    private ArrayList<Point> createSplineCurve2(Point[] points) {
-        ArrayList<Double> sdA = createSecondDerivative(points);
-
-        // Is [points count] equal to [sdA count]?
-//    int n = [points count];
-        int n = sdA.size();
-        if (n < 1) {
-            return null;
+    /**
+     * Copies the points sorted by x into pointX/pointY, converted from (0, 1) to (0, 255).
+     * Points that land on the same x are merged, the last one wins.
+     *
+     * @return the number of points
+     */
+    private int sortPoints(final PointF[] points) {
+        int count = points.length;
+        if (sortedX.length < count) {
+            sortedX = new float[count];
+            sortedY = new float[count];
+            pointX = new int[count];
+            pointY = new int[count];
+            lower = new double[count];
+            diagonal = new double[count];
+            upper = new double[count];
+            secondDerivative = new double[count];
         }
-        double sd[] = new double[n];
-
-        // From NSMutableArray to sd[n];
-        for (int i = 0; i < n; i++) {
-            sd[i] = sdA.get(i);
-        }
-
-
-        ArrayList<Point> output = new ArrayList<>(n + 1);
-
-        for (int i = 0; i < n - 1; i++) {
-            Point cur = points[i];
-            Point next = points[i + 1];
-
-            for (int x = cur.x; x < next.x; x++) {
-                double t = (double) (x - cur.x) / (next.x - cur.x);
-
-                double a = 1 - t;
-                double b = t;
-                double h = next.x - cur.x;
-
-                double y = a * cur.y + b * next.y + (h * h / 6) * ((a * a * a - a) * sd[i] + (b * b * b - b) * sd[i + 1]);
-
-                if (y > 255.0) {
-                    y = 255.0;
-                } else if (y < 0.0) {
-                    y = 0.0;
-                }
-
-                output.add(new Point(x, (int) Math.round(y)));
+        // Insertion sort, curves have a handful of points
+        for (int i = 0; i < count; i++) {
+            float x = points[i].x;
+            float y = points[i].y;
+            int j = i - 1;
+            while (j >= 0 && sortedX[j] > x) {
+                sortedX[j + 1] = sortedX[j];
+                sortedY[j + 1] = sortedY[j];
+                j--;
             }
+            sortedX[j + 1] = x;
+            sortedY[j + 1] = y;
         }
-
-        // If the last point is (255, 255) it doesn't get added.
-        if (output.size() == 255) {
-            output.add(points[points.length - 1]);
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int x = (int) (sortedX[i] * 255);
+            int y = (int) (sortedY[i] * 255);
+            if (n > 0 && pointX[n - 1] == x) {
+                n--;
+            }
+            pointX[n] = x;
+            pointY[n] = y;
+            n++;
         }
-        return output;
+        return n;
     }
 
-    private ArrayList<Double> createSecondDerivative(Point[] points) {
-        int n = points.length;
+    /**
+     * Solves the tridiagonal system for the second derivatives of a natural spline through the
+     * first n points of pointX/pointY into secondDerivative.
+     */
+    private void createSecondDerivative(final int n) {
         if (n <= 1) {
-            return null;
+            secondDerivative[0] = 0;
+            return;
         }
-
-        double matrix[][] = new double[n][3];
-        double result[] = new double[n];
-        matrix[0][1] = 1;
-        // What about matrix[0][1] and matrix[0][0]? Assuming 0 for now (Brad L.)
-        matrix[0][0] = 0;
-        matrix[0][2] = 0;
-
+        lower[0] = 0;
+        diagonal[0] = 1;
+        upper[0] = 0;
+        secondDerivative[0] = 0;
         for (int i = 1; i < n - 1; i++) {
-            Point P1 = points[i - 1];
-            Point P2 = points[i];
-            Point P3 = points[i + 1];
-
-            matrix[i][0] = (double) (P2.x - P1.x) / 6;
-            matrix[i][1] = (double) (P3.x - P1.x) / 3;
-            matrix[i][2] = (double) (P3.x - P2.x) / 6;
-            result[i] = (double) (P3.y - P2.y) / (P3.x - P2.x) - (double) (P2.y - P1.y) / (P2.x - P1.x);
+            lower[i] = (double) (pointX[i] - pointX[i - 1]) / 6;
+            diagonal[i] = (double) (pointX[i + 1] - pointX[i - 1]) / 3;
+            upper[i] = (double) (pointX[i + 1] - pointX[i]) / 6;
+            secondDerivative[i] = (double) (pointY[i + 1] - pointY[i]) / (pointX[i + 1] - pointX[i])
+                    - (double) (pointY[i] - pointY[i - 1]) / (pointX[i] - pointX[i - 1]);
         }
-
-        // What about result[0] and result[n-1]? Assuming 0 for now (Brad L.)
-        result[0] = 0;
-        result[n - 1] = 0;
-
-        matrix[n - 1][1] = 1;
-        // What about matrix[n-1][0] and matrix[n-1][2]? For now, assuming they are 0 (Brad L.)
-        matrix[n - 1][0] = 0;
-        matrix[n - 1][2] = 0;
+        lower[n - 1] = 0;
+        diagonal[n - 1] = 1;
+        upper[n - 1] = 0;
+        secondDerivative[n - 1] = 0;
 
         // solving pass1 (up->down)
         for (int i = 1; i < n; i++) {
-            double k = matrix[i][0] / matrix[i - 1][1];
-            matrix[i][1] -= k * matrix[i - 1][2];
-            matrix[i][0] = 0;
-            result[i] -= k * result[i - 1];
+            double k = lower[i] / diagonal[i - 1];
+            diagonal[i] -= k * upper[i - 1];
+            secondDerivative[i] -= k * secondDerivative[i - 1];
         }
         // solving pass2 (down->up)
         for (int i = n - 2; i >= 0; i--) {
-            double k = matrix[i][2] / matrix[i + 1][1];
-            matrix[i][1] -= k * matrix[i + 1][0];
-            matrix[i][2] = 0;
-            result[i] -= k * result[i + 1];
+            double k = upper[i] / diagonal[i + 1];
+            secondDerivative[i] -= k * secondDerivative[i + 1];
         }
+        for (int i = 0; i < n; i++) {
+            secondDerivative[i] /= diagonal[i];
+        }
+    }
 
-        ArrayList<Double> output = new ArrayList<>(n);
-        for (int i = 0; i < n; i++) output.add(result[i] / matrix[i][1]);
-
-        return output;
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(rgbCompositeControlPoints, redControlPoints, greenControlPoints, blueControlPoints);
     }
 }
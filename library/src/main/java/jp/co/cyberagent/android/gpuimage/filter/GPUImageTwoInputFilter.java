@@ -16,17 +16,37 @@
 
 package jp.co.cyberagent.android.gpuimage.filter;
 
+import android.annotation.SuppressLint;
 import android.graphics.Bitmap;
+import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.List;
 
+import jp.co.cyberagent.android.gpuimage.util.GlStateCache;
 import jp.co.cyberagent.android.gpuimage.util.OpenGlUtils;
 import jp.co.cyberagent.android.gpuimage.util.Rotation;
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+
+/**
+ * A filter with a second input image, e.g. the blend filters. The second input is one of
+ * <ul>
+ * <li>a bitmap, uploaded once by {@link #setBitmap(Bitmap)}</li>
+ * <li>a texture the app renders into, see {@link #setTexture(int)}</li>
+ * <li>an external texture of a SurfaceTexture, e.g. a camera or video stream, see
+ * {@link #setExternalTexture(int, float[])}</li>
+ * <li>the output of another filter applied to the same image, see
+ * {@link #setInputFilter(GPUImageFilter)}</li>
+ * </ul>
+ * None of them but the bitmap goes through the CPU. The second input is kept when the filter is
+ * destroyed, and its GL objects are created again when the filter is initialized again.
+ */
 public class GPUImageTwoInputFilter extends GPUImageFilter {
     private static final String VERTEX_SHADER = "attribute vec4 position;\n" +
             "attribute vec4 inputTextureCoordinate;\n" +
@@ -45,8 +65,20 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     private int filterSecondTextureCoordinateAttribute;
     private int filterInputTextureUniform2;
     private int filterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
+    private boolean ownsSourceTexture2 = true;
     private ByteBuffer texture2CoordinatesBuffer;
     private Bitmap bitmap;
+    // Texture set by setTexture, owned by the app
+    private int sharedTexture = OpenGlUtils.NO_TEXTURE;
+
+    // Second inputs that are drawn into a framebuffer before every draw
+    private GPUImageFilter inputFilter;
+    private ExternalTextureFilter externalTextureFilter;
+    private int externalTexture = OpenGlUtils.NO_TEXTURE;
+    private int[] frameBuffers;
+    private int[] frameBufferTextures;
+    private FloatBuffer glCubeBuffer;
+    private FloatBuffer glTextureBuffer;
 
     public GPUImageTwoInputFilter(String fragmentShader) {
         this(VERTEX_SHADER, fragmentShader);
@@ -63,7 +95,18 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
         filterSecondTextureCoordinateAttribute = GLES20.glGetAttribLocation(getProgram(), "inputTextureCoordinate2");
         filterInputTextureUniform2 = GLES20.glGetUniformLocation(getProgram(), "inputImageTexture2"); // This does assume a name of "inputImageTexture2" for second input texture in the fragment shader
-        GLES20.glEnableVertexAttribArray(filterSecondTextureCoordinateAttribute);
+        GlStateCache.enableVertexAttribArray(filterSecondTextureCoordinateAttribute);
+
+        if (sharedTexture != OpenGlUtils.NO_TEXTURE) {
+            filterSourceTexture2 = sharedTexture;
+            ownsSourceTexture2 = false;
+        }
+        if (inputFilter != null) {
+            inputFilter.ifNeedInit();
+        }
+        if (externalTextureFilter != null) {
+            externalTextureFilter.ifNeedInit();
+        }
     }
 
     @Override
@@ -84,17 +127,197 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
         }
         runOnDraw(new Runnable() {
             public void run() {
+                if (inputFilter != null || externalTextureFilter != null
+                        || sharedTexture != OpenGlUtils.NO_TEXTURE) {
+                    clearSecondInput();
+                }
                 if (filterSourceTexture2 == OpenGlUtils.NO_TEXTURE) {
                     if (bitmap == null || bitmap.isRecycled()) {
                         return;
                     }
-                    GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+                    GlStateCache.activeTexture(GLES20.GL_TEXTURE3);
                     filterSourceTexture2 = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
                 }
             }
         });
     }
 
+    /**
+     * Uses a texture owned by someone else, e.g. one the app renders another stream into, as the
+     * second input. It is read on every draw, so updating its content is enough, and it is not
+     * deleted when this filter is destroyed.
+     */
+    public void setTexture(final int texture) {
+        bitmap = null;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                useTexture(texture);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #setTexture(int)} but right away, for callers on the GL thread that change the
+     * texture before every draw.
+     */
+    void useTexture(final int texture) {
+        if (texture == sharedTexture && filterSourceTexture2 == texture) {
+            return;
+        }
+        clearSecondInput();
+        sharedTexture = texture;
+        filterSourceTexture2 = texture;
+        ownsSourceTexture2 = false;
+    }
+
+    /**
+     * Uses an external texture, e.g. the texture of a SurfaceTexture fed by a camera or a video
+     * decoder, as the second input. It is copied into a framebuffer on the GPU before every draw,
+     * so the blend shaders do not need to sample external textures. The second texture
+     * coordinates are reset to match.
+     *
+     * @param texture         a GL_TEXTURE_EXTERNAL_OES texture, not deleted by this filter
+     * @param transformMatrix the matrix from SurfaceTexture#getTransformMatrix, updated in place
+     *                        by the caller after every updateTexImage, or null
+     */
+    public void setExternalTexture(final int texture, final float[] transformMatrix) {
+        bitmap = null;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                clearSecondInput();
+                externalTexture = texture;
+                externalTextureFilter = new ExternalTextureFilter(transformMatrix);
+                externalTextureFilter.ifNeedInit();
+                externalTextureFilter.onOutputSizeChanged(getOutputWidth(), getOutputHeight());
+                setRotation(Rotation.NORMAL, false, true);
+            }
+        });
+    }
+
+    /**
+     * Uses the output of a filter applied to the same image as the second input, e.g. to blend an
+     * image with a blurred copy of itself. The filter is drawn into a framebuffer before every
+     * draw and destroyed with this filter. The second texture coordinates are reset to match.
+     */
+    public void setInputFilter(final GPUImageFilter filter) {
+        bitmap = null;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                clearSecondInput();
+                inputFilter = filter;
+                inputFilter.ifNeedInit();
+                inputFilter.onOutputSizeChanged(getOutputWidth(), getOutputHeight());
+                setRotation(Rotation.NORMAL, false, true);
+            }
+        });
+    }
+
+    public GPUImageFilter getInputFilter() {
+        return inputFilter;
+    }
+
+    /**
+     * Drops the current second input before another one is set.
+     */
+    private void clearSecondInput() {
+        destroySecondInput();
+        inputFilter = null;
+        externalTextureFilter = null;
+        externalTexture = OpenGlUtils.NO_TEXTURE;
+        sharedTexture = OpenGlUtils.NO_TEXTURE;
+    }
+
+    /**
+     * Deletes the GL objects of the second input, keeping what it is.
+     */
+    private void destroySecondInput() {
+        if (inputFilter != null) {
+            inputFilter.destroy();
+        }
+        if (externalTextureFilter != null) {
+            externalTextureFilter.destroy();
+        }
+        destroyFramebuffers();
+        if (ownsSourceTexture2 && filterSourceTexture2 != OpenGlUtils.NO_TEXTURE) {
+            GlStateCache.deleteTextures(1, new int[]{filterSourceTexture2}, 0);
+        }
+        filterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
+        ownsSourceTexture2 = true;
+    }
+
+    private void destroyFramebuffers() {
+        if (frameBuffers != null) {
+            if (filterSourceTexture2 == frameBufferTextures[0]) {
+                filterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
+            }
+            GlStateCache.deleteTextures(1, frameBufferTextures, 0);
+            GlStateCache.deleteFramebuffers(1, frameBuffers, 0);
+            frameBuffers = null;
+            frameBufferTextures = null;
+        }
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        destroyFramebuffers();
+        if (inputFilter != null) {
+            inputFilter.onOutputSizeChanged(width, height);
+        }
+        if (externalTextureFilter != null) {
+            externalTextureFilter.onOutputSizeChanged(width, height);
+        }
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int frameBuffer, final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        runPendingOnDrawTasks();
+        if (isInitialized() && (inputFilter != null || externalTextureFilter != null)) {
+            drawSecondInput(textureId, textureBuffer);
+        }
+        super.onDraw(frameBuffer, textureId, cubeBuffer, textureBuffer);
+    }
+
+    @SuppressLint("WrongCall")
+    private void drawSecondInput(final int textureId, final FloatBuffer textureBuffer) {
+        if (getOutputWidth() == 0 || getOutputHeight() == 0) {
+            return;
+        }
+        if (frameBuffers == null) {
+            frameBuffers = new int[1];
+            frameBufferTextures = new int[1];
+            OpenGlUtils.createFrameBuffer(getOutputWidth(), getOutputHeight(),
+                    frameBuffers, frameBufferTextures, 0);
+        }
+        if (glCubeBuffer == null) {
+            glCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            glCubeBuffer.put(CUBE).position(0);
+            glTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_FRAMEBUFFER.length * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            glTextureBuffer.put(TEXTURE_FRAMEBUFFER).position(0);
+        }
+
+        int targetFrameBuffer = OpenGlUtils.getBoundFrameBuffer();
+        GlStateCache.bindFramebuffer(frameBuffers[0]);
+        if (inputFilter != null) {
+            inputFilter.onDraw(frameBuffers[0], textureId, glCubeBuffer, textureBuffer);
+        } else {
+            externalTextureFilter.setTexture(externalTexture);
+            externalTextureFilter.onDraw(frameBuffers[0], OpenGlUtils.NO_TEXTURE,
+                    glCubeBuffer, glTextureBuffer);
+        }
+        GlStateCache.bindFramebuffer(targetFrameBuffer);
+        filterSourceTexture2 = frameBufferTextures[0];
+    }
+
     public Bitmap getBitmap() {
         return bitmap;
     }
@@ -106,19 +329,27 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
         }
     }
 
+    @Override
+    public void collectPrograms(final List<String[]> programs) {
+        super.collectPrograms(programs);
+        if (inputFilter != null) {
+            inputFilter.collectPrograms(programs);
+        }
+        if (externalTextureFilter != null) {
+            externalTextureFilter.collectPrograms(programs);
+        }
+    }
+
     public void onDestroy() {
         super.onDestroy();
-        GLES20.glDeleteTextures(1, new int[]{
-                filterSourceTexture2
-        }, 0);
-        filterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
+        destroySecondInput();
     }
 
     @Override
     protected void onDrawArraysPre() {
-        GLES20.glEnableVertexAttribArray(filterSecondTextureCoordinateAttribute);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, filterSourceTexture2);
+        GlStateCache.enableVertexAttribArray(filterSecondTextureCoordinateAttribute);
+        GlStateCache.activeTexture(GLES20.GL_TEXTURE3);
+        GlStateCache.bindTexture(filterSourceTexture2);
         GLES20.glUniform1i(filterInputTextureUniform2, 3);
 
         texture2CoordinatesBuffer.position(0);
@@ -135,4 +366,71 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
         texture2CoordinatesBuffer = bBuffer;
     }
+
+    /**
+     * Copies an external texture with its SurfaceTexture transform applied.
+     */
+    private static class ExternalTextureFilter extends GPUImageFilter {
+        private static final String VERTEX_SHADER = "" +
+                "attribute vec4 position;\n" +
+                "attribute vec4 inputTextureCoordinate;\n" +
+                "\n" +
+                "uniform mat4 textureTransform;\n" +
+                "\n" +
+                "varying vec2 textureCoordinate;\n" +
+                "\n" +
+                "void main()\n" +
+                "{\n" +
+                "    gl_Position = position;\n" +
+                "    textureCoordinate = (textureTransform * inputTextureCoordinate).xy;\n" +
+                "}";
+
+        private static final String FRAGMENT_SHADER = "" +
+                "#extension GL_OES_EGL_image_external : require\n" +
+                "varying highp vec2 textureCoordinate;\n" +
+                "\n" +
+                "uniform samplerExternalOES inputImageTexture;\n" +
+                "\n" +
+                "void main()\n" +
+                "{\n" +
+                "    gl_FragColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+                "}";
+
+        private static final float[] IDENTITY = {
+                1f, 0f, 0f, 0f,
+                0f, 1f, 0f, 0f,
+                0f, 0f, 1f, 0f,
+                0f, 0f, 0f, 1f,
+        };
+
+        private final float[] transformMatrix;
+        private int transformLocation;
+        private int textureLocation;
+        private int texture = OpenGlUtils.NO_TEXTURE;
+
+        ExternalTextureFilter(final float[] transformMatrix) {
+            super(VERTEX_SHADER, FRAGMENT_SHADER);
+            this.transformMatrix = transformMatrix != null ? transformMatrix : IDENTITY;
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            transformLocation = GLES20.glGetUniformLocation(getProgram(), "textureTransform");
+            textureLocation = GLES20.glGetUniformLocation(getProgram(), "inputImageTexture");
+        }
+
+        void setTexture(final int texture) {
+            this.texture = texture;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            // The base filter only binds GL_TEXTURE_2D, so the texture is bound here
+            GLES20.glUniformMatrix4fv(transformLocation, 1, false, transformMatrix, 0);
+            GlStateCache.activeTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+            GLES20.glUniform1i(textureLocation, 0);
+        }
+    }
 }
@@ -36,7 +36,7 @@ public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter
         GPUImageFilter filter = getFilters().get(0);
         int texelWidthOffsetLocation = GLES20.glGetUniformLocation(filter.getProgram(), "texelWidthOffset");
         int texelHeightOffsetLocation = GLES20.glGetUniformLocation(filter.getProgram(), "texelHeightOffset");
-        filter.setFloat(texelWidthOffsetLocation, ratio / getOutputWidth());
+        filter.setFloat(texelWidthOffsetLocation, ratio * getRenderScale() / getOutputWidth());
         filter.setFloat(texelHeightOffsetLocation, 0);
 
         ratio = getVerticalTexelOffsetRatio();
@@ -44,7 +44,7 @@ public class GPUImageTwoPassTextureSamplingFilter extends GPUImageTwoPassFilter
         texelWidthOffsetLocation = GLES20.glGetUniformLocation(filter.getProgram(), "texelWidthOffset");
         texelHeightOffsetLocation = GLES20.glGetUniformLocation(filter.getProgram(), "texelHeightOffset");
         filter.setFloat(texelWidthOffsetLocation, 0);
-        filter.setFloat(texelHeightOffsetLocation, ratio / getOutputHeight());
+        filter.setFloat(texelHeightOffsetLocation, ratio * getRenderScale() / getOutputHeight());
     }
 
     @Override
@@ -48,5 +48,10 @@ public class GPUImageVibranceFilter extends GPUImageFilter {
             setFloat(vibranceLocation, vibrance);
         }
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(vibrance);
+    }
 }
 
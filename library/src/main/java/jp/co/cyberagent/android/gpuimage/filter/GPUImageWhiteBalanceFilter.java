@@ -91,4 +91,9 @@ public class GPUImageWhiteBalanceFilter extends GPUImageFilter {
         this.tint = tint;
         setFloat(tintLocation, (float) (this.tint / 100.0));
     }
+
+    @Override
+    public Object getBakeKey() {
+        return createBakeKey(temperature, tint);
+    }
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps released bitmaps so offscreen results, captures and decodes can reuse their memory
+ * instead of allocating a new bitmap every time. Bitmaps are grouped by size and config. Once the
+ * pooled bitmaps exceed the byte budget, the least recently released ones are recycled.
+ * <p>
+ * Bitmaps handed out by the pool belong to the caller. Give them back with {@link #put(Bitmap)}
+ * once they are no longer used instead of recycling them.
+ */
+public class BitmapPool {
+
+    private static BitmapPool defaultPool;
+
+    private final Map<Long, ArrayDeque<Bitmap>> groups = new HashMap<>();
+    // Least recently released first
+    private final LinkedList<Bitmap> releaseOrder = new LinkedList<>();
+    private long maxBytes;
+    private long bytes;
+    private int hits;
+    private int misses;
+
+    /**
+     * The pool shared by {@link jp.co.cyberagent.android.gpuimage.GPUImage} and
+     * {@link jp.co.cyberagent.android.gpuimage.GPUImageView}, limited to an eighth of the heap.
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new BitmapPool(Runtime.getRuntime().maxMemory() / 8);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * @param maxBytes the most memory the pooled bitmaps may hold
+     */
+    public BitmapPool(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a mutable bitmap of the given size and config, reusing a pooled one if possible.
+     * The content of a reused bitmap is undefined, so only use this when every pixel is written.
+     */
+    public Bitmap get(final int width, final int height, final Bitmap.Config config) {
+        Bitmap bitmap = poll(width, height, config);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        if (config == Bitmap.Config.ARGB_8888) {
+            bitmap.setHasAlpha(true);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Sets {@link BitmapFactory.Options#inBitmap} to a pooled bitmap the decode fits into and
+     * makes the decoded bitmap mutable so it can be given back to the pool later. Call it after
+     * {@link BitmapFactory.Options#inSampleSize} and
+     * {@link BitmapFactory.Options#inPreferredConfig} are set.
+     *
+     * @param width  the width of the encoded image
+     * @param height the height of the encoded image
+     */
+    public void setInBitmap(final BitmapFactory.Options options, final int width, final int height) {
+        options.inMutable = true;
+        int sampleSize = Math.max(1, options.inSampleSize);
+        Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int sampledWidth = (width + sampleSize - 1) / sampleSize;
+            int sampledHeight = (height + sampleSize - 1) / sampleSize;
+            options.inBitmap = pollFitting((long) sampledWidth * sampledHeight
+                    * getBytesPerPixel(config), config);
+        } else if (sampleSize == 1) {
+            // Before KitKat the bitmap must match exactly and sampling is not supported
+            options.inBitmap = poll(width, height, config);
+        }
+    }
+
+    /**
+     * Gives a bitmap back to the pool. Bitmaps that cannot be reused (immutable ones, or ones
+     * larger than the whole budget) are recycled right away.
+     */
+    public void put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        long size = getAllocationByteCount(bitmap);
+        synchronized (this) {
+            if (bitmap.isMutable() && size <= maxBytes && !releaseOrder.contains(bitmap)) {
+                Long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+                ArrayDeque<Bitmap> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayDeque<>();
+                    groups.put(key, group);
+                }
+                group.add(bitmap);
+                releaseOrder.add(bitmap);
+                bytes += size;
+                trimToSize(maxBytes);
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    public synchronized void setMaxBytes(final long maxBytes) {
+        this.maxBytes = maxBytes;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * The memory held by the pooled bitmaps.
+     */
+    public synchronized long getSize() {
+        return bytes;
+    }
+
+    /**
+     * How many requests were served from the pool.
+     */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    /**
+     * How many requests had to allocate a new bitmap.
+     */
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Recycles all pooled bitmaps, e.g. on {@link android.content.ComponentCallbacks2#onTrimMemory}.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private synchronized Bitmap poll(final int width, final int height, final Bitmap.Config config) {
+        ArrayDeque<Bitmap> group = groups.get(getKey(width, height, config));
+        Bitmap bitmap = group != null ? group.pollLast() : null;
+        if (bitmap == null) {
+            misses++;
+            return null;
+        }
+        if (group.isEmpty()) {
+            groups.remove(getKey(width, height, config));
+        }
+        releaseOrder.remove(bitmap);
+        bytes -= getAllocationByteCount(bitmap);
+        hits++;
+        return bitmap;
+    }
+
+    /**
+     * Takes the smallest pooled bitmap of the config holding at least the given number of bytes.
+     */
+    private synchronized Bitmap pollFitting(final long size, final Bitmap.Config config) {
+        Bitmap best = null;
+        for (Bitmap bitmap : releaseOrder) {
+            long bitmapSize = getAllocationByteCount(bitmap);
+            if (bitmap.getConfig() == config && bitmapSize >= size
+                    && (best == null || bitmapSize < getAllocationByteCount(best))) {
+                best = bitmap;
+            }
+        }
+        if (best == null) {
+            misses++;
+            return null;
+        }
+        return poll(best.getWidth(), best.getHeight(), config);
+    }
+
+    private void trimToSize(final long size) {
+        Iterator<Bitmap> iterator = releaseOrder.iterator();
+        while (bytes > size && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            Long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> group = groups.get(key);
+            group.remove(bitmap);
+            if (group.isEmpty()) {
+                groups.remove(key);
+            }
+            bytes -= getAllocationByteCount(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    private static long getKey(final int width, final int height, final Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8)
+                | (config != null ? config.ordinal() + 1 : 0);
+    }
+
+    private static int getBytesPerPixel(final Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            default:
+                return 4;
+        }
+    }
+
+    private static long getAllocationByteCount(final Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+}
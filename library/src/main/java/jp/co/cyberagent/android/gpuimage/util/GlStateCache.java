@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_FRAMEBUFFER;
+import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
+
+/**
+ * Remembers the GL state the library changes on the current thread and skips calls that would
+ * set it to the value it already has. Every program, framebuffer, 2D texture, array buffer,
+ * vertex attribute array and clear color change in the library goes through here, so the cache
+ * stays in sync with the context; code binding these directly must call {@link #invalidate()}
+ * before the library draws again.
+ * <p>
+ * The state is dropped when the thread's EGL context changes, when a context is created, see
+ * {@link #onContextCreated()}, and at the start of every frame, so a frame always begins by
+ * setting what it needs. Calls are counted per frame, both asked for and issued, see
+ * {@link #getRequestedCallCount()} and {@link #getIssuedCallCount()}.
+ * <p>
+ * Also owns a vertex buffer per context with the quad every filter draws, see
+ * {@link #getQuadOffset(FloatBuffer)}.
+ */
+public final class GlStateCache {
+
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+    private static final int MAX_TEXTURE_UNITS = 32;
+    private static final int MAX_VERTEX_ATTRIBS = 16;
+
+    private static final int QUAD_CUBE_OFFSET = 0;
+    private static final int QUAD_TEXTURE_NO_ROTATION_OFFSET = CUBE.length * 4;
+    private static final int QUAD_TEXTURE_FRAMEBUFFER_OFFSET =
+            QUAD_TEXTURE_NO_ROTATION_OFFSET + TEXTURE_NO_ROTATION.length * 4;
+
+    private static final ThreadLocal<GlStateCache> CACHES = new ThreadLocal<GlStateCache>() {
+        @Override
+        protected GlStateCache initialValue() {
+            return new GlStateCache();
+        }
+    };
+
+    private EGLContext context;
+    private int quadBuffer;
+
+    private int program;
+    private int frameBuffer;
+    private int activeTexture;
+    private final int[] textures = new int[MAX_TEXTURE_UNITS];
+    private int arrayBuffer;
+    // 1 enabled, 0 disabled, UNKNOWN not known
+    private final int[] vertexAttribArrays = new int[MAX_VERTEX_ATTRIBS];
+    private boolean clearColorKnown;
+    private final float[] clearColor = new float[4];
+
+    private int requestedCalls;
+    private int issuedCalls;
+    private int lastRequestedCalls;
+    private int lastIssuedCalls;
+
+    private GlStateCache() {
+        reset();
+    }
+
+    private static GlStateCache get() {
+        return CACHES.get();
+    }
+
+    /**
+     * Forgets the cached state, and the quad buffer if the thread now has another EGL context.
+     * Must be called after making a context current and after changing cached state without
+     * going through this class.
+     */
+    public static void invalidate() {
+        GlStateCache cache = get();
+        EGLContext current = EGL14.eglGetCurrentContext();
+        if (!current.equals(cache.context)) {
+            // The buffer belonged to the previous context and went away with it
+            cache.context = current;
+            cache.quadBuffer = 0;
+        }
+        cache.reset();
+    }
+
+    /**
+     * Forgets the cached state and the quad buffer. Must be called after a newly created context
+     * is made current, which may have the same handle as a context that went away.
+     */
+    public static void onContextCreated() {
+        GlStateCache cache = get();
+        cache.context = EGL14.eglGetCurrentContext();
+        cache.quadBuffer = 0;
+        cache.reset();
+    }
+
+    /**
+     * Starts counting a new frame and forgets the cached state. Must be called on the GL thread
+     * before the frame draws anything.
+     */
+    public static void beginFrame() {
+        GlStateCache cache = get();
+        cache.lastRequestedCalls = cache.requestedCalls;
+        cache.lastIssuedCalls = cache.issuedCalls;
+        cache.requestedCalls = 0;
+        cache.issuedCalls = 0;
+        invalidate();
+    }
+
+    /**
+     * How many state changes the previous frame on this thread asked for.
+     */
+    public static int getRequestedCallCount() {
+        return get().lastRequestedCalls;
+    }
+
+    /**
+     * How many of the state changes the previous frame on this thread asked for reached GL.
+     */
+    public static int getIssuedCallCount() {
+        return get().lastIssuedCalls;
+    }
+
+    private void reset() {
+        program = UNKNOWN;
+        frameBuffer = UNKNOWN;
+        activeTexture = UNKNOWN;
+        Arrays.fill(textures, UNKNOWN);
+        arrayBuffer = UNKNOWN;
+        Arrays.fill(vertexAttribArrays, UNKNOWN);
+        clearColorKnown = false;
+    }
+
+    private boolean request(final boolean redundant) {
+        requestedCalls++;
+        if (!redundant) {
+            issuedCalls++;
+        }
+        return !redundant;
+    }
+
+    public static void useProgram(final int program) {
+        GlStateCache cache = get();
+        if (cache.request(cache.program == program)) {
+            GLES20.glUseProgram(program);
+            cache.program = program;
+        }
+    }
+
+    public static void bindFramebuffer(final int frameBuffer) {
+        GlStateCache cache = get();
+        if (cache.request(cache.frameBuffer == frameBuffer)) {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer);
+            cache.frameBuffer = frameBuffer;
+        }
+    }
+
+    /**
+     * Returns the bound framebuffer, only asking GL when it is not known.
+     */
+    public static int getFramebuffer() {
+        GlStateCache cache = get();
+        if (cache.frameBuffer == UNKNOWN) {
+            int[] binding = new int[1];
+            GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, binding, 0);
+            cache.frameBuffer = binding[0];
+        }
+        return cache.frameBuffer;
+    }
+
+    public static void activeTexture(final int texture) {
+        GlStateCache cache = get();
+        if (cache.request(cache.activeTexture == texture)) {
+            GLES20.glActiveTexture(texture);
+            cache.activeTexture = texture;
+        }
+    }
+
+    /**
+     * Binds a GL_TEXTURE_2D texture to the active unit.
+     */
+    public static void bindTexture(final int texture) {
+        GlStateCache cache = get();
+        int unit = cache.activeTexture - GLES20.GL_TEXTURE0;
+        boolean known = unit >= 0 && unit < MAX_TEXTURE_UNITS;
+        if (cache.request(known && cache.textures[unit] == texture)) {
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            if (known) {
+                cache.textures[unit] = texture;
+            }
+        }
+    }
+
+    public static void bindArrayBuffer(final int buffer) {
+        GlStateCache cache = get();
+        if (cache.request(cache.arrayBuffer == buffer)) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+            cache.arrayBuffer = buffer;
+        }
+    }
+
+    public static void enableVertexAttribArray(final int index) {
+        GlStateCache cache = get();
+        boolean known = index >= 0 && index < MAX_VERTEX_ATTRIBS;
+        if (cache.request(known && cache.vertexAttribArrays[index] == 1)) {
+            GLES20.glEnableVertexAttribArray(index);
+            if (known) {
+                cache.vertexAttribArrays[index] = 1;
+            }
+        }
+    }
+
+    public static void disableVertexAttribArray(final int index) {
+        GlStateCache cache = get();
+        boolean known = index >= 0 && index < MAX_VERTEX_ATTRIBS;
+        if (cache.request(known && cache.vertexAttribArrays[index] == 0)) {
+            GLES20.glDisableVertexAttribArray(index);
+            if (known) {
+                cache.vertexAttribArrays[index] = 0;
+            }
+        }
+    }
+
+    public static void clearColor(final float red, final float green, final float blue,
+                                  final float alpha) {
+        GlStateCache cache = get();
+        float[] color = cache.clearColor;
+        if (cache.request(cache.clearColorKnown && color[0] == red && color[1] == green
+                && color[2] == blue && color[3] == alpha)) {
+            GLES20.glClearColor(red, green, blue, alpha);
+            color[0] = red;
+            color[1] = green;
+            color[2] = blue;
+            color[3] = alpha;
+            cache.clearColorKnown = true;
+        }
+    }
+
+    /**
+     * Deletes the programs like glDeleteProgram. Deleting the current program keeps it in use
+     * until another one is, so only the cached name is forgotten.
+     */
+    public static void deleteProgram(final int program) {
+        GLES20.glDeleteProgram(program);
+        GlStateCache cache = get();
+        if (cache.program == program) {
+            cache.program = UNKNOWN;
+        }
+    }
+
+    /**
+     * Deletes the textures like glDeleteTextures, which unbinds them from every unit.
+     */
+    public static void deleteTextures(final int n, final int[] textures, final int offset) {
+        GLES20.glDeleteTextures(n, textures, offset);
+        GlStateCache cache = get();
+        for (int i = offset; i < offset + n; i++) {
+            for (int unit = 0; unit < MAX_TEXTURE_UNITS; unit++) {
+                if (cache.textures[unit] == textures[i]) {
+                    cache.textures[unit] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the framebuffers like glDeleteFramebuffers, which binds 0 if one of them is bound.
+     */
+    public static void deleteFramebuffers(final int n, final int[] frameBuffers,
+                                          final int offset) {
+        GLES20.glDeleteFramebuffers(n, frameBuffers, offset);
+        GlStateCache cache = get();
+        for (int i = offset; i < offset + n; i++) {
+            if (cache.frameBuffer == frameBuffers[i]) {
+                cache.frameBuffer = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the vertex buffer of the current context holding {@link
+     * jp.co.cyberagent.android.gpuimage.GPUImageRenderer#CUBE}, {@link
+     * TextureRotationUtil#TEXTURE_NO_ROTATION} and {@link TextureRotationUtil#TEXTURE_FRAMEBUFFER},
+     * creating it on first use.
+     */
+    public static int getQuadBuffer() {
+        GlStateCache cache = get();
+        if (cache.quadBuffer == 0) {
+            if (cache.context == null) {
+                cache.context = EGL14.eglGetCurrentContext();
+            }
+            FloatBuffer data = ByteBuffer.allocateDirect(QUAD_TEXTURE_FRAMEBUFFER_OFFSET
+                    + TEXTURE_FRAMEBUFFER.length * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            data.put(CUBE).put(TEXTURE_NO_ROTATION).put(TEXTURE_FRAMEBUFFER).position(0);
+            int[] buffers = new int[1];
+            GLES20.glGenBuffers(1, buffers, 0);
+            bindArrayBuffer(buffers[0]);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.capacity() * 4, data,
+                    GLES20.GL_STATIC_DRAW);
+            cache.quadBuffer = buffers[0];
+        }
+        return cache.quadBuffer;
+    }
+
+    /**
+     * Returns the byte offset of the coordinates in {@link #getQuadBuffer()} if the buffer holds
+     * one of the quads it contains, -1 otherwise.
+     */
+    public static int getQuadOffset(final FloatBuffer buffer) {
+        if (matches(buffer, CUBE)) {
+            return QUAD_CUBE_OFFSET;
+        } else if (matches(buffer, TEXTURE_NO_ROTATION)) {
+            return QUAD_TEXTURE_NO_ROTATION_OFFSET;
+        } else if (matches(buffer, TEXTURE_FRAMEBUFFER)) {
+            return QUAD_TEXTURE_FRAMEBUFFER_OFFSET;
+        }
+        return -1;
+    }
+
+    private static boolean matches(final FloatBuffer buffer, final float[] quad) {
+        if (buffer.capacity() != quad.length) {
+            return false;
+        }
+        for (int i = 0; i < quad.length; i++) {
+            if (buffer.get(i) != quad[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2018 CyberAgent, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A 3D color lookup table of size^3 RGB entries, stored as floats in a direct buffer with red
+ * changing fastest, then green, then blue, which is the layout glTexImage3D expects.
+ * <p>
+ * Tables are read from Adobe/Resolve .cube files or Autodesk/Lustre .3dl files. The parsers read
+ * the stream byte by byte straight into the buffer, without creating a String per line.
+ */
+public class Lut3D {
+    /**
+     * The largest supported size, that of the finest tables grading tools export. Larger tables
+     * would take hundreds of megabytes as floats while adding no visible precision.
+     */
+    public static final int MAX_SIZE = 65;
+
+    private final int size;
+    private final FloatBuffer data;
+    private final float[] domainMin;
+    private final float[] domainMax;
+
+    /**
+     * @param size      number of entries along each axis
+     * @param data      size^3 RGB triples, red changing fastest
+     * @param domainMin input color that maps to the first entry on each axis
+     * @param domainMax input color that maps to the last entry on each axis
+     */
+    public Lut3D(final int size, final FloatBuffer data, final float[] domainMin,
+                 final float[] domainMax) {
+        if (size < 2 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Unsupported LUT size: " + size);
+        }
+        if (data.capacity() != size * size * size * 3) {
+            throw new IllegalArgumentException("LUT data must have size^3 RGB entries");
+        }
+        this.size = size;
+        this.data = data;
+        this.domainMin = domainMin.clone();
+        this.domainMax = domainMax.clone();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * The table entries. The buffer is shared, do not modify it.
+     */
+    public FloatBuffer getData() {
+        data.position(0);
+        return data;
+    }
+
+    public float[] getDomainMin() {
+        return domainMin.clone();
+    }
+
+    public float[] getDomainMax() {
+        return domainMax.clone();
+    }
+
+    /**
+     * Resamples the table into the 512x512 lookup image of the GPUImageLookupFilter, for devices
+     * without 3D texture support.
+     */
+    public Bitmap toLookupBitmap() {
+        int[] pixels = new int[512 * 512];
+        float[] color = new float[3];
+        float[] result = new float[3];
+        for (int y = 0; y < 512; y++) {
+            for (int x = 0; x < 512; x++) {
+                color[0] = (x % 64) / 63f;
+                color[1] = (y % 64) / 63f;
+                color[2] = ((y / 64) * 8 + x / 64) / 63f;
+                sample(color, result);
+                pixels[y * 512 + x] = 0xff000000
+                        | (toByte(result[0]) << 16) | (toByte(result[1]) << 8) | toByte(result[2]);
+            }
+        }
+        return Bitmap.createBitmap(pixels, 512, 512, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Looks up a color with trilinear interpolation.
+     */
+    public void sample(final float[] color, final float[] result) {
+        float r = position(color, 0);
+        float g = position(color, 1);
+        float b = position(color, 2);
+        int r0 = Math.min((int) r, size - 2);
+        int g0 = Math.min((int) g, size - 2);
+        int b0 = Math.min((int) b, size - 2);
+        float fr = r - r0;
+        float fg = g - g0;
+        float fb = b - b0;
+        for (int channel = 0; channel < 3; channel++) {
+            float c000 = entry(r0, g0, b0, channel);
+            float c100 = entry(r0 + 1, g0, b0, channel);
+            float c010 = entry(r0, g0 + 1, b0, channel);
+            float c110 = entry(r0 + 1, g0 + 1, b0, channel);
+            float c001 = entry(r0, g0, b0 + 1, channel);
+            float c101 = entry(r0 + 1, g0, b0 + 1, channel);
+            float c011 = entry(r0, g0 + 1, b0 + 1, channel);
+            float c111 = entry(r0 + 1, g0 + 1, b0 + 1, channel);
+            float c00 = c000 + (c100 - c000) * fr;
+            float c10 = c010 + (c110 - c010) * fr;
+            float c01 = c001 + (c101 - c001) * fr;
+            float c11 = c011 + (c111 - c011) * fr;
+            float c0 = c00 + (c10 - c00) * fg;
+            float c1 = c01 + (c11 - c01) * fg;
+            result[channel] = c0 + (c1 - c0) * fb;
+        }
+    }
+
+    private float position(final float[] color, final int axis) {
+        float range = domainMax[axis] - domainMin[axis];
+        float position = range > 0f ? (color[axis] - domainMin[axis]) / range : 0f;
+        return Math.max(0f, Math.min(1f, position)) * (size - 1);
+    }
+
+    private float entry(final int r, final int g, final int b, final int channel) {
+        return data.get(((b * size + g) * size + r) * 3 + channel);
+    }
+
+    private static int toByte(final float value) {
+        return Math.round(Math.max(0f, Math.min(1f, value)) * 255f);
+    }
+
+    /**
+     * Reads a .cube file. Only 3D tables are supported.
+     */
+    public static Lut3D readCube(final InputStream inputStream) throws IOException {
+        Tokenizer tokenizer = new Tokenizer(inputStream);
+        float[] domainMin = {0f, 0f, 0f};
+        float[] domainMax = {1f, 1f, 1f};
+        int size = 0;
+        FloatBuffer data = null;
+        int entries = 0;
+        while (tokenizer.nextLine()) {
+            int c = tokenizer.peek();
+            if (c == '#') {
+                tokenizer.skipLine();
+                continue;
+            }
+            if (Tokenizer.isNumberStart(c)) {
+                if (data == null) {
+                    throw new IOException("LUT_3D_SIZE must come before the table");
+                }
+                if (entries == size * size * size) {
+                    throw new IOException("Too many table entries");
+                }
+                data.put(tokenizer.readFloat());
+                data.put(tokenizer.readFloat());
+                data.put(tokenizer.readFloat());
+                entries++;
+            } else {
+                String keyword = tokenizer.readWord();
+                switch (keyword) {
+                    case "LUT_3D_SIZE":
+                        size = (int) tokenizer.readFloat();
+                        if (size < 2 || size > MAX_SIZE) {
+                            throw new IOException("Unsupported LUT_3D_SIZE: " + size);
+                        }
+                        data = allocate(size);
+                        break;
+                    case "LUT_1D_SIZE":
+                        throw new IOException("1D LUTs are not supported");
+                    case "DOMAIN_MIN":
+                        readTriple(tokenizer, domainMin);
+                        break;
+                    case "DOMAIN_MAX":
+                        readTriple(tokenizer, domainMax);
+                        break;
+                    case "LUT_3D_INPUT_RANGE":
+                        domainMin[0] = domainMin[1] = domainMin[2] = tokenizer.readFloat();
+                        domainMax[0] = domainMax[1] = domainMax[2] = tokenizer.readFloat();
+                        break;
+                    default:
+                        // TITLE and vendor specific keywords
+                        break;
+                }
+            }
+            tokenizer.skipLine();
+        }
+        if (data == null || entries != size * size * size) {
+            throw new IOException("Expected " + size * size * size + " entries, found " + entries);
+        }
+        data.position(0);
+        return new Lut3D(size, data, domainMin, domainMax);
+    }
+
+    /**
+     * Reads a .3dl file. The table size comes from a "Mesh" header or from the input mesh line
+     * (e.g. "0 64 128 ... 1023") that starts the table. The output bit depth comes from the header
+     * or, without one, from the largest value.
+     */
+    public static Lut3D read3dl(final InputStream inputStream) throws IOException {
+        Tokenizer tokenizer = new Tokenizer(inputStream);
+        int size = 0;
+        float outputMax = 0f;
+        FloatBuffer data = null;
+        int entries = 0;
+        float largest = 0f;
+        boolean meshRead = false;
+        while (tokenizer.nextLine()) {
+            int c = tokenizer.peek();
+            if (c == '#') {
+                tokenizer.skipLine();
+                continue;
+            }
+            if (Tokenizer.isNumberStart(c) && !meshRead) {
+                // The first line of numbers is the input mesh, one value per entry along an axis
+                tokenizer.readFloat();
+                if (tokenizer.isInWord()) {
+                    // A keyword starting with a digit, like "3DMESH"
+                    tokenizer.skipLine();
+                    continue;
+                }
+                int count = 1;
+                while (tokenizer.hasMoreOnLine()) {
+                    tokenizer.readFloat();
+                    count++;
+                }
+                if (data == null) {
+                    if (count < 2 || count > MAX_SIZE) {
+                        throw new IOException("Unsupported mesh size: " + count);
+                    }
+                    size = count;
+                    data = allocate(size);
+                }
+                meshRead = true;
+            } else if (Tokenizer.isNumberStart(c)) {
+                float r = tokenizer.readFloat();
+                float g = tokenizer.readFloat();
+                float b = tokenizer.readFloat();
+                if (entries == size * size * size) {
+                    throw new IOException("Too many table entries");
+                }
+                // Blue changes fastest in .3dl files, red in the texture layout
+                int blue = entries % size;
+                int green = (entries / size) % size;
+                int red = entries / (size * size);
+                int index = ((blue * size + green) * size + red) * 3;
+                data.put(index, r);
+                data.put(index + 1, g);
+                data.put(index + 2, b);
+                largest = Math.max(largest, Math.max(r, Math.max(g, b)));
+                entries++;
+            } else if (tokenizer.readWord().equals("Mesh")) {
+                int inputBits = (int) tokenizer.readFloat();
+                int outputBits = (int) tokenizer.readFloat();
+                if (inputBits < 1 || inputBits > 7) {
+                    throw new IOException("Unsupported mesh: " + inputBits);
+                }
+                if (data == null) {
+                    size = (1 << inputBits) + 1;
+                    data = allocate(size);
+                }
+                outputMax = (1 << outputBits) - 1;
+            }
+            tokenizer.skipLine();
+        }
+        if (data == null || entries != size * size * size) {
+            throw new IOException("Expected " + size * size * size + " entries, found " + entries);
+        }
+
+        if (outputMax == 0f) {
+            outputMax = largest <= 1023f ? 1023f : largest <= 4095f ? 4095f : 65535f;
+        }
+        float scale = 1f / outputMax;
+        for (int i = 0, length = data.capacity(); i < length; i++) {
+            data.put(i, data.get(i) * scale);
+        }
+        data.position(0);
+        return new Lut3D(size, data, new float[]{0f, 0f, 0f}, new float[]{1f, 1f, 1f});
+    }
+
+    private static FloatBuffer allocate(final int size) {
+        return ByteBuffer.allocateDirect(size * size * size * 3 * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    private static void readTriple(final Tokenizer tokenizer, final float[] values)
+            throws IOException {
+        values[0] = tokenizer.readFloat();
+        values[1] = tokenizer.readFloat();
+        values[2] = tokenizer.readFloat();
+    }
+
+    /**
+     * Reads ASCII tokens from a stream through a fixed buffer. Numbers are parsed in place.
+     */
+    private static class Tokenizer {
+        private final InputStream inputStream;
+        private final byte[] buffer = new byte[8192];
+        private int position;
+        private int limit;
+
+        Tokenizer(final InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        static boolean isNumberStart(final int c) {
+            return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.';
+        }
+
+        int peek() throws IOException {
+            if (position == limit) {
+                limit = inputStream.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position] & 0xff;
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            if (c != -1) {
+                position++;
+            }
+            return c;
+        }
+
+        /**
+         * Skips blank space and empty lines. Returns false at the end of the stream.
+         */
+        boolean nextLine() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                position++;
+                c = peek();
+            }
+            return c != -1;
+        }
+
+        void skipLine() throws IOException {
+            int c = read();
+            while (c != '\n' && c != -1) {
+                c = read();
+            }
+        }
+
+        private void skipSpaces() throws IOException {
+            int c = peek();
+            while (c == ' ' || c == '\t') {
+                position++;
+                c = peek();
+            }
+        }
+
+        boolean hasMoreOnLine() throws IOException {
+            skipSpaces();
+            int c = peek();
+            return c != '\n' && c != '\r' && c != '#' && c != -1;
+        }
+
+        boolean isInWord() throws IOException {
+            int c = peek();
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+        }
+
+        String readWord() throws IOException {
+            skipSpaces();
+            StringBuilder word = new StringBuilder();
+            int c = peek();
+            while (c > ' ') {
+                word.append((char) c);
+                position++;
+                c = peek();
+            }
+            return word.toString();
+        }
+
+        float readFloat() throws IOException {
+            skipSpaces();
+            int c = peek();
+            boolean negative = c == '-';
+            if (c == '-' || c == '+') {
+                position++;
+                c = peek();
+            }
+            double mantissa = 0;
+            int exponent = 0;
+            boolean digits = false;
+            while (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits = true;
+                position++;
+                c = peek();
+            }
+            if (c == '.') {
+                position++;
+                c = peek();
+                while (c >= '0' && c <= '9') {
+                    mantissa = mantissa * 10 + (c - '0');
+                    exponent--;
+                    digits = true;
+                    position++;
+                    c = peek();
+                }
+            }
+            if (!digits) {
+                throw new IOException("Expected a number");
+            }
+            if (c == 'e' || c == 'E') {
+                position++;
+                c = peek();
+                boolean negativeExponent = c == '-';
+                if (c == '-' || c == '+') {
+                    position++;
+                    c = peek();
+                }
+                int value = 0;
+                while (c >= '0' && c <= '9') {
+                    value = value * 10 + (c - '0');
+                    position++;
+                    c = peek();
+                }
+                exponent += negativeExponent ? -value : value;
+            }
+            double result = exponent == 0 ? mantissa : mantissa * Math.pow(10, exponent);
+            return (float) (negative ? -result : result);
+        }
+    }
+}
@@ -19,28 +19,63 @@ package jp.co.cyberagent.android.gpuimage.util;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.hardware.Camera.Size;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLUtils;
 import android.util.Log;
 
 import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
 
 public class OpenGlUtils {
     public static final int NO_TEXTURE = -1;
+    private static final int GL_HALF_FLOAT_OES = 0x8D61;
+
+    // Programs linked ahead of time, by the context they were shared with and their sources
+    private static final Map<EGLContext, Map<String, ArrayDeque<Integer>>> precompiledPrograms =
+            new HashMap<>();
 
     public static int loadTexture(final Bitmap img, final int usedTexId) {
         return loadTexture(img, usedTexId, true);
     }
 
     public static int loadTexture(final Bitmap img, final int usedTexId, final boolean recycle) {
+        return loadTexture(img, usedTexId, recycle, false);
+    }
+
+    public static int loadTexture(final Bitmap img, final int usedTexId, final boolean recycle,
+                                  final boolean mipmap) {
+        return loadTexture(img, usedTexId, recycle, mipmap, false);
+    }
+
+    /**
+     * Uploads the bitmap, optionally with a full mipmap chain sampled trilinearly, so drawing it
+     * much smaller than its size does not alias. Mipmaps are only generated where
+     * {@link #isMipmapSupported(int, int)}; elsewhere the texture is plain linear.
+     * <p>
+     * The texture takes the format of the bitmap's config, so RGB_565 bitmaps stay 16 bit on the
+     * GPU as GL_RGB/GL_UNSIGNED_SHORT_5_6_5.
+     *
+     * @param reallocate whether {@code usedTexId} gets new storage instead of being updated in
+     *                   place, needed when the bitmap's size or config differs from the one the
+     *                   texture was created with
+     */
+    public static int loadTexture(final Bitmap img, final int usedTexId, final boolean recycle,
+                                  final boolean mipmap, final boolean reallocate) {
+        boolean generateMipmap = mipmap && isMipmapSupported(img.getWidth(), img.getHeight());
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
             GLES20.glGenTextures(1, textures, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+            GlStateCache.bindTexture(textures[0]);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+                    GLES20.GL_TEXTURE_MIN_FILTER,
+                    generateMipmap ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
@@ -48,10 +83,20 @@ public class OpenGlUtils {
 
             GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, img, 0);
         } else {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
-            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, img);
+            GlStateCache.bindTexture(usedTexId);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MIN_FILTER,
+                    generateMipmap ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
+            if (reallocate) {
+                GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, img, 0);
+            } else {
+                GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, img);
+            }
             textures[0] = usedTexId;
         }
+        if (generateMipmap) {
+            GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+        }
         if (recycle) {
             img.recycle();
         }
@@ -62,7 +107,7 @@ public class OpenGlUtils {
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
             GLES20.glGenTextures(1, textures, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+            GlStateCache.bindTexture(textures[0]);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
@@ -74,7 +119,7 @@ public class OpenGlUtils {
             GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height,
                     0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
         } else {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
+            GlStateCache.bindTexture(usedTexId);
             GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
                     height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
             textures[0] = usedTexId;
@@ -82,6 +127,152 @@ public class OpenGlUtils {
         return textures[0];
     }
 
+    /**
+     * Generates a framebuffer with an RGBA texture of the given size attached as its color
+     * buffer. The generated names are written to {@code index} of the given arrays.
+     */
+    public static void createFrameBuffer(final int width, final int height,
+                                         final int[] frameBuffers, final int[] frameBufferTextures,
+                                         final int index) {
+        createFrameBuffer(width, height, GLES20.GL_RGBA, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                GLES20.GL_LINEAR, frameBuffers, frameBufferTextures, index);
+    }
+
+    /**
+     * Generates a framebuffer with a texture of the given size and format attached as its color
+     * buffer. The generated names are written to {@code index} of the given arrays. The bound
+     * framebuffer is kept, so filters can create framebuffers while drawing.
+     *
+     * @param internalFormat internal format of the texture, e.g. GL_RGBA or GLES30.GL_RGBA32F
+     * @param format         pixel format, e.g. GL_RGBA
+     * @param type           pixel type, e.g. GL_UNSIGNED_BYTE or GL_FLOAT
+     * @param filter         min and mag filter; float textures usually need GL_NEAREST
+     */
+    public static void createFrameBuffer(final int width, final int height,
+                                         final int internalFormat, final int format, final int type,
+                                         final int filter,
+                                         final int[] frameBuffers, final int[] frameBufferTextures,
+                                         final int index) {
+        int previousFrameBuffer = GlStateCache.getFramebuffer();
+        GLES20.glGenFramebuffers(1, frameBuffers, index);
+        GLES20.glGenTextures(1, frameBufferTextures, index);
+        GlStateCache.bindTexture(frameBufferTextures[index]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, internalFormat, width, height, 0,
+                format, type, null);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, filter);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, filter);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        GlStateCache.bindFramebuffer(frameBuffers[index]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, frameBufferTextures[index], 0);
+
+        GlStateCache.bindTexture(0);
+        GlStateCache.bindFramebuffer(previousFrameBuffer);
+    }
+
+    /**
+     * Checks whether the framebuffer can be rendered into, e.g. after attaching a texture of a
+     * format that is not color renderable everywhere. Keeps the bound framebuffer.
+     */
+    public static boolean isFrameBufferComplete(final int frameBuffer) {
+        int previousFrameBuffer = GlStateCache.getFramebuffer();
+        GlStateCache.bindFramebuffer(frameBuffer);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GlStateCache.bindFramebuffer(previousFrameBuffer);
+        return status == GLES20.GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    /**
+     * Returns the name of the framebuffer that is currently bound, so multi-pass filters can
+     * render their last pass into whatever target the caller prepared. Only queries GL when
+     * {@link GlStateCache} does not know it.
+     */
+    public static int getBoundFrameBuffer() {
+        return GlStateCache.getFramebuffer();
+    }
+
+    /**
+     * Checks whether the current context is OpenGL ES 3.0 or newer. Must be called on the GL thread.
+     */
+    public static boolean isGLES30Supported() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        if (version == null || !version.startsWith("OpenGL ES ")) {
+            return false;
+        }
+        char major = version.charAt("OpenGL ES ".length());
+        return major >= '3' && major <= '9';
+    }
+
+    /**
+     * Checks whether a texture of the given size can have mipmaps. OpenGL ES 2.0 only allows them
+     * for power of two sizes unless GL_OES_texture_npot is present. Must be called on the GL thread.
+     */
+    public static boolean isMipmapSupported(final int width, final int height) {
+        return isPowerOfTwo(width) && isPowerOfTwo(height)
+                || isGLES30Supported() || isExtensionSupported("GL_OES_texture_npot");
+    }
+
+    private static boolean isPowerOfTwo(final int value) {
+        return value > 0 && (value & (value - 1)) == 0;
+    }
+
+    /**
+     * Generates a framebuffer with an RGBA half float texture of the given size attached as its
+     * color buffer, filtered linearly where the context can. Check
+     * {@link #isHalfFloatRenderable()} first. The generated names are written to {@code index}
+     * of the given arrays.
+     */
+    public static void createHalfFloatFrameBuffer(final int width, final int height,
+                                                  final int[] frameBuffers,
+                                                  final int[] frameBufferTextures,
+                                                  final int index) {
+        // OpenGL ES 3.0 filters half floats linearly, 2.0 needs another extension
+        boolean es30 = isGLES30Supported();
+        int filter = es30 || isExtensionSupported("GL_OES_texture_half_float_linear")
+                ? GLES20.GL_LINEAR : GLES20.GL_NEAREST;
+        createFrameBuffer(width, height,
+                es30 ? GLES30.GL_RGBA16F : GLES20.GL_RGBA, GLES20.GL_RGBA,
+                es30 ? GLES30.GL_HALF_FLOAT : GL_HALF_FLOAT_OES, filter,
+                frameBuffers, frameBufferTextures, index);
+    }
+
+    /**
+     * Checks whether the current context can render into half float textures. Must be called on
+     * the GL thread.
+     */
+    public static boolean isHalfFloatRenderable() {
+        if (isGLES30Supported()) {
+            return isExtensionSupported("GL_EXT_color_buffer_half_float")
+                    || isExtensionSupported("GL_EXT_color_buffer_float");
+        }
+        return isExtensionSupported("GL_EXT_color_buffer_half_float")
+                && isExtensionSupported("GL_OES_texture_half_float");
+    }
+
+    /**
+     * Checks whether the current context exposes the given extension. Must be called on the GL thread.
+     *
+     * @param extension the extension name, e.g. "GL_EXT_color_buffer_float"
+     */
+    public static boolean isExtensionSupported(final String extension) {
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        if (extensions == null) {
+            return false;
+        }
+        for (String name : extensions.split(" ")) {
+            if (name.equals(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static int loadTextureAsBitmap(final IntBuffer data, final Size size, final int usedTexId) {
         Bitmap bitmap = Bitmap
                 .createBitmap(data.array(), size.width, size.height, Config.ARGB_8888);
@@ -101,7 +292,110 @@ public class OpenGlUtils {
         return iShader;
     }
 
+    /**
+     * Hands a program linked on another context over to {@link #loadProgram(String, String)}
+     * calls on the context it shares objects with. Each program is handed out once.
+     *
+     * @param shareContext the context the program will be used on
+     */
+    public static void addPrecompiledProgram(final EGLContext shareContext,
+                                             final String vertexShader,
+                                             final String fragmentShader, final int program) {
+        synchronized (precompiledPrograms) {
+            Map<String, ArrayDeque<Integer>> programs = precompiledPrograms.get(shareContext);
+            if (programs == null) {
+                programs = new HashMap<>();
+                precompiledPrograms.put(shareContext, programs);
+            }
+            String key = vertexShader + '\0' + fragmentShader;
+            ArrayDeque<Integer> queue = programs.get(key);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                programs.put(key, queue);
+            }
+            queue.add(program);
+        }
+    }
+
+    /**
+     * Takes back a precompiled program no {@link #loadProgram(String, String)} call has taken.
+     *
+     * @return whether the program was still waiting, the caller then deletes it
+     */
+    public static boolean removePrecompiledProgram(final EGLContext shareContext,
+                                                   final String vertexShader,
+                                                   final String fragmentShader,
+                                                   final int program) {
+        synchronized (precompiledPrograms) {
+            Map<String, ArrayDeque<Integer>> programs = precompiledPrograms.get(shareContext);
+            if (programs == null) {
+                return false;
+            }
+            String key = vertexShader + '\0' + fragmentShader;
+            ArrayDeque<Integer> queue = programs.get(key);
+            if (queue == null || !queue.remove(program)) {
+                return false;
+            }
+            if (queue.isEmpty()) {
+                programs.remove(key);
+                if (programs.isEmpty()) {
+                    precompiledPrograms.remove(shareContext);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Forgets the precompiled programs of a context that went away, they were deleted with it.
+     */
+    public static void discardPrecompiledPrograms(final EGLContext context) {
+        synchronized (precompiledPrograms) {
+            precompiledPrograms.remove(context);
+        }
+    }
+
+    /**
+     * Checks whether {@link #loadProgram(String, String)} would return a precompiled program for
+     * these sources on the given context instead of compiling them.
+     */
+    public static boolean isProgramPrecompiled(final EGLContext context, final String vertexShader,
+                                               final String fragmentShader) {
+        synchronized (precompiledPrograms) {
+            Map<String, ArrayDeque<Integer>> programs = precompiledPrograms.get(context);
+            if (programs == null) {
+                return false;
+            }
+            ArrayDeque<Integer> queue = programs.get(vertexShader + '\0' + fragmentShader);
+            return queue != null && !queue.isEmpty();
+        }
+    }
+
+    private static int takePrecompiledProgram(final String vertexShader,
+                                              final String fragmentShader) {
+        synchronized (precompiledPrograms) {
+            if (precompiledPrograms.isEmpty()) {
+                return 0;
+            }
+            Map<String, ArrayDeque<Integer>> programs =
+                    precompiledPrograms.get(EGL14.eglGetCurrentContext());
+            if (programs == null) {
+                return 0;
+            }
+            ArrayDeque<Integer> queue = programs.get(vertexShader + '\0' + fragmentShader);
+            return queue != null && !queue.isEmpty() ? queue.poll() : 0;
+        }
+    }
+
+    /**
+     * Compiles and links a program, or takes one that was linked ahead of time for the current
+     * context, see {@link #addPrecompiledProgram(EGLContext, String, String, int)}.
+     */
     public static int loadProgram(final String strVSource, final String strFSource) {
+        int precompiled = takePrecompiledProgram(strVSource, strFSource);
+        if (precompiled != 0) {
+            return precompiled;
+        }
         int iVShader;
         int iFShader;
         int iProgId;
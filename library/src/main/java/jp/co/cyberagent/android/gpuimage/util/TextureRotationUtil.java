@@ -25,6 +25,17 @@ public class TextureRotationUtil {
             1.0f, 0.0f,
     };
 
+    /**
+     * Reads a framebuffer texture back in the orientation it was rendered in, so filters that
+     * chain several passes internally do not flip the image on every pass.
+     */
+    public static final float TEXTURE_FRAMEBUFFER[] = {
+            0.0f, 0.0f,
+            1.0f, 0.0f,
+            0.0f, 1.0f,
+            1.0f, 1.0f,
+    };
+
     public static final float TEXTURE_ROTATED_90[] = {
             1.0f, 1.0f,
             1.0f, 0.0f,
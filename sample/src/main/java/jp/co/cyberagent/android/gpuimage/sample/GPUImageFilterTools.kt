@@ -43,8 +43,11 @@ object GPUImageFilterTools {
             addFilter("Threshold Edge Detection", FilterType.THRESHOLD_EDGE_DETECTION)
             addFilter("3x3 Convolution", FilterType.THREE_X_THREE_CONVOLUTION)
             addFilter("Emboss", FilterType.EMBOSS)
+            addFilter("5x5 Convolution", FilterType.CONVOLUTION)
+            addFilter("Baked Look", FilterType.BAKED_LOOKUP)
             addFilter("Posterize", FilterType.POSTERIZE)
             addFilter("Grouped filters", FilterType.FILTER_GROUP)
+            addFilter("Filter graph", FilterType.FILTER_GRAPH)
             addFilter("Saturation", FilterType.SATURATION)
             addFilter("Exposure", FilterType.EXPOSURE)
             addFilter("Highlight Shadow", FilterType.HIGHLIGHT_SHADOW)
@@ -82,16 +85,23 @@ object GPUImageFilterTools {
             addFilter("Blend (Subtract)", FilterType.BLEND_SUBTRACT)
             addFilter("Blend (Chroma Key)", FilterType.BLEND_CHROMA_KEY)
             addFilter("Blend (Normal)", FilterType.BLEND_NORMAL)
+            addFilter("Layer Compositor", FilterType.LAYER_COMPOSITOR)
+            addFilter("Stickers", FilterType.STICKERS)
 
             addFilter("Lookup (Amatorka)", FilterType.LOOKUP_AMATORKA)
             addFilter("Gaussian Blur", FilterType.GAUSSIAN_BLUR)
             addFilter("Crosshatch", FilterType.CROSSHATCH)
 
             addFilter("Box Blur", FilterType.BOX_BLUR)
+            addFilter("Pyramid Blur", FilterType.PYRAMID_BLUR)
+            addFilter("Summed Area Box Blur", FilterType.SUMMED_AREA_BOX_BLUR)
             addFilter("CGA Color Space", FilterType.CGA_COLORSPACE)
             addFilter("Dilation", FilterType.DILATION)
             addFilter("Kuwahara", FilterType.KUWAHARA)
             addFilter("RGB Dilation", FilterType.RGB_DILATION)
+            addFilter("Erosion", FilterType.EROSION)
+            addFilter("Opening", FilterType.OPENING)
+            addFilter("Closing", FilterType.CLOSING)
             addFilter("Sketch", FilterType.SKETCH)
             addFilter("Toon", FilterType.TOON)
             addFilter("Smooth Toon", FilterType.SMOOTH_TOON)
@@ -145,6 +155,25 @@ object GPUImageFilterTools {
             FilterType.THRESHOLD_EDGE_DETECTION -> GPUImageThresholdEdgeDetectionFilter()
             FilterType.THREE_X_THREE_CONVOLUTION -> GPUImage3x3ConvolutionFilter()
             FilterType.EMBOSS -> GPUImageEmbossFilter()
+            FilterType.CONVOLUTION -> GPUImageConvolutionFilter(
+                floatArrayOf(
+                    0f, 0f, -1f, 0f, 0f,
+                    0f, -1f, -2f, -1f, 0f,
+                    -1f, -2f, 17f, -2f, -1f,
+                    0f, -1f, -2f, -1f, 0f,
+                    0f, 0f, -1f, 0f, 0f
+                ), 5
+            )
+            FilterType.BAKED_LOOKUP -> GPUImageBakedLookupFilter(
+                GPUImageFilterGroup(
+                    listOf(
+                        GPUImageContrastFilter(1.2f),
+                        GPUImageWhiteBalanceFilter(6000.0f, 0.0f),
+                        GPUImageVibranceFilter(0.5f),
+                        GPUImageHueFilter(10.0f)
+                    )
+                )
+            )
             FilterType.POSTERIZE -> GPUImagePosterizeFilter()
             FilterType.FILTER_GROUP -> GPUImageFilterGroup(
                 listOf(
@@ -153,6 +182,11 @@ object GPUImageFilterTools {
                     GPUImageGrayscaleFilter()
                 )
             )
+            FilterType.FILTER_GRAPH -> GPUImageFilterGraph().apply {
+                addNode("blur", GPUImageGaussianBlurFilter(), GPUImageFilterGraph.INPUT)
+                addNode("edges", GPUImageSobelEdgeDetectionFilter(), GPUImageFilterGraph.INPUT)
+                addNode("blend", GPUImageScreenBlendFilter(), "blur", "edges")
+            }
             FilterType.SATURATION -> GPUImageSaturationFilter(1.0f)
             FilterType.EXPOSURE -> GPUImageExposureFilter(0.0f)
             FilterType.HIGHLIGHT_SHADOW -> GPUImageHighlightShadowFilter(
@@ -276,6 +310,32 @@ object GPUImageFilterTools {
                 context,
                 GPUImageNormalBlendFilter::class.java
             )
+            FilterType.LAYER_COMPOSITOR -> GPUImageLayerCompositorFilter().apply {
+                val icon = BitmapFactory.decodeResource(context.resources, R.drawable.ic_launcher)
+                val modes = listOf(
+                    GPUImageLayerCompositorFilter.BlendMode.NORMAL,
+                    GPUImageLayerCompositorFilter.BlendMode.MULTIPLY,
+                    GPUImageLayerCompositorFilter.BlendMode.SCREEN
+                )
+                modes.forEachIndexed { i, mode ->
+                    addLayer(icon, mode)
+                    setLayerTransform(i, android.graphics.Matrix().apply {
+                        setScale(0.3f, 0.3f)
+                        postTranslate(0.05f + 0.32f * i, 0.35f)
+                    })
+                    setLayerOpacity(i, 0.8f)
+                }
+            }
+            FilterType.STICKERS -> GPUImageStickerFilter().apply {
+                val icon = BitmapFactory.decodeResource(context.resources, R.drawable.ic_launcher)
+                for (i in 0 until 24) {
+                    addSticker(icon, android.graphics.Matrix().apply {
+                        setScale(0.12f, 0.12f)
+                        postRotate(15f * i, 0.06f, 0.06f)
+                        postTranslate(0.04f + 0.16f * (i % 6), 0.1f + 0.2f * (i / 6))
+                    })
+                }
+            }
 
             FilterType.LOOKUP_AMATORKA -> GPUImageLookupFilter().apply {
                 bitmap = BitmapFactory.decodeResource(context.resources, R.drawable.lookup_amatorka)
@@ -283,10 +343,15 @@ object GPUImageFilterTools {
             FilterType.GAUSSIAN_BLUR -> GPUImageGaussianBlurFilter()
             FilterType.CROSSHATCH -> GPUImageCrosshatchFilter()
             FilterType.BOX_BLUR -> GPUImageBoxBlurFilter()
+            FilterType.PYRAMID_BLUR -> GPUImagePyramidBlurFilter()
+            FilterType.SUMMED_AREA_BOX_BLUR -> GPUImageSummedAreaBoxBlurFilter()
             FilterType.CGA_COLORSPACE -> GPUImageCGAColorspaceFilter()
             FilterType.DILATION -> GPUImageDilationFilter()
             FilterType.KUWAHARA -> GPUImageKuwaharaFilter()
             FilterType.RGB_DILATION -> GPUImageRGBDilationFilter()
+            FilterType.EROSION -> GPUImageErosionFilter()
+            FilterType.OPENING -> GPUImageOpeningFilter()
+            FilterType.CLOSING -> GPUImageClosingFilter()
             FilterType.SKETCH -> GPUImageSketchFilter()
             FilterType.TOON -> GPUImageToonFilter()
             FilterType.SMOOTH_TOON -> GPUImageSmoothToonFilter()
@@ -330,7 +395,9 @@ object GPUImageFilterTools {
         BLEND_DIFFERENCE, BLEND_DISSOLVE, BLEND_EXCLUSION, BLEND_SOURCE_OVER, BLEND_HARD_LIGHT, BLEND_LIGHTEN, BLEND_ADD, BLEND_DIVIDE, BLEND_MULTIPLY, BLEND_OVERLAY, BLEND_SCREEN, BLEND_ALPHA,
         BLEND_COLOR, BLEND_HUE, BLEND_SATURATION, BLEND_LUMINOSITY, BLEND_LINEAR_BURN, BLEND_SOFT_LIGHT, BLEND_SUBTRACT, BLEND_CHROMA_KEY, BLEND_NORMAL, LOOKUP_AMATORKA,
         GAUSSIAN_BLUR, CROSSHATCH, BOX_BLUR, CGA_COLORSPACE, DILATION, KUWAHARA, RGB_DILATION, SKETCH, TOON, SMOOTH_TOON, BULGE_DISTORTION, GLASS_SPHERE, HAZE, LAPLACIAN, NON_MAXIMUM_SUPPRESSION,
-        SPHERE_REFRACTION, SWIRL, WEAK_PIXEL_INCLUSION, FALSE_COLOR, COLOR_BALANCE, LEVELS_FILTER_MIN, BILATERAL_BLUR, ZOOM_BLUR, HALFTONE, TRANSFORM2D, SOLARIZE, VIBRANCE
+        SPHERE_REFRACTION, SWIRL, WEAK_PIXEL_INCLUSION, FALSE_COLOR, COLOR_BALANCE, LEVELS_FILTER_MIN, BILATERAL_BLUR, ZOOM_BLUR, HALFTONE, TRANSFORM2D, SOLARIZE, VIBRANCE, PYRAMID_BLUR,
+        SUMMED_AREA_BOX_BLUR, EROSION, OPENING, CLOSING, CONVOLUTION, BAKED_LOOKUP,
+        FILTER_GRAPH, LAYER_COMPOSITOR, STICKERS
     }
 
     private class FilterList {
@@ -384,6 +451,8 @@ object GPUImageFilterTools {
                 is GPUImageTransformFilter -> RotateAdjuster(filter)
                 is GPUImageSolarizeFilter -> SolarizeAdjuster(filter)
                 is GPUImageVibranceFilter -> VibranceAdjuster(filter)
+                is GPUImagePyramidBlurFilter -> PyramidBlurAdjuster(filter)
+                is GPUImageSummedAreaBoxBlurFilter -> SummedAreaBoxBlurAdjuster(filter)
                 else -> null
             }
         }
@@ -676,5 +745,19 @@ object GPUImageFilterTools {
                 filter.setVibrance(range(percentage, -1.2f, 1.2f))
             }
         }
+
+        private inner class PyramidBlurAdjuster(filter: GPUImagePyramidBlurFilter) :
+            Adjuster<GPUImagePyramidBlurFilter>(filter) {
+            override fun adjust(percentage: Int) {
+                filter.setBlurSize(range(percentage, 0.0f, 32.0f))
+            }
+        }
+
+        private inner class SummedAreaBoxBlurAdjuster(filter: GPUImageSummedAreaBoxBlurFilter) :
+            Adjuster<GPUImageSummedAreaBoxBlurFilter>(filter) {
+            override fun adjust(percentage: Int) {
+                filter.setRadius(range(percentage, 0, 128))
+            }
+        }
     }
 }
@@ -79,6 +79,8 @@ class CameraActivity : AppCompatActivity() {
         }
         gpuImageView.setRotation(getRotation(cameraLoader.getCameraOrientation()))
         gpuImageView.setRenderMode(GPUImageView.RENDERMODE_CONTINUOUSLY)
+        // Keep the preview at 30 frames per second with heavy filters on slow devices
+        gpuImageView.gpuImage.setFrameBudget(33f)
     }
 
     override fun onResume() {
@@ -87,7 +87,7 @@ class GalleryActivity : AppCompatActivity() {
 
     private fun switchFilterTo(filter: GPUImageFilter) {
         if (gpuImageView.filter == null || gpuImageView.filter.javaClass != filter.javaClass) {
-            gpuImageView.filter = filter
+            gpuImageView.setFilterAsync(filter, 300)
             filterAdjuster = FilterAdjuster(filter)
             if (filterAdjuster!!.canAdjust()) {
                 seekBar.visibility = View.VISIBLE